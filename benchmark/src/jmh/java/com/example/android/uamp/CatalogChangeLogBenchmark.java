@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording scan batches and computing the delta a subscriber fetches after
+ * notifyChildrenChanged, for scans of catalogs of different sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogChangeLogBenchmark {
+
+    // LibraryScanner.BATCH_SIZE
+    private static final int BATCH_SIZE = 500;
+
+    @Param({"100", "10000", "1000000"})
+    public int tracks;
+
+    private List<List<String>> mBatches;
+    private CatalogChangeLog mLog;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        String[] mediaIds = SyntheticCatalog.mediaIds(tracks);
+        mBatches = new ArrayList<>();
+        for (int i = 0; i < tracks; i += BATCH_SIZE) {
+            mBatches.add(Arrays.asList(mediaIds).subList(i, Math.min(tracks, i + BATCH_SIZE)));
+        }
+        // A log that went through a full scan, as after the first start
+        mLog = new CatalogChangeLog();
+        for (List<String> batch : mBatches) {
+            mLog.record("", CatalogChangeLog.CHANGE_ADDED, batch);
+        }
+    }
+
+    @Benchmark
+    public long recordBatch() {
+        mLog.record("", CatalogChangeLog.CHANGE_UPDATED, mBatches.get(mNext++ % mBatches.size()));
+        return mLog.getVersion("");
+    }
+
+    @Benchmark
+    public List<CatalogChangeLog.Change> getLastBatch() {
+        return mLog.getChangesSince("", mLog.getVersion("") - 1);
+    }
+
+    @Benchmark
+    public List<CatalogChangeLog.Change> getLastTwoBatches() {
+        // Two batches fit in the retained changes, so this never falls back to a reload.
+        return mLog.getChangesSince("", Math.max(0, mLog.getVersion("") - 2));
+    }
+}
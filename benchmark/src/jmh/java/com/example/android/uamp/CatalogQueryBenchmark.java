@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The catalog queries behind getMetadata, getMediaItems, createQueue and search, run with the
+ * statements of {@link MusicDatabase} against an in-memory SQLite database. Like Android's
+ * rawQuery, the arguments are bound as strings. Rows are read column by column into
+ * arrays, which stands in for building the MediaMetadata.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogQueryBenchmark {
+
+    // BrowseProjection's default page for compact clients
+    private static final int PAGE_SIZE = 50;
+    // MusicService only asks for the best match of a voice search
+    private static final int SEARCH_LIMIT = 1;
+
+    @Param({"100", "10000", "1000000"})
+    public int tracks;
+
+    private Connection mConnection;
+    private PreparedStatement mQueryByPath;
+    private PreparedStatement mQueryAll;
+    private PreparedStatement mQuerySearch;
+    private PreparedStatement mQueryAllIds;
+    private PreparedStatement mQueryTitleRank;
+    private String[] mPaths;
+    private String[] mSearches;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws SQLException {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement statement = mConnection.createStatement();
+        try {
+            statement.execute(CatalogSql.CREATE_TRACKS);
+            statement.execute(CatalogSql.CREATE_TITLE_INDEX);
+            statement.execute(CatalogSql.CREATE_GENRE_INDEX);
+            statement.execute(CatalogSql.CREATE_ARTIST_INDEX);
+            statement.execute(CatalogSql.CREATE_ALBUM_INDEX);
+            statement.execute(CatalogSql.CREATE_SEARCH);
+            statement.execute(CatalogSql.CREATE_INSERT_TRIGGER);
+            statement.execute(CatalogSql.CREATE_DELETE_TRIGGER);
+        } finally {
+            statement.close();
+        }
+        insertTracks();
+
+        mQueryByPath = mConnection.prepareStatement(CatalogSql.QUERY_BY_PATH);
+        mQueryAll = mConnection.prepareStatement(CatalogSql.QUERY_ALL);
+        mQuerySearch = mConnection.prepareStatement(CatalogSql.QUERY_SEARCH);
+        mQueryAllIds = mConnection.prepareStatement(CatalogSql.QUERY_ALL_IDS);
+        mQueryTitleRank = mConnection.prepareStatement(CatalogSql.QUERY_TITLE_RANK);
+
+        Random random = new Random(42);
+        mPaths = new String[1024];
+        mSearches = new String[1024];
+        for (int i = 0; i < mPaths.length; i++) {
+            int track = random.nextInt(tracks);
+            mPaths[i] = SyntheticCatalog.path(track);
+            // A voice search for an album: "album" matches every track, its number a few.
+            mSearches[i] = CatalogSql.toMatchQuery(SyntheticCatalog.album(track).toLowerCase());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        mConnection.close();
+    }
+
+    @Benchmark
+    public List<Object[]> getMetadata() throws SQLException {
+        mQueryByPath.setString(1, mPaths[mNext++ & 1023]);
+        return readMetadata(mQueryByPath);
+    }
+
+    @Benchmark
+    public List<Object[]> getMediaItemsPage() throws SQLException {
+        mQueryAll.setString(1, String.valueOf(PAGE_SIZE));
+        return readMetadata(mQueryAll);
+    }
+
+    @Benchmark
+    public List<Object[]> getMediaItemsAll() throws SQLException {
+        mQueryAll.setString(1, String.valueOf(Integer.MAX_VALUE));
+        return readMetadata(mQueryAll);
+    }
+
+    @Benchmark
+    public List<Object[]> search() throws SQLException {
+        mQuerySearch.setString(1, mSearches[mNext++ & 1023]);
+        mQuerySearch.setString(2, String.valueOf(SEARCH_LIMIT));
+        return readMetadata(mQuerySearch);
+    }
+
+    /**
+     * The queue as createQueue builds it, from the metadata of every track.
+     */
+    @Benchmark
+    public List<Object[]> createQueue() throws SQLException {
+        return getMediaItemsAll();
+    }
+
+    /**
+     * The queue as playing from a media id loads it: the row ids from the title index and the
+     * position of the chosen track.
+     */
+    @Benchmark
+    public long createQueueIds() throws SQLException {
+        long[] ids = new long[tracks];
+        int count = 0;
+        ResultSet cursor = mQueryAllIds.executeQuery();
+        try {
+            while (cursor.next() && count < ids.length) {
+                ids[count++] = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        mQueryTitleRank.setString(1, mPaths[mNext++ & 1023]);
+        cursor = mQueryTitleRank.executeQuery();
+        try {
+            int position = cursor.next() ? cursor.getInt(1) : -1;
+            return position >= 0 && position < count ? ids[position] : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insertTracks() throws SQLException {
+        mConnection.setAutoCommit(false);
+        PreparedStatement insert = mConnection.prepareStatement(CatalogSql.INSERT_TRACK);
+        try {
+            for (int i = 0; i < tracks; i++) {
+                insert.setString(1, SyntheticCatalog.path(i));
+                insert.setLong(2, i);
+                insert.setLong(3, 4L * 1024 * 1024);
+                insert.setString(4, SyntheticCatalog.title(i));
+                insert.setString(5, SyntheticCatalog.artist(i));
+                insert.setString(6, SyntheticCatalog.album(i));
+                insert.setString(7, SyntheticCatalog.genre(i));
+                insert.setLong(8, 180000);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            mConnection.commit();
+        } finally {
+            insert.close();
+            mConnection.setAutoCommit(true);
+        }
+    }
+
+    private static List<Object[]> readMetadata(PreparedStatement query) throws SQLException {
+        List<Object[]> result = new ArrayList<>();
+        ResultSet cursor = query.executeQuery();
+        try {
+            while (cursor.next()) {
+                // JDBC columns start at 1
+                result.add(new Object[] {
+                        cursor.getString(CatalogSql.INDEX_PATH + 1),
+                        cursor.getString(CatalogSql.INDEX_TITLE + 1),
+                        cursor.getString(CatalogSql.INDEX_ARTIST + 1),
+                        cursor.getString(CatalogSql.INDEX_ALBUM + 1),
+                        cursor.getString(CatalogSql.INDEX_GENRE + 1),
+                        cursor.getLong(CatalogSql.INDEX_DURATION + 1),
+                        cursor.getLong(CatalogSql.INDEX_REPLAY_GAIN + 1),
+                        cursor.getLong(CatalogSql.INDEX_PEAK + 1)
+                });
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+}
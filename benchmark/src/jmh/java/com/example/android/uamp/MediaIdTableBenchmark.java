@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Media id lookups behind getMetadata, getMusicRes and getAlbumRes, the ordinal walk behind
+ * getMediaItems and createQueue, and the copy a writer makes to publish a new catalog.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MediaIdTableBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int tracks;
+
+    private MediaIdTable mTable;
+    // Copies of the ids, so lookups can't succeed on the identity check
+    private String[] mQueries;
+    private String[] mMisses;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        String[] mediaIds = SyntheticCatalog.mediaIds(tracks);
+        mTable = new MediaIdTable(mediaIds);
+        Random random = new Random(42);
+        mQueries = new String[1024];
+        mMisses = new String[1024];
+        for (int i = 0; i < mQueries.length; i++) {
+            mQueries[i] = new String(mediaIds[random.nextInt(tracks)]);
+            mMisses[i] = mQueries[i] + ".missing";
+        }
+    }
+
+    @Benchmark
+    public int getOrdinal() {
+        return mTable.getOrdinal(mQueries[mNext++ & 1023]);
+    }
+
+    @Benchmark
+    public int getOrdinalMissing() {
+        return mTable.getOrdinal(mMisses[mNext++ & 1023]);
+    }
+
+    @Benchmark
+    public List<String> walkAll() {
+        List<String> result = new ArrayList<>(mTable.size());
+        for (int i = 0; i < mTable.size(); i++) {
+            result.add(mTable.getMediaId(i));
+        }
+        return result;
+    }
+
+    @Benchmark
+    public MediaIdTable publishWithOneMore() {
+        return mTable.with(mMisses[mNext++ & 1023]);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+/**
+ * Media ids and tags shaped like the ones of scanned tracks, which share long path prefixes.
+ */
+final class SyntheticCatalog {
+
+    // LibraryScanner.MEDIA_ID_PREFIX, which can't be loaded without the Android framework
+    private static final String MEDIA_ID_PREFIX = "__FILE__";
+
+    private SyntheticCatalog() {
+    }
+
+    static String[] mediaIds(int tracks) {
+        String[] mediaIds = new String[tracks];
+        for (int i = 0; i < tracks; i++) {
+            mediaIds[i] = MEDIA_ID_PREFIX + path(i);
+        }
+        return mediaIds;
+    }
+
+    /**
+     * Returns the file of the i-th track: ten tracks per album and a thousand per artist.
+     */
+    static String path(int i) {
+        return "/storage/emulated/0/Music/" + artist(i) + "/" + album(i) + "/" + (i % 10) + " "
+                + title(i) + ".mp3";
+    }
+
+    static String title(int i) {
+        return "Track " + i;
+    }
+
+    static String artist(int i) {
+        return "Artist " + (i / 1000);
+    }
+
+    static String album(int i) {
+        return "Album " + (i / 10);
+    }
+
+    static String genre(int i) {
+        return "Genre " + (i % 20);
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves album art to local and remote clients as pre-scaled WebP thumbnails, so a watch or a
+ * car never has to decode the original image. Art URIs look like
+ * {@code content://<authority>/<bucket>/<drawable res id>}, where the bucket is one of
+ * {@link #BUCKET_SMALL}, {@link #BUCKET_MEDIUM} or {@link #BUCKET_LARGE}. A client that knows
+ * how large it shows the art can add a {@link #QUERY_SIZE} parameter in pixels instead, which
+ * is snapped to the smallest bucket that covers it, see {@link #getBucket}.
+ * <p/>
+ * Thumbnails are generated the first time they are requested and kept in a bounded disk cache
+ * that evicts the least recently used files. A cached thumbnail is opened directly; otherwise
+ * the caller gets the read end of a pipe that is filled as soon as the thumbnail is encoded.
+ */
+public class AlbumArtProvider extends ContentProvider {
+
+    private static final String TAG = "AlbumArtProvider";
+
+    public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".art";
+
+    // Lists, compact views and watch faces
+    public static final String BUCKET_SMALL = "small";
+    // Notifications and the Wear now playing card
+    public static final String BUCKET_MEDIUM = "medium";
+    // Full screen art on the phone and in the car
+    public static final String BUCKET_LARGE = "large";
+    private static final int SIZE_SMALL = 192;
+    private static final int SIZE_MEDIUM = 480;
+    private static final int SIZE_LARGE = 1024;
+
+    // Query parameter with the size the client shows the art at, in pixels
+    public static final String QUERY_SIZE = "size";
+
+    private static final String MIME_TYPE = "image/webp";
+    private static final String CACHE_DIR = "art";
+    private static final long MAX_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final int QUALITY = 80;
+
+    private ExecutorService mExecutor;
+
+    /**
+     * Returns the URI of the thumbnail of {@code albumArtResId} in the given bucket.
+     */
+    public static Uri getUri(int albumArtResId, String bucket) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .appendPath(bucket)
+                .appendPath(String.valueOf(albumArtResId))
+                .build();
+    }
+
+    /**
+     * Returns {@code uri} with its bucket replaced, or {@code uri} itself if it isn't an album
+     * art URI.
+     */
+    public static Uri withBucket(Uri uri, String bucket) {
+        if (uri == null || !AUTHORITY.equals(uri.getAuthority())
+                || uri.getPathSegments().size() != 2) {
+            return uri;
+        }
+        return getUri(Integer.parseInt(uri.getPathSegments().get(1)), bucket);
+    }
+
+    /**
+     * Returns the smallest bucket whose thumbnails are at least {@code sizePx} across, or the
+     * largest bucket.
+     */
+    public static String getBucket(int sizePx) {
+        if (sizePx <= SIZE_SMALL) {
+            return BUCKET_SMALL;
+        } else if (sizePx <= SIZE_MEDIUM) {
+            return BUCKET_MEDIUM;
+        }
+        return BUCKET_LARGE;
+    }
+
+    static boolean isBucket(String bucket) {
+        return BUCKET_SMALL.equals(bucket) || BUCKET_MEDIUM.equals(bucket)
+                || BUCKET_LARGE.equals(bucket);
+    }
+
+    @Override
+    public boolean onCreate() {
+        mExecutor = Executors.newSingleThreadExecutor();
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Album art is read only: " + uri);
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2) {
+            throw new FileNotFoundException("Unknown album art: " + uri);
+        }
+        String bucket = segments.get(0);
+        getBucketSize(bucket);
+        String sizeParameter = uri.getQueryParameter(QUERY_SIZE);
+        if (sizeParameter != null) {
+            try {
+                bucket = getBucket(Integer.parseInt(sizeParameter));
+            } catch (NumberFormatException e) {
+                throw new FileNotFoundException("Unknown album art size: " + uri);
+            }
+        }
+        final int size = getBucketSize(bucket);
+        final int resId;
+        try {
+            resId = Integer.parseInt(segments.get(1));
+            // Only serve drawables, not arbitrary resources of the app.
+            if (!"drawable".equals(getContext().getResources().getResourceTypeName(resId))) {
+                throw new FileNotFoundException("Not album art: " + uri);
+            }
+        } catch (NumberFormatException | Resources.NotFoundException e) {
+            throw new FileNotFoundException("Unknown album art: " + uri);
+        }
+
+        final File file = getCacheFile(bucket, resId);
+        if (file.exists()) {
+            // Keep recently used thumbnails at the end of the eviction order.
+            file.setLastModified(System.currentTimeMillis());
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to create pipe: " + e.getMessage());
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    out.write(getThumbnail(file, resId, size));
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to serve album art " + resId, e);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // ignore, the reader has gone away.
+                    }
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Returns the encoded thumbnail, generating and caching it if needed. Runs on the
+     * provider's single worker thread, so the cache is only ever written from here.
+     */
+    private byte[] getThumbnail(File file, int resId, int size) throws IOException {
+        if (file.exists()) {
+            return readFile(file);
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(getContext().getResources(), resId, options);
+        options.inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (options.inSampleSize * 2)
+                >= size) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeResource(getContext().getResources(), resId,
+                options);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode album art " + resId);
+        }
+        float scale = (float) size / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.round(bitmap.getWidth() * scale),
+                    Math.round(bitmap.getHeight() * scale), true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.WEBP, QUALITY, bytes);
+        bitmap.recycle();
+        byte[] thumbnail = bytes.toByteArray();
+
+        File parent = file.getParentFile();
+        if (parent.isDirectory() || parent.mkdirs()) {
+            File tmp = new File(parent, file.getName() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(thumbnail);
+            } finally {
+                out.close();
+            }
+            if (tmp.renameTo(file)) {
+                trimCache();
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the cache fits in MAX_CACHE_BYTES.
+     */
+    private void trimCache() {
+        List<File> files = new ArrayList<>();
+        long total = 0;
+        File[] buckets = new File(getContext().getCacheDir(), CACHE_DIR).listFiles();
+        if (buckets == null) {
+            return;
+        }
+        for (File bucket : buckets) {
+            File[] thumbnails = bucket.listFiles();
+            if (thumbnails != null) {
+                files.addAll(Arrays.asList(thumbnails));
+                for (File thumbnail : thumbnails) {
+                    total += thumbnail.length();
+                }
+            }
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+        File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (int i = 0; i < sorted.length && total > MAX_CACHE_BYTES; i++) {
+            long length = sorted[i].length();
+            if (sorted[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private File getCacheFile(String bucket, int resId) {
+        File dir = new File(new File(getContext().getCacheDir(), CACHE_DIR), bucket);
+        return new File(dir, resId + ".webp");
+    }
+
+    private static int getBucketSize(String bucket) throws FileNotFoundException {
+        switch (bucket) {
+            case BUCKET_SMALL:
+                return SIZE_SMALL;
+            case BUCKET_MEDIUM:
+                return SIZE_MEDIUM;
+            case BUCKET_LARGE:
+                return SIZE_LARGE;
+            default:
+                throw new FileNotFoundException("Unknown album art size: " + bucket);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read only");
+    }
+}
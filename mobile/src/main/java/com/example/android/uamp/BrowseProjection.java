@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.media.MediaDescription;
+import android.media.MediaMetadata;
+import android.media.browse.MediaBrowser;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+/**
+ * Describes the shape of the browse items a client receives. Phone clients get full
+ * descriptions; watches and cars talking over Bluetooth get a compact shape without art URIs
+ * or extras, with truncated strings and a bounded item count. A client that passes the size it
+ * shows art at in {@link #EXTRA_ART_SIZE} gets icon URIs in the matching
+ * {@link AlbumArtProvider} bucket instead of the small one.
+ * <p/>
+ * {@link android.service.media.MediaBrowserService#onLoadChildren} doesn't know which client
+ * it serves, so the projection is encoded in the root id handed out by onGetRoot.
+ * <p/>
+ * Compact roots start with two browsable nodes, recently played and most played, whose ids
+ * carry the root id as well.
+ * <p/>
+ * The catalog is listed in pages of {@link #PAGE_SIZE} tracks, each ending with a browsable
+ * node for the next page, so a large library is never loaded at once. Compact projections
+ * are bounded by their item count instead.
+ */
+public class BrowseProjection {
+
+    // Root hints a client can pass to MediaBrowser to choose its projection
+    public static final String EXTRA_COMPACT = "com.example.android.uamp.EXTRA_COMPACT";
+    public static final String EXTRA_MAX_ITEMS = "com.example.android.uamp.EXTRA_MAX_ITEMS";
+    // Size in pixels the client shows item art at
+    public static final String EXTRA_ART_SIZE = "com.example.android.uamp.EXTRA_ART_SIZE";
+
+    // Tracks in a page of the catalog, see getPageId
+    public static final int PAGE_SIZE = 200;
+
+    public static final BrowseProjection FULL =
+            new BrowseProjection(false, Integer.MAX_VALUE, null);
+
+    // Clients that get the compact projection unless their hints say otherwise
+    private static final String WEAR_PACKAGE = "com.google.android.wearable.app";
+    private static final String AUTO_PACKAGE = "com.google.android.projection.gearhead";
+
+    private static final String PROJECTION_ROOT_PREFIX = "__PROJECTION__/";
+    private static final String RECENT_PREFIX = "__RECENT__/";
+    private static final String MOST_PLAYED_PREFIX = "__MOST_PLAYED__/";
+    private static final String PAGE_PREFIX = "__PAGE__/";
+    private static final int DEFAULT_COMPACT_MAX_ITEMS = 50;
+    private static final int MAX_TEXT_LENGTH = 40;
+
+    private final boolean mCompact;
+    private final int mMaxItems;
+    // Album art bucket of the icon URIs, or null to keep the one in the metadata
+    private final String mArtBucket;
+
+    private BrowseProjection(boolean compact, int maxItems, String artBucket) {
+        mCompact = compact;
+        mMaxItems = maxItems;
+        mArtBucket = artBucket;
+    }
+
+    /**
+     * Picks the projection for a client connecting through onGetRoot.
+     */
+    public static BrowseProjection forClient(String clientPackageName, Bundle rootHints) {
+        boolean compact = WEAR_PACKAGE.equals(clientPackageName)
+                || AUTO_PACKAGE.equals(clientPackageName);
+        int maxItems = compact ? DEFAULT_COMPACT_MAX_ITEMS : Integer.MAX_VALUE;
+        String artBucket = null;
+        if (rootHints != null) {
+            compact = rootHints.getBoolean(EXTRA_COMPACT, compact);
+            maxItems = rootHints.getInt(EXTRA_MAX_ITEMS, maxItems);
+            if (rootHints.containsKey(EXTRA_ART_SIZE)) {
+                artBucket = AlbumArtProvider.getBucket(rootHints.getInt(EXTRA_ART_SIZE));
+            }
+        }
+        if (!compact && maxItems == Integer.MAX_VALUE && artBucket == null) {
+            return FULL;
+        }
+        return new BrowseProjection(compact, Math.max(1, maxItems), artBucket);
+    }
+
+    /**
+     * Returns the projection encoded in a root or node id, or {@link #FULL} for any other id.
+     */
+    public static BrowseProjection fromRootId(String rootId) {
+        if (isRecentId(rootId)) {
+            rootId = rootId.substring(RECENT_PREFIX.length());
+        } else if (isMostPlayedId(rootId)) {
+            rootId = rootId.substring(MOST_PLAYED_PREFIX.length());
+        } else if (isPageId(rootId)) {
+            rootId = rootId.substring(rootId.indexOf('/', PAGE_PREFIX.length()) + 1);
+        }
+        if (rootId == null || !rootId.startsWith(PROJECTION_ROOT_PREFIX)) {
+            return FULL;
+        }
+        String[] parts = rootId.substring(PROJECTION_ROOT_PREFIX.length()).split("/");
+        String artBucket = parts.length > 2 && AlbumArtProvider.isBucket(parts[2])
+                ? parts[2] : null;
+        try {
+            return new BrowseProjection(Boolean.parseBoolean(parts[0]),
+                    Integer.parseInt(parts[1]), artBucket);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return FULL;
+        }
+    }
+
+    public String getRootId() {
+        if (this == FULL) {
+            return MusicLibrary.getRoot();
+        }
+        return PROJECTION_ROOT_PREFIX + mCompact + "/" + mMaxItems
+                + (mArtBucket != null ? "/" + mArtBucket : "");
+    }
+
+    /**
+     * Returns the id of the recently played node of this projection.
+     */
+    public String getRecentId() {
+        return RECENT_PREFIX + getRootId();
+    }
+
+    /**
+     * Returns the id of the most played node of this projection.
+     */
+    public String getMostPlayedId() {
+        return MOST_PLAYED_PREFIX + getRootId();
+    }
+
+    /**
+     * Returns the id of the page of the catalog starting at track {@code offset}, listed in
+     * this projection.
+     */
+    public String getPageId(int offset) {
+        return PAGE_PREFIX + offset + "/" + getRootId();
+    }
+
+    /**
+     * Returns the offset of the first track of a page id, or 0 for the root.
+     */
+    public static int getPageOffset(String mediaId) {
+        if (!isPageId(mediaId)) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(mediaId.substring(PAGE_PREFIX.length(),
+                    mediaId.indexOf('/', PAGE_PREFIX.length()))));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static boolean isPageId(String mediaId) {
+        return mediaId != null && mediaId.startsWith(PAGE_PREFIX)
+                && mediaId.indexOf('/', PAGE_PREFIX.length()) > 0;
+    }
+
+    public static boolean isRecentId(String mediaId) {
+        return mediaId != null && mediaId.startsWith(RECENT_PREFIX);
+    }
+
+    public static boolean isMostPlayedId(String mediaId) {
+        return mediaId != null && mediaId.startsWith(MOST_PLAYED_PREFIX);
+    }
+
+    public boolean isCompact() {
+        return mCompact;
+    }
+
+    public int getMaxItems() {
+        return mMaxItems;
+    }
+
+    public MediaBrowser.MediaItem createMediaItem(MediaMetadata metadata) {
+        MediaDescription description = metadata.getDescription();
+        if (mCompact) {
+            description = new MediaDescription.Builder()
+                    .setMediaId(description.getMediaId())
+                    .setTitle(truncate(description.getTitle()))
+                    .setSubtitle(truncate(description.getSubtitle()))
+                    .build();
+        } else if (mArtBucket != null && description.getIconUri() != null) {
+            description = new MediaDescription.Builder()
+                    .setMediaId(description.getMediaId())
+                    .setTitle(description.getTitle())
+                    .setSubtitle(description.getSubtitle())
+                    .setDescription(description.getDescription())
+                    .setIconUri(AlbumArtProvider.withBucket(description.getIconUri(), mArtBucket))
+                    .setExtras(description.getExtras())
+                    .build();
+        }
+        return new MediaBrowser.MediaItem(description, MediaBrowser.MediaItem.FLAG_PLAYABLE);
+    }
+
+    public MediaBrowser.MediaItem createFolderItem(String mediaId, CharSequence title) {
+        return new MediaBrowser.MediaItem(new MediaDescription.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .build(), MediaBrowser.MediaItem.FLAG_BROWSABLE);
+    }
+
+    /**
+     * Creates the item of a delta, see {@link CatalogChangeLog}. Change items keep the given
+     * extras in every projection; removed tracks have no metadata and only carry their id.
+     */
+    public MediaBrowser.MediaItem createChangeItem(String mediaId, MediaMetadata metadata,
+            Bundle extras) {
+        if (metadata == null) {
+            return new MediaBrowser.MediaItem(new MediaDescription.Builder()
+                    .setMediaId(mediaId)
+                    .setExtras(extras)
+                    .build(), 0);
+        }
+        MediaDescription description = createMediaItem(metadata).getDescription();
+        return new MediaBrowser.MediaItem(new MediaDescription.Builder()
+                .setMediaId(description.getMediaId())
+                .setTitle(description.getTitle())
+                .setSubtitle(description.getSubtitle())
+                .setDescription(description.getDescription())
+                .setIconUri(description.getIconUri())
+                .setExtras(extras)
+                .build(), MediaBrowser.MediaItem.FLAG_PLAYABLE);
+    }
+
+    private static CharSequence truncate(CharSequence text) {
+        if (TextUtils.isEmpty(text) || text.length() <= MAX_TEXT_LENGTH) {
+            return text;
+        }
+        return text.subSequence(0, MAX_TEXT_LENGTH - 1) + "\u2026";
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.media.MediaMetadata;
+import android.media.session.PlaybackState;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaQueueItem;
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.RemoteMediaPlayer;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link RemotePlayback} on a Cast receiver running the default media receiver, over a
+ * connected {@link GoogleApiClient}. {@link CastRouteController} creates it when the user picks a
+ * Cast route.
+ * <p/>
+ * The receiver streams items from {@link MusicLibrary#getRemoteSongUri}. Tracks found by
+ * {@link LibraryScanner} only exist on the device, so the receiver reports an error for them.
+ * <p/>
+ * Commands come from the playback thread and status updates arrive on the main thread, so the
+ * state used to tell updates apart is guarded by this instance.
+ */
+public class CastRemotePlayback implements RemotePlayback,
+        RemoteMediaPlayer.OnStatusUpdatedListener {
+
+    private static final String TAG = "CastRemotePlayback";
+
+    private final GoogleApiClient mApiClient;
+    private final RemoteMediaPlayer mPlayer = new RemoteMediaPlayer();
+    private volatile Listener mListener;
+    // Item id and player state the receiver reported last, guarded by this
+    private int mCurrentItemId = MediaQueueItem.INVALID_ITEM_ID;
+    private int mPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN;
+
+    public CastRemotePlayback(GoogleApiClient apiClient) {
+        mApiClient = apiClient;
+        mPlayer.setOnStatusUpdatedListener(this);
+        try {
+            Cast.CastApi.setMessageReceivedCallbacks(apiClient, mPlayer.getNamespace(), mPlayer);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to listen to the receiver", e);
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void load(List<String> mediaIds, long position, boolean autoplay) {
+        MediaQueueItem[] items = new MediaQueueItem[mediaIds.size()];
+        for (int i = 0; i < items.length; i++) {
+            MediaQueueItem.Builder builder = new MediaQueueItem.Builder(
+                    createMediaInfo(mediaIds.get(i))).setAutoplay(true);
+            if (i == 0) {
+                builder.setStartTime(position / 1000.0).setAutoplay(autoplay);
+            }
+            items[i] = builder.build();
+        }
+        synchronized (this) {
+            // The first status of the new queue must get through even if it repeats the state
+            // of the previous one.
+            mCurrentItemId = MediaQueueItem.INVALID_ITEM_ID;
+            mPlayerState = MediaStatus.PLAYER_STATE_UNKNOWN;
+        }
+        mPlayer.queueLoad(mApiClient, items, 0, MediaStatus.REPEAT_MODE_REPEAT_OFF, null);
+    }
+
+    @Override
+    public void jumpTo(int index) {
+        MediaStatus status = mPlayer.getMediaStatus();
+        if (status == null || index >= status.getQueueItemCount()) {
+            return;
+        }
+        mPlayer.queueJumpToItem(mApiClient, status.getQueueItem(index).getItemId(), null);
+    }
+
+    @Override
+    public void play() {
+        mPlayer.play(mApiClient);
+    }
+
+    @Override
+    public void pause() {
+        mPlayer.pause(mApiClient);
+    }
+
+    @Override
+    public void seekTo(long position) {
+        mPlayer.seek(mApiClient, position);
+    }
+
+    @Override
+    public void stop() {
+        mPlayer.stop(mApiClient);
+    }
+
+    /**
+     * Called by the owner of the connection when the receiver application went away.
+     */
+    public void onApplicationDisconnected() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onDisconnected();
+        }
+    }
+
+    @Override
+    public synchronized void onStatusUpdated() {
+        Listener listener = mListener;
+        MediaStatus status = mPlayer.getMediaStatus();
+        if (listener == null || status == null) {
+            return;
+        }
+        int itemId = status.getCurrentItemId();
+        if (itemId != mCurrentItemId && itemId != MediaQueueItem.INVALID_ITEM_ID) {
+            int previousItemId = mCurrentItemId;
+            mCurrentItemId = itemId;
+            if (previousItemId != MediaQueueItem.INVALID_ITEM_ID) {
+                listener.onItemChanged(status.getIndexById(itemId));
+            }
+        }
+        int playerState = status.getPlayerState();
+        if (playerState == mPlayerState) {
+            // Only the position moved, which the playback manager extrapolates anyway.
+            return;
+        }
+        mPlayerState = playerState;
+        switch (playerState) {
+            case MediaStatus.PLAYER_STATE_PLAYING:
+                listener.onStatusChanged(PlaybackState.STATE_PLAYING, status.getStreamPosition());
+                break;
+            case MediaStatus.PLAYER_STATE_PAUSED:
+                listener.onStatusChanged(PlaybackState.STATE_PAUSED, status.getStreamPosition());
+                break;
+            case MediaStatus.PLAYER_STATE_BUFFERING:
+                listener.onStatusChanged(PlaybackState.STATE_BUFFERING,
+                        status.getStreamPosition());
+                break;
+            case MediaStatus.PLAYER_STATE_IDLE:
+                if (status.getIdleReason() == MediaStatus.IDLE_REASON_FINISHED) {
+                    listener.onQueueFinished();
+                } else if (status.getIdleReason() == MediaStatus.IDLE_REASON_ERROR) {
+                    listener.onStatusChanged(PlaybackState.STATE_ERROR, 0);
+                }
+                break;
+        }
+    }
+
+    private static MediaInfo createMediaInfo(String mediaId) {
+        MediaMetadata metadata = MusicLibrary.getMetadata(mediaId);
+        com.google.android.gms.cast.MediaMetadata castMetadata =
+                new com.google.android.gms.cast.MediaMetadata(
+                        com.google.android.gms.cast.MediaMetadata.MEDIA_TYPE_MUSIC_TRACK);
+        castMetadata.putString(com.google.android.gms.cast.MediaMetadata.KEY_TITLE,
+                metadata.getString(MediaMetadata.METADATA_KEY_TITLE));
+        castMetadata.putString(com.google.android.gms.cast.MediaMetadata.KEY_ARTIST,
+                metadata.getString(MediaMetadata.METADATA_KEY_ARTIST));
+        castMetadata.putString(com.google.android.gms.cast.MediaMetadata.KEY_ALBUM_TITLE,
+                metadata.getString(MediaMetadata.METADATA_KEY_ALBUM));
+        return new MediaInfo.Builder(MusicLibrary.getRemoteSongUri(mediaId))
+                .setStreamType(MediaInfo.STREAM_TYPE_BUFFERED)
+                .setContentType("audio/mpeg")
+                .setMetadata(castMetadata)
+                .build();
+    }
+}
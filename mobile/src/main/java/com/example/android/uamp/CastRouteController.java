@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v7.media.MediaRouteSelector;
+import android.support.v7.media.MediaRouter;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.cast.CastMediaControlIntent;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+
+/**
+ * Connects to the Cast route the user selects and hands the resulting
+ * {@link CastRemotePlayback} to a {@link Listener}, which switches playback over to it.
+ * <p/>
+ * Routes are discovered in the playback process, so controllers select one by id with
+ * {@link #CUSTOM_ACTION_CAST}; a route selected in this process directly is picked up the same
+ * way. Selecting the default route, or losing the receiver, ends the remote playback.
+ * <p/>
+ * All methods and callbacks run on the main thread.
+ */
+public class CastRouteController {
+
+    private static final String TAG = "CastRouteController";
+
+    // Custom session action that casts to the route with the id in EXTRA_ROUTE_ID, or back to
+    // the device without it
+    public static final String CUSTOM_ACTION_CAST = "com.example.android.uamp.CAST";
+    public static final String EXTRA_ROUTE_ID = "com.example.android.uamp.EXTRA_ROUTE_ID";
+
+    private static final String RECEIVER_APPLICATION_ID =
+            CastMediaControlIntent.DEFAULT_MEDIA_RECEIVER_APPLICATION_ID;
+
+    private final Context mContext;
+    private final MediaRouter mRouter;
+    private final MediaRouteSelector mSelector;
+    private final Listener mListener;
+    private GoogleApiClient mApiClient;
+    private CastRemotePlayback mRemote;
+
+    public CastRouteController(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mRouter = MediaRouter.getInstance(mContext);
+        mSelector = new MediaRouteSelector.Builder()
+                .addControlCategory(CastMediaControlIntent.categoryForCast(RECEIVER_APPLICATION_ID))
+                .build();
+    }
+
+    /**
+     * Starts discovering Cast routes, so that they can be selected by id.
+     */
+    public void start() {
+        mRouter.addCallback(mSelector, mRouterCallback,
+                MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY);
+    }
+
+    /**
+     * Selects the Cast route with the given id, or the default route if it is null. Unknown ids
+     * are ignored.
+     */
+    public void selectRoute(String routeId) {
+        if (routeId == null) {
+            mRouter.getDefaultRoute().select();
+            return;
+        }
+        for (MediaRouter.RouteInfo route : mRouter.getRoutes()) {
+            if (route.getId().equals(routeId) && route.matchesSelector(mSelector)) {
+                route.select();
+                return;
+            }
+        }
+        Log.w(TAG, "No Cast route " + routeId);
+    }
+
+    /**
+     * Stops discovery and disconnects from the receiver. Doesn't call the listener.
+     */
+    public void release() {
+        mRouter.removeCallback(mRouterCallback);
+        disconnect();
+    }
+
+    private void connect(CastDevice device) {
+        disconnect();
+        Cast.CastOptions options = Cast.CastOptions.builder(device, mCastListener).build();
+        final GoogleApiClient apiClient = new GoogleApiClient.Builder(mContext)
+                .addApi(Cast.API, options)
+                .build();
+        apiClient.registerConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+            @Override
+            public void onConnected(Bundle connectionHint) {
+                if (apiClient != mApiClient || mRemote != null) {
+                    return;
+                }
+                Cast.CastApi.launchApplication(apiClient, RECEIVER_APPLICATION_ID)
+                        .setResultCallback(new ResultCallback<Cast.ApplicationConnectionResult>() {
+                            @Override
+                            public void onResult(Cast.ApplicationConnectionResult result) {
+                                onApplicationLaunched(apiClient, result);
+                            }
+                        });
+            }
+
+            @Override
+            public void onConnectionSuspended(int cause) {
+                // The client reconnects on its own, and the receiver keeps playing meanwhile.
+            }
+        });
+        apiClient.registerConnectionFailedListener(
+                new GoogleApiClient.OnConnectionFailedListener() {
+                    @Override
+                    public void onConnectionFailed(ConnectionResult result) {
+                        if (apiClient == mApiClient) {
+                            Log.w(TAG, "Unable to connect to the receiver: " + result);
+                            mRouter.getDefaultRoute().select();
+                        }
+                    }
+                });
+        mApiClient = apiClient;
+        apiClient.connect();
+    }
+
+    private void onApplicationLaunched(GoogleApiClient apiClient,
+            Cast.ApplicationConnectionResult result) {
+        if (apiClient != mApiClient) {
+            return;
+        }
+        if (!result.getStatus().isSuccess()) {
+            Log.w(TAG, "Unable to launch the receiver: " + result.getStatus());
+            mRouter.getDefaultRoute().select();
+            return;
+        }
+        mRemote = new CastRemotePlayback(apiClient);
+        mListener.onRemoteConnected(mRemote);
+    }
+
+    private void disconnect() {
+        if (mApiClient == null) {
+            return;
+        }
+        if (mRemote != null && mApiClient.isConnected()) {
+            Cast.CastApi.stopApplication(mApiClient);
+        }
+        mApiClient.disconnect();
+        mApiClient = null;
+        mRemote = null;
+    }
+
+    private final MediaRouter.Callback mRouterCallback = new MediaRouter.Callback() {
+        @Override
+        public void onRouteSelected(MediaRouter router, MediaRouter.RouteInfo route) {
+            CastDevice device = CastDevice.getFromBundle(route.getExtras());
+            if (device != null) {
+                connect(device);
+            }
+        }
+
+        @Override
+        public void onRouteUnselected(MediaRouter router, MediaRouter.RouteInfo route) {
+            if (mApiClient != null) {
+                boolean connected = mRemote != null;
+                disconnect();
+                if (connected) {
+                    mListener.onRemoteDisconnected();
+                }
+            }
+        }
+    };
+
+    private final Cast.Listener mCastListener = new Cast.Listener() {
+        @Override
+        public void onApplicationDisconnected(int statusCode) {
+            CastRemotePlayback remote = mRemote;
+            mRemote = null;
+            if (remote != null) {
+                // The playback manager pauses locally at the position the receiver was at.
+                remote.onApplicationDisconnected();
+            }
+            mRouter.getDefaultRoute().select();
+        }
+    };
+
+    public interface Listener {
+        /**
+         * Called when the receiver on the selected route is ready to play.
+         */
+        void onRemoteConnected(RemotePlayback remote);
+
+        /**
+         * Called when the user selected another route while connected to a receiver.
+         */
+        void onRemoteDisconnected();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records which children of each browse node were added, updated or removed, under a per node
+ * version counter. Subscribers that know the version they last loaded can ask for just the
+ * changes since then by subscribing to the id returned by {@link #getDeltaId}; the listener
+ * tells the service which nodes to call notifyChildrenChanged for.
+ * <p/>
+ * Only the most recent {@link #MAX_CHANGES} changes per node are kept, or fewer after
+ * {@link #setCapacity}. Older versions can't be served as a delta and clients have to reload the
+ * node.
+ */
+public class CatalogChangeLog {
+
+    public static final int CHANGE_ADDED = 1;
+    public static final int CHANGE_UPDATED = 2;
+    public static final int CHANGE_REMOVED = 3;
+
+    // Extras of the root and of delta items
+    public static final String EXTRA_VERSION = "com.example.android.uamp.EXTRA_CATALOG_VERSION";
+    public static final String EXTRA_CHANGE = "com.example.android.uamp.EXTRA_CATALOG_CHANGE";
+
+    private static final int MAX_CHANGES = 1024;
+    private static final String DELTA_ID_PREFIX = "__DELTA__/";
+
+    private final Map<String, Node> mNodes = new HashMap<>();
+    private int mCapacity = MAX_CHANGES;
+    private volatile Listener mListener;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Records one batch of changes to the children of {@code parentId} under a new version.
+     */
+    public void record(String parentId, int change, Collection<String> mediaIds) {
+        if (mediaIds.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            Node node = mNodes.get(parentId);
+            if (node == null) {
+                node = new Node();
+                mNodes.put(parentId, node);
+            }
+            node.version++;
+            for (String mediaId : mediaIds) {
+                node.changes.add(new Change(node.version, change, mediaId));
+            }
+            node.trimTo(mCapacity);
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onChildrenChanged(parentId);
+        }
+    }
+
+    /**
+     * Sets how many changes are kept per node, at most {@link #MAX_CHANGES}.
+     */
+    public synchronized void setCapacity(int capacity) {
+        mCapacity = Math.max(0, Math.min(MAX_CHANGES, capacity));
+        trimTo(mCapacity);
+    }
+
+    /**
+     * Drops the oldest changes until each node keeps at most {@code maxChanges}. Later changes
+     * are kept up to the capacity again.
+     */
+    public synchronized void trimTo(int maxChanges) {
+        for (Node node : mNodes.values()) {
+            node.trimTo(maxChanges);
+        }
+    }
+
+    /**
+     * Returns the number of changes kept over all nodes.
+     */
+    public synchronized int getChangeCount() {
+        int count = 0;
+        for (Node node : mNodes.values()) {
+            count += node.changes.size();
+        }
+        return count;
+    }
+
+    public synchronized long getVersion(String parentId) {
+        Node node = mNodes.get(parentId);
+        return node == null ? 0 : node.version;
+    }
+
+    /**
+     * Returns the changes made to the children of {@code parentId} after {@code version}, one
+     * per media id with the latest change winning, or null if they are no longer known.
+     */
+    public synchronized List<Change> getChangesSince(String parentId, long version) {
+        Node node = mNodes.get(parentId);
+        if (node == null) {
+            return new ArrayList<>();
+        }
+        if (version < node.oldestVersion) {
+            return null;
+        }
+        Map<String, Change> latest = new LinkedHashMap<>();
+        Iterator<Change> changes = node.changes.descendingIterator();
+        while (changes.hasNext()) {
+            Change change = changes.next();
+            if (change.version <= version) {
+                break;
+            }
+            Change newer = latest.get(change.mediaId);
+            if (newer == null) {
+                latest.put(change.mediaId, change);
+            } else if (change.change == CHANGE_ADDED && newer.change == CHANGE_UPDATED) {
+                // Added and then updated is still an addition for this subscriber.
+                latest.put(change.mediaId, new Change(newer.version, CHANGE_ADDED, newer.mediaId));
+            }
+        }
+        return new ArrayList<>(latest.values());
+    }
+
+    /**
+     * Returns the id a client subscribes to for the changes of {@code parentId} since
+     * {@code version}.
+     */
+    public static String getDeltaId(String parentId, long version) {
+        return DELTA_ID_PREFIX + version + "/" + parentId;
+    }
+
+    public static boolean isDeltaId(String mediaId) {
+        return mediaId != null && mediaId.startsWith(DELTA_ID_PREFIX);
+    }
+
+    /**
+     * Returns the parent id encoded in a delta id.
+     */
+    public static String getDeltaParentId(String deltaId) {
+        String[] parts = deltaId.substring(DELTA_ID_PREFIX.length()).split("/", 2);
+        return parts.length == 2 ? parts[1] : "";
+    }
+
+    /**
+     * Returns the version encoded in a delta id, or -1 if it is malformed.
+     */
+    public static long getDeltaVersion(String deltaId) {
+        String[] parts = deltaId.substring(DELTA_ID_PREFIX.length()).split("/", 2);
+        try {
+            return Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static final class Change {
+        public final long version;
+        public final int change;
+        public final String mediaId;
+
+        Change(long version, int change, String mediaId) {
+            this.version = version;
+            this.change = change;
+            this.mediaId = mediaId;
+        }
+    }
+
+    private static final class Node {
+        long version;
+        // Version of the newest change that was dropped from the log
+        long oldestVersion;
+        final ArrayDeque<Change> changes = new ArrayDeque<>();
+
+        void trimTo(int maxChanges) {
+            while (changes.size() > maxChanges) {
+                oldestVersion = changes.poll().version;
+            }
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that recorded the change.
+         */
+        void onChildrenChanged(String parentId);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.media.MediaMetadata;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable version of the in-memory tracks of {@link MusicLibrary}. Readers use whatever
+ * snapshot they got without locking; writers build a modified copy and publish it, so a reader
+ * never sees a half applied change.
+ * <p/>
+ * Tracks are numbered by a {@link MediaIdTable} and their values kept in parallel arrays, so
+ * looking up a resource id is an array index without boxing or allocation.
+ */
+final class CatalogSnapshot {
+
+    static final CatalogSnapshot EMPTY = new CatalogSnapshot(new MediaIdTable(new String[0]),
+            new MediaMetadata[0], new int[0], new int[0]);
+
+    private final MediaIdTable mMediaIds;
+    // Indexed by ordinal, in catalog order
+    private final MediaMetadata[] mMetadata;
+    private final int[] mMusicRes;
+    private final int[] mAlbumRes;
+    private final List<MediaMetadata> mAllMetadata;
+
+    private CatalogSnapshot(MediaIdTable mediaIds, MediaMetadata[] metadata, int[] musicRes,
+            int[] albumRes) {
+        mMediaIds = mediaIds;
+        mMetadata = metadata;
+        mMusicRes = musicRes;
+        mAlbumRes = albumRes;
+        mAllMetadata = Collections.unmodifiableList(Arrays.asList(metadata));
+    }
+
+    /**
+     * Returns a copy with the track added at the end, or replaced if it exists.
+     */
+    CatalogSnapshot withTrack(MediaMetadata metadata, int musicResId, int albumArtResId) {
+        String mediaId = metadata.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
+        int ordinal = mMediaIds.getOrdinal(mediaId);
+        MediaIdTable mediaIds = mMediaIds;
+        int size = mMetadata.length;
+        if (ordinal == MediaIdTable.NOT_FOUND) {
+            mediaIds = mMediaIds.with(mediaId);
+            ordinal = size++;
+        }
+        MediaMetadata[] newMetadata = Arrays.copyOf(mMetadata, size);
+        int[] newMusicRes = Arrays.copyOf(mMusicRes, size);
+        int[] newAlbumRes = Arrays.copyOf(mAlbumRes, size);
+        newMetadata[ordinal] = metadata;
+        newMusicRes[ordinal] = musicResId;
+        newAlbumRes[ordinal] = albumArtResId;
+        return new CatalogSnapshot(mediaIds, newMetadata, newMusicRes, newAlbumRes);
+    }
+
+    /**
+     * Returns a copy with the metadata of an existing track replaced.
+     */
+    CatalogSnapshot withMetadata(MediaMetadata metadata) {
+        int ordinal = mMediaIds.getOrdinal(
+                metadata.getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
+        if (ordinal == MediaIdTable.NOT_FOUND) {
+            return this;
+        }
+        MediaMetadata[] newMetadata = mMetadata.clone();
+        newMetadata[ordinal] = metadata;
+        return new CatalogSnapshot(mMediaIds, newMetadata, mMusicRes, mAlbumRes);
+    }
+
+    int size() {
+        return mMetadata.length;
+    }
+
+    String getMediaId(int ordinal) {
+        return mMediaIds.getMediaId(ordinal);
+    }
+
+    int getOrdinal(String mediaId) {
+        return mMediaIds.getOrdinal(mediaId);
+    }
+
+    MediaMetadata getMetadata(String mediaId) {
+        int ordinal = mMediaIds.getOrdinal(mediaId);
+        return ordinal != MediaIdTable.NOT_FOUND ? mMetadata[ordinal] : null;
+    }
+
+    List<MediaMetadata> getAllMetadata() {
+        return mAllMetadata;
+    }
+
+    int getMusicRes(String mediaId) {
+        int ordinal = mMediaIds.getOrdinal(mediaId);
+        return ordinal != MediaIdTable.NOT_FOUND ? mMusicRes[ordinal] : 0;
+    }
+
+    int getAlbumRes(String mediaId) {
+        int ordinal = mMediaIds.getOrdinal(mediaId);
+        return ordinal != MediaIdTable.NOT_FOUND ? mAlbumRes[ordinal] : 0;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+/**
+ * The schema of {@link MusicDatabase} and the statements behind browsing, metadata lookups,
+ * search and queues. Kept free of the Android framework, so the benchmarks run the same SQL
+ * against SQLite on the JVM.
+ */
+final class CatalogSql {
+
+    static final String CREATE_TRACKS = "CREATE TABLE tracks ("
+            + "_id INTEGER PRIMARY KEY, "
+            + "path TEXT NOT NULL UNIQUE, "
+            + "last_modified INTEGER NOT NULL, "
+            + "size INTEGER NOT NULL, "
+            + "title TEXT, "
+            + "artist TEXT, "
+            + "album TEXT, "
+            + "genre TEXT, "
+            + "duration INTEGER NOT NULL, "
+            + "replay_gain INTEGER, "
+            + "peak INTEGER)";
+    static final String CREATE_TITLE_INDEX =
+            "CREATE INDEX tracks_title ON tracks (title COLLATE NOCASE)";
+    static final String CREATE_GENRE_INDEX =
+            "CREATE INDEX tracks_genre ON tracks (genre COLLATE NOCASE)";
+    static final String CREATE_ARTIST_INDEX =
+            "CREATE INDEX tracks_artist ON tracks (artist COLLATE NOCASE)";
+    static final String CREATE_ALBUM_INDEX =
+            "CREATE INDEX tracks_album ON tracks (album COLLATE NOCASE)";
+    // External content FTS table, kept in sync with tracks by triggers
+    static final String CREATE_SEARCH = "CREATE VIRTUAL TABLE tracks_search"
+            + " USING fts4(content=\"tracks\", title, artist, album, genre)";
+    static final String CREATE_INSERT_TRIGGER =
+            "CREATE TRIGGER tracks_after_insert AFTER INSERT ON tracks BEGIN "
+            + "INSERT INTO tracks_search (docid, title, artist, album, genre) "
+            + "VALUES (new._id, new.title, new.artist, new.album, new.genre); END";
+    static final String CREATE_DELETE_TRIGGER =
+            "CREATE TRIGGER tracks_before_delete BEFORE DELETE ON tracks BEGIN "
+            + "DELETE FROM tracks_search WHERE docid = old._id; END";
+
+    // Columns read into MediaMetadata, in the order of the INDEX constants below
+    static final String METADATA_COLUMNS =
+            "path, title, artist, album, genre, duration, replay_gain, peak";
+    static final int INDEX_PATH = 0;
+    static final int INDEX_TITLE = 1;
+    static final int INDEX_ARTIST = 2;
+    static final int INDEX_ALBUM = 3;
+    static final int INDEX_GENRE = 4;
+    static final int INDEX_DURATION = 5;
+    static final int INDEX_REPLAY_GAIN = 6;
+    static final int INDEX_PEAK = 7;
+
+    static final String INSERT_TRACK = "INSERT INTO tracks"
+            + " (path, last_modified, size, title, artist, album, genre, duration)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    static final String QUERY_BY_PATH = "SELECT " + METADATA_COLUMNS
+            + " FROM tracks WHERE path = ?";
+    static final String QUERY_ALL = "SELECT " + METADATA_COLUMNS
+            + " FROM tracks ORDER BY title COLLATE NOCASE, _id LIMIT ? OFFSET ?";
+    static final String QUERY_SEARCH = "SELECT " + METADATA_COLUMNS
+            + " FROM tracks WHERE _id IN"
+            + " (SELECT docid FROM tracks_search WHERE tracks_search MATCH ?) LIMIT ?";
+    static final String QUERY_ALL_IDS =
+            "SELECT _id FROM tracks ORDER BY title COLLATE NOCASE, _id";
+    static final String QUERY_PATH = "SELECT path FROM tracks WHERE _id = ?";
+    static final String QUERY_ID = "SELECT _id FROM tracks WHERE path = ?";
+    // Position of a track in the order of QUERY_ALL_IDS, counted on the title index
+    static final String QUERY_TITLE_RANK = "SELECT"
+            + " (SELECT COUNT(*) FROM tracks WHERE title < t.title COLLATE NOCASE)"
+            + " + (SELECT COUNT(*) FROM tracks WHERE title = t.title COLLATE NOCASE"
+            + " AND _id < t._id)"
+            + " FROM tracks t WHERE path = ?";
+
+    private CatalogSql() {
+    }
+
+    /**
+     * Returns the FTS match expression of a free form query: every word as a prefix, or an
+     * empty string if no word is left.
+     */
+    static String toMatchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("\\s+")) {
+            // Drop FTS operators and quotes, the query comes straight from the user.
+            String term = word.replaceAll("[^\\p{L}\\p{N}]", "");
+            if (!term.isEmpty()) {
+                match.append(match.length() > 0 ? " " : "").append(term).append('*');
+            }
+        }
+        return match.toString();
+    }
+}
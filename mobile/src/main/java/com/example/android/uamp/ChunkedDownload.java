@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads one file over HTTP in fixed size chunks fetched with range requests over several
+ * connections at once, and verifies it before it shows up under its final name.
+ * <p/>
+ * The data goes into a {@code .part} file next to the target, and the chunks done so far into
+ * a {@code .state} file, so a download that is interrupted or fails continues with the missing
+ * chunks next time. The state also keeps the entity tag and the length, and a download whose
+ * file changed on the server starts over. Servers that don't support ranges are downloaded in
+ * one piece, without resume.
+ * <p/>
+ * The MD5 of the whole file is taken from an {@code x-goog-hash} header, as Cloud Storage
+ * sends with every response, or from {@code Content-MD5} on a full response. A download that
+ * doesn't match is deleted.
+ */
+final class ChunkedDownload {
+
+    private static final int TIMEOUT_MS = 15000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final URL mUrl;
+    private final File mTarget;
+    private final File mPart;
+    private final File mState;
+    private final int mChunkSize;
+    private final int mTimeoutMs;
+
+    // From probe()
+    private long mLength = -1;
+    private boolean mRanges;
+    private String mEntityTag = "";
+    private String mMd5 = "";
+
+    // Chunks on disk, guarded by itself
+    private BitSet mDone;
+    private int mChunkCount;
+
+    ChunkedDownload(URL url, File target, int chunkSize) {
+        this(url, target, chunkSize, TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a download whose connections give up after {@code timeoutMs} without data. For
+     * tests.
+     */
+    ChunkedDownload(URL url, File target, int chunkSize, int timeoutMs) {
+        mUrl = url;
+        mTarget = target;
+        mPart = new File(target.getPath() + ".part");
+        mState = new File(target.getPath() + ".state");
+        mChunkSize = chunkSize;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Asks the server for the length of the file and whether it serves ranges. Returns the
+     * length, or -1 if the server doesn't say.
+     */
+    long probe() throws IOException {
+        HttpURLConnection connection = open();
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                mRanges = true;
+                String range = connection.getHeaderField("Content-Range");
+                int slash = range == null ? -1 : range.lastIndexOf('/');
+                mLength = slash < 0 ? -1 : parseLong(range.substring(slash + 1));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                mRanges = false;
+                mLength = connection.getContentLength();
+                mMd5 = nonNull(connection.getHeaderField("Content-MD5"));
+            } else {
+                throw new IOException("HTTP " + code + " for " + mUrl);
+            }
+            mRanges &= mLength > 0;
+            mEntityTag = nonNull(connection.getHeaderField("ETag"));
+            String googHash = connection.getHeaderField("x-goog-hash");
+            if (googHash != null) {
+                for (String hash : googHash.split(",")) {
+                    hash = hash.trim();
+                    if (hash.startsWith("md5=")) {
+                        mMd5 = hash.substring(4);
+                    }
+                }
+            }
+            return mLength;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Downloads what is missing over up to {@code connections} connections on
+     * {@code executor}, verifies the file and moves it to the target. Call {@link #probe()}
+     * first. Interrupting the calling thread stops the download, keeping the finished chunks.
+     */
+    void run(ExecutorService executor, int connections) throws IOException, InterruptedException {
+        if (!mRanges) {
+            downloadWhole();
+        } else {
+            downloadChunks(executor, connections);
+        }
+        verify();
+        if (!mPart.renameTo(mTarget)) {
+            throw new IOException("Unable to move " + mPart + " to " + mTarget);
+        }
+        mState.delete();
+    }
+
+    /**
+     * Returns the space taken by what a previous download left behind, which this download
+     * reuses.
+     */
+    long getPartialBytes() {
+        return mPart.length() + mState.length();
+    }
+
+    /**
+     * Deletes the target and anything a previous download left behind.
+     */
+    void delete() {
+        mTarget.delete();
+        mPart.delete();
+        mState.delete();
+    }
+
+    private void downloadWhole() throws IOException, InterruptedException {
+        mState.delete();
+        HttpURLConnection connection = open();
+        try {
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code + " for " + mUrl);
+            }
+            FileOutputStream out = new FileOutputStream(mPart);
+            try {
+                copy(connection.getInputStream(), out.getChannel(), 0, Long.MAX_VALUE);
+            } finally {
+                out.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void downloadChunks(ExecutorService executor, int connections)
+            throws IOException, InterruptedException {
+        mChunkCount = (int) ((mLength + mChunkSize - 1) / mChunkSize);
+        mDone = readState();
+        final List<Integer> missing = new ArrayList<>();
+        for (int chunk = mDone.nextClearBit(0); chunk < mChunkCount;
+                chunk = mDone.nextClearBit(chunk + 1)) {
+            missing.add(chunk);
+        }
+        RandomAccessFile file = new RandomAccessFile(mPart, "rw");
+        try {
+            file.setLength(mLength);
+            final FileChannel channel = file.getChannel();
+            final AtomicInteger next = new AtomicInteger();
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(connections, missing.size()); i++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        int index;
+                        while ((index = next.getAndIncrement()) < missing.size()) {
+                            downloadChunk(channel, missing.get(index));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            try {
+                for (Future<?> worker : workers) {
+                    worker.get();
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } finally {
+                // Stop the others on failure or interruption; their chunks start over next time.
+                for (Future<?> worker : workers) {
+                    worker.cancel(true);
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void downloadChunk(FileChannel channel, int chunk) throws IOException {
+        long start = (long) chunk * mChunkSize;
+        long end = Math.min(mLength, start + mChunkSize) - 1;
+        HttpURLConnection connection = open();
+        try {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            if (!mEntityTag.isEmpty()) {
+                // Fail rather than mix two versions of the file.
+                connection.setRequestProperty("If-Match", mEntityTag);
+            }
+            int code = connection.getResponseCode();
+            String range = connection.getHeaderField("Content-Range");
+            if (code != HttpURLConnection.HTTP_PARTIAL || range == null
+                    || !range.startsWith("bytes " + start + "-")) {
+                throw new IOException("HTTP " + code + " for chunk " + chunk + " of " + mUrl);
+            }
+            long copied = copy(connection.getInputStream(), channel, start, end - start + 1);
+            if (copied != end - start + 1) {
+                throw new IOException("Chunk " + chunk + " of " + mUrl + " ended early");
+            }
+        } finally {
+            connection.disconnect();
+        }
+        channel.force(false);
+        synchronized (mDone) {
+            mDone.set(chunk);
+            writeState();
+        }
+    }
+
+    private void verify() throws IOException {
+        if (mLength >= 0 && mPart.length() != mLength) {
+            delete();
+            throw new IOException("Expected " + mLength + " bytes from " + mUrl + ", got "
+                    + mPart.length());
+        }
+        if (mMd5.isEmpty()) {
+            return;
+        }
+        String md5 = md5(mPart);
+        if (!md5.equals(mMd5)) {
+            delete();
+            throw new IOException("Checksum mismatch for " + mUrl);
+        }
+    }
+
+    /**
+     * Returns the chunks a previous download of the same file finished.
+     */
+    private BitSet readState() {
+        BitSet done = new BitSet(mChunkCount);
+        if (!mState.exists() || !mPart.exists()) {
+            return done;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(mState));
+            try {
+                if (in.readLong() != mLength || !in.readUTF().equals(mEntityTag)
+                        || in.readInt() != mChunkSize) {
+                    return done;
+                }
+                byte[] bits = new byte[in.readInt()];
+                in.readFully(bits);
+                done.or(BitSet.valueOf(bits));
+                return done;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Unreadable, so start over.
+            return new BitSet(mChunkCount);
+        }
+    }
+
+    private void writeState() throws IOException {
+        File temp = new File(mState.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeLong(mLength);
+            out.writeUTF(mEntityTag);
+            out.writeInt(mChunkSize);
+            byte[] bits = mDone.toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mState)) {
+            throw new IOException("Unable to write " + mState);
+        }
+    }
+
+    private HttpURLConnection open() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        connection.setConnectTimeout(mTimeoutMs);
+        connection.setReadTimeout(mTimeoutMs);
+        // Lengths and hashes are of the file as stored.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    /**
+     * Copies up to {@code max} bytes to {@code channel} at {@code position}. Returns the number
+     * of bytes copied.
+     */
+    private static long copy(InputStream in, FileChannel channel, long position, long max)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long copied = 0;
+        try {
+            int read;
+            while (copied < max && (read = in.read(buffer, 0,
+                    (int) Math.min(buffer.length, max - copied))) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Left set, so callers can tell this from a timeout.
+                    throw new InterruptedIOException();
+                }
+                wrapped.clear().limit(read);
+                while (wrapped.hasRemaining()) {
+                    position += channel.write(wrapped, position);
+                }
+                copied += read;
+            }
+        } finally {
+            in.close();
+        }
+        return copied;
+    }
+
+    private static String md5(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toBase64(digest.digest());
+    }
+
+    /**
+     * Encodes like the MD5 headers. android.util.Base64 would only be a stub in JVM tests.
+     */
+    static String toBase64(byte[] bytes) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder result = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int n = (bytes[i] & 0xff) << 16;
+            if (i + 1 < bytes.length) {
+                n |= (bytes[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < bytes.length) {
+                n |= bytes[i + 2] & 0xff;
+            }
+            result.append(alphabet.charAt(n >> 18 & 63)).append(alphabet.charAt(n >> 12 & 63));
+            result.append(i + 1 < bytes.length ? alphabet.charAt(n >> 6 & 63) : '=');
+            result.append(i + 2 < bytes.length ? alphabet.charAt(n & 63) : '=');
+        }
+        return result.toString();
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+}
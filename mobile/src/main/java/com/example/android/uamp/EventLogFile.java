@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only binary files of playback events, rotated by size. Each file starts with a magic
+ * number and holds two kinds of records, each starting with a tag byte:
+ * <ul>
+ * <li>{@code 0}, a media id: its length as an unsigned short and its UTF-8 bytes. Media ids are
+ * numbered in the order they appear in the file.</li>
+ * <li>an event type: the number of the media id as an int, the position in milliseconds as an
+ * int and the wall clock time as a long.</li>
+ * </ul>
+ * Every file has its own numbering, so old files can be deleted on their own. A record cut off
+ * by a crash is dropped when the file is opened again. Not thread safe; used from the writer
+ * thread of {@link PlaybackEventLog}.
+ */
+final class EventLogFile implements EventRing.Consumer, Closeable {
+
+    private static final int MAGIC = 0x55414531;
+    private static final int TAG_MEDIA_ID = 0;
+    private static final int HEADER_BYTES = 4;
+    private static final int EVENT_BYTES = 1 + 4 + 4 + 8;
+    private static final String PREFIX = "events-";
+    private static final String SUFFIX = ".bin";
+
+    private final File mDir;
+    private final long mMaxFileBytes;
+    private final int mMaxFiles;
+    // Number of each media id in the current file
+    private final Map<String, Integer> mMediaIds = new HashMap<>();
+    private long mFileNumber;
+    private DataOutputStream mOut;
+    private long mSize;
+    private IOException mError;
+
+    EventLogFile(File dir, long maxFileBytes, int maxFiles) {
+        mDir = dir;
+        mMaxFileBytes = maxFileBytes;
+        mMaxFiles = maxFiles;
+    }
+
+    /**
+     * Replays the events of the retained files, oldest first, into {@code replay} and opens the
+     * newest file for appending.
+     */
+    void open(EventRing.Consumer replay) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+        long[] numbers = listFileNumbers();
+        if (numbers.length == 0) {
+            startFile(0);
+            return;
+        }
+        List<String> mediaIds = null;
+        long valid = 0;
+        for (long number : numbers) {
+            mediaIds = new ArrayList<>();
+            valid = read(getFile(number), mediaIds, replay);
+        }
+        mFileNumber = numbers[numbers.length - 1];
+        File file = getFile(mFileNumber);
+        if (valid == 0) {
+            startFile(mFileNumber);
+            return;
+        }
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+            truncate.setLength(valid);
+        } finally {
+            truncate.close();
+        }
+        for (int i = 0; i < mediaIds.size(); i++) {
+            mMediaIds.put(mediaIds.get(i), i);
+        }
+        mSize = valid;
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Buffers an event. Write errors are reported by the next {@link #flush()}.
+     */
+    @Override
+    public void onEvent(int type, String mediaId, int position, long time) {
+        if (mOut == null || mError != null) {
+            return;
+        }
+        try {
+            Integer number = mMediaIds.get(mediaId);
+            if (number == null) {
+                number = mMediaIds.size();
+                byte[] bytes = mediaId.getBytes(StandardCharsets.UTF_8);
+                mOut.writeByte(TAG_MEDIA_ID);
+                mOut.writeShort(bytes.length);
+                mOut.write(bytes);
+                mMediaIds.put(mediaId, number);
+                mSize += 3 + bytes.length;
+            }
+            mOut.writeByte(type);
+            mOut.writeInt(number);
+            mOut.writeInt(position);
+            mOut.writeLong(time);
+            mSize += EVENT_BYTES;
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Writes the buffered events and starts a new file once the current one is full, deleting
+     * the oldest ones past the limit.
+     */
+    void flush() throws IOException {
+        if (mError != null) {
+            IOException error = mError;
+            mError = null;
+            throw error;
+        }
+        if (mOut == null) {
+            return;
+        }
+        mOut.flush();
+        if (mSize >= mMaxFileBytes) {
+            mOut.close();
+            startFile(mFileNumber + 1);
+            long[] numbers = listFileNumbers();
+            for (int i = 0; i < numbers.length - mMaxFiles; i++) {
+                getFile(numbers[i]).delete();
+            }
+        }
+    }
+
+    long getFileNumber() {
+        return mFileNumber;
+    }
+
+    long getFileSize() {
+        return mSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    private void startFile(long number) throws IOException {
+        mFileNumber = number;
+        mMediaIds.clear();
+        mOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getFile(number))));
+        mOut.writeInt(MAGIC);
+        mSize = HEADER_BYTES;
+    }
+
+    private File getFile(long number) {
+        return new File(mDir, PREFIX + number + SUFFIX);
+    }
+
+    private long[] listFileNumbers() {
+        String[] names = mDir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    numbers[count] = Long.parseLong(
+                            name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                    count++;
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Reads the events of a file into {@code consumer}, collecting its media ids into
+     * {@code mediaIds}. Returns the length of the file up to the last complete record, or 0 if
+     * it isn't an event file.
+     */
+    static long read(File file, List<String> mediaIds, EventRing.Consumer consumer)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        long valid = 0;
+        try {
+            if (in.readInt() != MAGIC) {
+                return 0;
+            }
+            valid = HEADER_BYTES;
+            while (true) {
+                int tag = in.readUnsignedByte();
+                if (tag == TAG_MEDIA_ID) {
+                    byte[] bytes = new byte[in.readUnsignedShort()];
+                    in.readFully(bytes);
+                    mediaIds.add(new String(bytes, StandardCharsets.UTF_8));
+                    valid += 3 + bytes.length;
+                } else {
+                    int number = in.readInt();
+                    int position = in.readInt();
+                    long time = in.readLong();
+                    if (number < 0 || number >= mediaIds.size()) {
+                        // Corrupt; keep what came before.
+                        return valid;
+                    }
+                    consumer.onEvent(tag, mediaIds.get(number), position, time);
+                    valid += EVENT_BYTES;
+                }
+            }
+        } catch (EOFException e) {
+            // The end of the file, or a record cut off by a crash
+            return valid;
+        } finally {
+            in.close();
+        }
+    }
+}
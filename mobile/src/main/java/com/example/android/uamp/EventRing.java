@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer queue of playback events. Producers claim a slot
+ * with a compare-and-set and publish it with an ordered store, so {@link #offer} never blocks
+ * or allocates; when the consumer falls a whole ring behind, new events are dropped and
+ * counted rather than waited for.
+ */
+final class EventRing {
+
+    /**
+     * Receives drained events, on the consumer thread.
+     */
+    interface Consumer {
+        void onEvent(int type, String mediaId, int position, long time);
+    }
+
+    private final int mMask;
+    private final int[] mTypes;
+    private final String[] mMediaIds;
+    private final int[] mPositions;
+    private final long[] mTimes;
+    // Sequence + 1 of the event published in each slot
+    private final AtomicLongArray mPublished;
+    private final AtomicLong mClaimed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    // Sequence of the next event to drain, only written by the consumer
+    private volatile long mConsumed;
+
+    /**
+     * @param capacity a power of two
+     */
+    EventRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mTypes = new int[capacity];
+        mMediaIds = new String[capacity];
+        mPositions = new int[capacity];
+        mTimes = new long[capacity];
+        mPublished = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Adds an event from any thread. Returns false if the ring was full and it was dropped.
+     */
+    boolean offer(int type, String mediaId, int position, long time) {
+        long sequence;
+        do {
+            sequence = mClaimed.get();
+            if (sequence - mConsumed > mMask) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+        } while (!mClaimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mMask;
+        mTypes[slot] = type;
+        mMediaIds[slot] = mediaId;
+        mPositions[slot] = position;
+        mTimes[slot] = time;
+        mPublished.lazySet(slot, sequence + 1);
+        return true;
+    }
+
+    /**
+     * Hands every published event to {@code consumer}, oldest first, and frees their slots.
+     * Only called from the consumer thread. Returns the number of events drained.
+     */
+    int drain(Consumer consumer) {
+        long next = mConsumed;
+        long start = next;
+        int slot;
+        while (mPublished.get(slot = (int) next & mMask) == next + 1) {
+            consumer.onEvent(mTypes[slot], mMediaIds[slot], mPositions[slot], mTimes[slot]);
+            mMediaIds[slot] = null;
+            next++;
+            mConsumed = next;
+        }
+        return (int) (next - start);
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+}
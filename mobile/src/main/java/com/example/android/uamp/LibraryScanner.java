@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.MediaMetadataRetriever;
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds audio files on local storage and adds them to {@link MusicLibrary}. Tags (ID3, Vorbis
+ * comments, MP4 atoms) and durations are read with {@link MediaMetadataRetriever} on a bounded
+ * pool of background threads.
+ * <p/>
+ * The results are stored in {@link MusicDatabase} together with each file's modification time
+ * and size. A rescan only reads the headers of files whose fingerprint changed, so an unchanged
+ * library costs one directory walk. Files the platform cannot read are remembered the same way,
+ * so they are not retried until they change. Nothing is removed from the catalog while storage
+ * is not mounted.
+ */
+public class LibraryScanner {
+
+    private static final String TAG = "LibraryScanner";
+
+    // Prefix of the media ids of scanned tracks, followed by the absolute path
+    public static final String MEDIA_ID_PREFIX = "__FILE__";
+
+    // Session custom action asking for a scan, such as once the storage permission is granted
+    public static final String CUSTOM_ACTION_RESCAN = "com.example.android.uamp.RESCAN";
+
+    private static final int MAX_THREADS = 4;
+    // Tracks written per transaction, so that progress survives an interrupted scan
+    private static final int BATCH_SIZE = 500;
+
+    private static final String[] EXTENSIONS = {
+            ".mp3", ".m4a", ".aac", ".ogg", ".oga", ".opus", ".flac", ".wav"
+    };
+
+    private final Context mContext;
+    private final MusicDatabase mDatabase;
+    private final ExecutorService mScanExecutor;
+    private final ExecutorService mReaderPool;
+    private Listener mListener;
+
+    public LibraryScanner(Context context) {
+        mContext = context.getApplicationContext();
+        mDatabase = MusicDatabase.getInstance(mContext);
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        };
+        mScanExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        int threads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+        mReaderPool = Executors.newFixedThreadPool(Math.max(1, threads), threadFactory);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Rescans local storage in the background. The listener is called on the scan thread once
+     * the catalog is up to date.
+     */
+    public void scan() {
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mContext.checkPermission(Manifest.permission.READ_EXTERNAL_STORAGE,
+                        Process.myPid(), Process.myUid()) != PackageManager.PERMISSION_GRANTED) {
+                    Log.i(TAG, "No storage permission, keeping the previous catalog");
+                    return;
+                }
+                try {
+                    rescan();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onScanFinished();
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        mScanExecutor.shutdownNow();
+        mReaderPool.shutdownNow();
+    }
+
+    /**
+     * Waits for the scan stopped by {@link #shutdown} to end. For tests.
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mScanExecutor.awaitTermination(timeout, unit)
+                && mReaderPool.awaitTermination(timeout, unit);
+    }
+
+    private void rescan() throws InterruptedException {
+        // An unmounted or unreadable volume lists as empty, which must not read as every
+        // track having been deleted.
+        File root = Environment.getExternalStorageDirectory();
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())
+                || root.listFiles() == null) {
+            Log.i(TAG, "Storage not available, keeping the previous catalog");
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        collectAudioFiles(root, files);
+
+        Map<String, long[]> previous = mDatabase.getFingerprints();
+        Map<String, long[]> unreadable = mDatabase.getUnreadableFingerprints();
+        Set<String> changedPaths = new HashSet<>();
+        List<File> pendingFiles = new ArrayList<>();
+        List<Future<MusicDatabase.Track>> pending = new ArrayList<>();
+        for (final File file : files) {
+            String path = file.getAbsolutePath();
+            long[] fingerprint = previous.remove(path);
+            boolean inCatalog = fingerprint != null;
+            if (!inCatalog) {
+                fingerprint = unreadable.remove(path);
+            }
+            if (fingerprint == null || fingerprint[0] != file.lastModified()
+                    || fingerprint[1] != file.length()) {
+                if (inCatalog) {
+                    changedPaths.add(path);
+                }
+                pendingFiles.add(file);
+                pending.add(mReaderPool.submit(new Callable<MusicDatabase.Track>() {
+                    @Override
+                    public MusicDatabase.Track call() {
+                        return readTags(file);
+                    }
+                }));
+            }
+        }
+
+        List<MusicDatabase.Track> batch = new ArrayList<>(BATCH_SIZE);
+        List<MusicDatabase.Track> failed = new ArrayList<>();
+        for (int i = 0; i < pending.size(); i++) {
+            MusicDatabase.Track track = null;
+            try {
+                track = pending.get(i).get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Unable to read tags", e.getCause());
+            }
+            if (track != null) {
+                batch.add(track);
+            } else {
+                failed.add(newFingerprint(pendingFiles.get(i)));
+            }
+            if (batch.size() == BATCH_SIZE) {
+                writeBatch(batch, changedPaths);
+                batch.clear();
+            }
+        }
+        writeBatch(batch, changedPaths);
+        writeUnreadable(failed, changedPaths);
+        // Whatever is left in the previous catalog is gone from storage.
+        mDatabase.deleteTracks(previous.keySet());
+        mDatabase.deleteTracks(unreadable.keySet());
+        MusicLibrary.recordChanges(CatalogChangeLog.CHANGE_REMOVED,
+                toMediaIds(previous.keySet()));
+    }
+
+    /**
+     * Stores a batch of tracks and records them as added or, if their path was already in the
+     * catalog, as updated.
+     */
+    private void writeBatch(List<MusicDatabase.Track> batch, Set<String> changedPaths) {
+        mDatabase.replaceTracks(batch);
+        List<String> added = new ArrayList<>();
+        List<String> updated = new ArrayList<>();
+        for (MusicDatabase.Track track : batch) {
+            (changedPaths.contains(track.path) ? updated : added)
+                    .add(MEDIA_ID_PREFIX + track.path);
+        }
+        MusicLibrary.recordChanges(CatalogChangeLog.CHANGE_ADDED, added);
+        MusicLibrary.recordChanges(CatalogChangeLog.CHANGE_UPDATED, updated);
+    }
+
+    /**
+     * Stores the fingerprints of files whose tags could not be read. Those that were in the
+     * catalog before are removed from it.
+     */
+    private void writeUnreadable(List<MusicDatabase.Track> failed, Set<String> changedPaths) {
+        if (failed.isEmpty()) {
+            return;
+        }
+        mDatabase.replaceUnreadable(failed);
+        List<String> removed = new ArrayList<>();
+        for (MusicDatabase.Track file : failed) {
+            if (changedPaths.contains(file.path)) {
+                removed.add(MEDIA_ID_PREFIX + file.path);
+            }
+        }
+        MusicLibrary.recordChanges(CatalogChangeLog.CHANGE_REMOVED, removed);
+    }
+
+    private static MusicDatabase.Track newFingerprint(File file) {
+        MusicDatabase.Track track = new MusicDatabase.Track();
+        track.path = file.getAbsolutePath();
+        track.lastModified = file.lastModified();
+        track.size = file.length();
+        return track;
+    }
+
+    private static List<String> toMediaIds(Collection<String> paths) {
+        List<String> mediaIds = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            mediaIds.add(MEDIA_ID_PREFIX + path);
+        }
+        return mediaIds;
+    }
+
+    private static void collectAudioFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null || new File(dir, ".nomedia").exists()) {
+            return;
+        }
+        for (File child : children) {
+            if (child.getName().startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                collectAudioFiles(child, files);
+            } else if (isAudioFile(child.getName())) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static boolean isAudioFile(String name) {
+        String lowerCase = name.toLowerCase(Locale.US);
+        for (String extension : EXTENSIONS) {
+            if (lowerCase.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MusicDatabase.Track readTags(File file) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getAbsolutePath());
+            MusicDatabase.Track track = newFingerprint(file);
+            track.title = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+            if (track.title == null) {
+                String name = file.getName();
+                track.title = name.substring(0, name.lastIndexOf('.'));
+            }
+            track.artist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+            track.album = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+            track.genre = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
+            String duration =
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            track.duration = duration != null ? Long.parseLong(duration) : 0;
+            return track;
+        } catch (RuntimeException e) {
+            // Not a file the platform can read, leave it out of the library.
+            return null;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    public interface Listener {
+        void onScanFinished();
+    }
+}
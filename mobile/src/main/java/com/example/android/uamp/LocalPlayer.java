@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+/**
+ * The player of the current item when playing on this device. {@link PlaybackManager} creates
+ * one per item and drives it on the playback thread: {@link NativePlayer} plays through
+ * MediaPlayer, and {@link StretchPlayer} decodes and time-stretches the track itself for
+ * speeds MediaPlayer can't play at before API 23.
+ * <p/>
+ * A new player is prepared and paused at the start of the item. Listener methods are called
+ * on the looper of the thread that created the player.
+ */
+interface LocalPlayer {
+
+    void setListener(Listener listener);
+
+    void start();
+
+    void pause();
+
+    boolean isPlaying();
+
+    int getCurrentPosition();
+
+    /**
+     * Returns the duration in milliseconds, or -1 if it isn't known.
+     */
+    int getDuration();
+
+    /**
+     * Seeks to the position, in milliseconds, also while paused. Each seek is followed by
+     * {@link Listener#onSeekComplete}.
+     */
+    void seekTo(int position);
+
+    void setVolume(float volume);
+
+    /**
+     * Plays at {@code speed} from now on. Only called while playing.
+     */
+    void setSpeed(float speed);
+
+    /**
+     * Stops playback and frees the player. It can't be used afterwards.
+     */
+    void release();
+
+    interface Listener {
+        /**
+         * Called when the player played to the end of the item.
+         */
+        void onCompletion(LocalPlayer player);
+
+        /**
+         * Called when a seek completed.
+         */
+        void onSeekComplete(LocalPlayer player);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes ReplayGain style loudness normalization values for the tracks in
+ * {@link MusicLibrary}. Each track is decoded once on a single low priority background thread
+ * and measured with a {@link LoudnessMeter}. Results are stored into the catalog metadata and
+ * persisted as soon as a track is done, so an interrupted pass resumes where it stopped and
+ * tracks that were already analysed are skipped. Tracks in {@link MusicDatabase} keep their
+ * results there; the bundled tracks keep them in shared preferences.
+ */
+public class LoudnessAnalyzer {
+
+    private static final String TAG = "LoudnessAnalyzer";
+    private static final String PREFS_NAME = "loudness";
+
+    // ReplayGain 2.0 reference level
+    private static final double TARGET_LOUDNESS_LUFS = -18.0;
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final ThreadPoolExecutor mExecutor;
+
+    public LoudnessAnalyzer(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        // One worker, and at most one pass waiting behind the running one: a pass always looks
+        // at the whole library, so further requests would have nothing left to do.
+        mExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, TAG);
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Applies the stored results to the catalog and analyzes the remaining tracks. Call again
+     * when tracks are added to the library.
+     */
+    public void start() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                analyzeLibrary();
+            }
+        });
+    }
+
+    /**
+     * Stops the running pass after the current track. Finished tracks are kept.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Waits for the pass stopped by {@link #shutdown} to end. For tests.
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Applies the stored result of a track to the catalog.
+     *
+     * @return whether there was a stored result
+     */
+    private boolean restoreResult(String mediaId) {
+        if (MusicLibrary.isInDatabase(mediaId)) {
+            return false;
+        }
+        String[] values = mPreferences.getString(mediaId, "").split(":");
+        if (values.length != 2) {
+            return false;
+        }
+        MusicLibrary.setLoudness(mediaId,
+                Integer.parseInt(values[0]), Integer.parseInt(values[1]));
+        return true;
+    }
+
+    private void analyzeLibrary() {
+        for (String mediaId : MusicLibrary.getMediaIdsWithoutLoudness()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (restoreResult(mediaId)) {
+                continue;
+            }
+            try {
+                LoudnessMeter meter = measure(Uri.parse(MusicLibrary.getSongUri(mediaId)));
+                if (meter == null) {
+                    continue;
+                }
+                int gainMb = getGainMillibels(meter);
+                int peakMb = toMillibels(meter.getPeak());
+                MusicLibrary.setLoudness(mediaId, gainMb, peakMb);
+                if (!MusicLibrary.isInDatabase(mediaId)) {
+                    mPreferences.edit().putString(mediaId, gainMb + ":" + peakMb).apply();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Skip tracks we can't decode, they simply play without normalization.
+                Log.w(TAG, "Unable to analyze " + mediaId, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the gain that brings the track to the reference level without clipping.
+     */
+    private static int getGainMillibels(LoudnessMeter meter) {
+        double loudness = meter.getIntegratedLoudness();
+        if (loudness == LoudnessMeter.SILENCE) {
+            return 0;
+        }
+        int gainMb = (int) Math.round((TARGET_LOUDNESS_LUFS - loudness) * 100);
+        return Math.min(gainMb, -toMillibels(meter.getPeak()));
+    }
+
+    private static int toMillibels(double linear) {
+        if (linear <= 0) {
+            return Integer.MIN_VALUE / 2;
+        }
+        return (int) Math.round(2000 * Math.log10(linear));
+    }
+
+    /**
+     * Decodes the first audio track of {@code uri} to 16 bit PCM and measures it.
+     *
+     * @return the meter, or null if the stream has no audio or the pass was interrupted
+     */
+    private LoudnessMeter measure(Uri uri) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(mContext, uri, null);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                if (trackFormat.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) {
+                return null;
+            }
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            LoudnessMeter meter = new LoudnessMeter(
+                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                if (!inputDone) {
+                    int index = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(index, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                if (index >= 0) {
+                    ByteBuffer output = codec.getOutputBuffer(index);
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    meter.process(output.order(ByteOrder.nativeOrder()).asShortBuffer());
+                    codec.releaseOutputBuffer(index, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        return meter;
+                    }
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    meter = new LoudnessMeter(
+                            outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                            outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                }
+            }
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+}
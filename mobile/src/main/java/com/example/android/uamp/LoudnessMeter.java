@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures the integrated loudness (ITU-R BS.1770 / EBU R128, in LUFS) and the sample peak of
+ * interleaved 16 bit PCM. Samples are K-weighted, accumulated in 100ms sub-blocks, and the
+ * 400ms gating blocks (75% overlap) are formed from four consecutive sub-blocks once the whole
+ * stream has been seen.
+ * <p/>
+ * Feeding samples doesn't allocate, apart from occasionally growing the sub-block history.
+ */
+public class LoudnessMeter {
+
+    // Loudness reported for silence or streams shorter than one gating block
+    public static final double SILENCE = Double.NEGATIVE_INFINITY;
+
+    private static final double ABSOLUTE_GATE_LUFS = -70.0;
+    private static final double RELATIVE_GATE_LU = -10.0;
+    private static final int SUB_BLOCKS_PER_BLOCK = 4;
+
+    private final int mChannels;
+    private final int mSubBlockFrames;
+
+    // K-weighting: a high shelf followed by a high pass, one state set per channel
+    private final double[] mShelfB = new double[3];
+    private final double[] mShelfA = new double[3];
+    private final double[] mHighPassB = new double[3];
+    private final double[] mHighPassA = new double[3];
+    private final double[] mShelfState;
+    private final double[] mHighPassState;
+
+    private double mSubBlockSum;
+    private int mSubBlockFrameCount;
+    private int mChannel;
+    private double[] mSubBlocks = new double[1024];
+    private int mSubBlockCount;
+    private int mPeak;
+
+    public LoudnessMeter(int sampleRate, int channels) {
+        mChannels = channels;
+        mSubBlockFrames = sampleRate / 10;
+        mShelfState = new double[channels * 2];
+        mHighPassState = new double[channels * 2];
+
+        // Filter coefficients for an arbitrary sample rate, as derived by libebur128.
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10.0, gain / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        mShelfB[0] = (vh + vb * k / q + k * k) / a0;
+        mShelfB[1] = 2.0 * (k * k - vh) / a0;
+        mShelfB[2] = (vh - vb * k / q + k * k) / a0;
+        mShelfA[0] = 1.0;
+        mShelfA[1] = 2.0 * (k * k - 1.0) / a0;
+        mShelfA[2] = (1.0 - k / q + k * k) / a0;
+
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1.0 + k / q + k * k;
+        mHighPassB[0] = 1.0;
+        mHighPassB[1] = -2.0;
+        mHighPassB[2] = 1.0;
+        mHighPassA[0] = 1.0;
+        mHighPassA[1] = 2.0 * (k * k - 1.0) / a0;
+        mHighPassA[2] = (1.0 - k / q + k * k) / a0;
+    }
+
+    /**
+     * Feeds the remaining interleaved samples of {@code samples} to the meter.
+     */
+    public void process(ShortBuffer samples) {
+        while (samples.hasRemaining()) {
+            short sample = samples.get();
+            int magnitude = Math.abs((int) sample);
+            if (magnitude > mPeak) {
+                mPeak = magnitude;
+            }
+
+            double x = sample / 32768.0;
+            x = filter(x, mShelfB, mShelfA, mShelfState, mChannel);
+            x = filter(x, mHighPassB, mHighPassA, mHighPassState, mChannel);
+            mSubBlockSum += x * x;
+
+            if (++mChannel == mChannels) {
+                mChannel = 0;
+                if (++mSubBlockFrameCount == mSubBlockFrames) {
+                    addSubBlock(mSubBlockSum / mSubBlockFrames);
+                    mSubBlockSum = 0;
+                    mSubBlockFrameCount = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the gated integrated loudness in LUFS, or {@link #SILENCE}.
+     */
+    public double getIntegratedLoudness() {
+        int blocks = mSubBlockCount - SUB_BLOCKS_PER_BLOCK + 1;
+        if (blocks <= 0) {
+            return SILENCE;
+        }
+        double absoluteGate = energy(ABSOLUTE_GATE_LUFS);
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < blocks; i++) {
+            double z = blockEnergy(i);
+            if (z > absoluteGate) {
+                sum += z;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return SILENCE;
+        }
+        double relativeGate = energy(loudness(sum / count) + RELATIVE_GATE_LU);
+        sum = 0;
+        count = 0;
+        for (int i = 0; i < blocks; i++) {
+            double z = blockEnergy(i);
+            if (z > absoluteGate && z > relativeGate) {
+                sum += z;
+                count++;
+            }
+        }
+        return count == 0 ? SILENCE : loudness(sum / count);
+    }
+
+    /**
+     * Returns the sample peak relative to full scale, between 0 and 1.
+     */
+    public double getPeak() {
+        return mPeak / 32768.0;
+    }
+
+    private static double filter(double x, double[] b, double[] a, double[] state, int channel) {
+        // Transposed direct form II
+        int i = channel * 2;
+        double y = b[0] * x + state[i];
+        state[i] = b[1] * x - a[1] * y + state[i + 1];
+        state[i + 1] = b[2] * x - a[2] * y;
+        return y;
+    }
+
+    private void addSubBlock(double energy) {
+        if (mSubBlockCount == mSubBlocks.length) {
+            mSubBlocks = Arrays.copyOf(mSubBlocks, mSubBlocks.length * 2);
+        }
+        mSubBlocks[mSubBlockCount++] = energy;
+    }
+
+    private double blockEnergy(int block) {
+        double sum = 0;
+        for (int i = block; i < block + SUB_BLOCKS_PER_BLOCK; i++) {
+            sum += mSubBlocks[i];
+        }
+        return sum / SUB_BLOCKS_PER_BLOCK;
+    }
+
+    private static double loudness(double energy) {
+        return -0.691 + 10.0 * Math.log10(energy);
+    }
+
+    private static double energy(double loudness) {
+        return Math.pow(10.0, (loudness + 0.691) / 10.0);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.util.Arrays;
+
+/**
+ * Immutable map from media ids to dense ordinals 0..size-1, so per track values can be kept in
+ * parallel primitive arrays. Lookups use open addressing over an int array and don't allocate.
+ */
+final class MediaIdTable {
+
+    static final int NOT_FOUND = -1;
+
+    private final String[] mMediaIds;
+    // Ordinal + 1 of the id hashed to each slot, 0 for an empty slot
+    private final int[] mSlots;
+    private final int mMask;
+
+    /**
+     * @param mediaIds distinct media ids, in ordinal order
+     */
+    MediaIdTable(String[] mediaIds) {
+        mMediaIds = mediaIds;
+        // Power of two with a load factor of at most one half
+        int capacity = Integer.highestOneBit(Math.max(1, mediaIds.length) * 2 - 1) << 1;
+        mSlots = new int[capacity];
+        mMask = capacity - 1;
+        for (int ordinal = 0; ordinal < mediaIds.length; ordinal++) {
+            int slot = mix(mediaIds[ordinal].hashCode()) & mMask;
+            while (mSlots[slot] != 0) {
+                slot = (slot + 1) & mMask;
+            }
+            mSlots[slot] = ordinal + 1;
+        }
+    }
+
+    int size() {
+        return mMediaIds.length;
+    }
+
+    String getMediaId(int ordinal) {
+        return mMediaIds[ordinal];
+    }
+
+    /**
+     * Returns the ordinal of {@code mediaId}, or {@link #NOT_FOUND}.
+     */
+    int getOrdinal(String mediaId) {
+        if (mediaId == null) {
+            return NOT_FOUND;
+        }
+        int slot = mix(mediaId.hashCode()) & mMask;
+        int entry;
+        while ((entry = mSlots[slot]) != 0) {
+            String candidate = mMediaIds[entry - 1];
+            if (candidate == mediaId || candidate.equals(mediaId)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Returns a table with {@code mediaId} appended as the next ordinal.
+     */
+    MediaIdTable with(String mediaId) {
+        String[] mediaIds = Arrays.copyOf(mMediaIds, mMediaIds.length + 1);
+        // Interned, so lookups with the constants in the code succeed on the identity check.
+        mediaIds[mMediaIds.length] = mediaId.intern();
+        return new MediaIdTable(mediaIds);
+    }
+
+    // Spreads the similar hash codes of ids sharing a long prefix over the slots.
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -23,6 +23,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
@@ -31,8 +32,8 @@ import android.media.MediaMetadata;
 import android.media.session.MediaController;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.util.LruCache;
 
-import com.example.android.uamp.ui.MusicPlayerActivity;
 import com.example.android.uamp.utils.ResourceHelper;
 
 /**
@@ -66,10 +67,33 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
     private int mNotificationColor;
 
+    // Large icons by album art resource, so each is decoded once. Sized and trimmed by the
+    // MemoryBudget.
+    private final LruCache<Integer, Bitmap> mAlbumArt;
+    private final MemoryBudget.Cache mAlbumArtCache = new MemoryBudget.Cache() {
+        @Override
+        public long getSize() {
+            return mAlbumArt.size();
+        }
+
+        @Override
+        public void trimToSize(long maxSize) {
+            mAlbumArt.trimToSize((int) maxSize);
+        }
+    };
+
     private boolean mStarted = false;
 
     public MediaNotificationManager(MusicService service) {
         mService = service;
+        long maxArtBytes = MemoryBudget.getInstance(service)
+                .register("Notification art", 50, mAlbumArtCache);
+        mAlbumArt = new LruCache<Integer, Bitmap>((int) Math.min(Integer.MAX_VALUE, maxArtBytes)) {
+            @Override
+            protected int sizeOf(Integer resId, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
         updateSessionToken();
 
         mNotificationColor = ResourceHelper.getThemeColor(mService,
@@ -120,6 +144,14 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Gives the album art back to the memory budget. The manager can't be used afterwards.
+     */
+    public void release() {
+        MemoryBudget.getInstance(mService).unregister(mAlbumArtCache);
+        mAlbumArt.evictAll();
+    }
+
     /**
      * Removes the notification and stops tracking the session. If the session
      * was destroyed this has no effect.
@@ -178,8 +210,11 @@ public class MediaNotificationManager extends BroadcastReceiver {
     }
 
     private PendingIntent createContentIntent(MediaDescription description) {
-        Intent openUI = new Intent(mService, MusicPlayerActivity.class);
-        openUI.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        // Resolved through the package manager, so the playback process never loads the UI
+        // classes and the libraries behind them.
+        Intent openUI = mService.getPackageManager()
+                .getLaunchIntentForPackage(mService.getPackageName());
+        openUI.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
         return PendingIntent.getActivity(mService, REQUEST_CODE, openUI,
                 PendingIntent.FLAG_CANCEL_CURRENT);
     }
@@ -219,6 +254,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
         if (mMetadata == null || mPlaybackState == null) {
             return null;
         }
+        long start = StallMonitor.begin();
 
         Notification.Builder notificationBuilder = new Notification.Builder(mService);
         int playPauseButtonPosition = 0;
@@ -244,8 +280,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
 
         MediaDescription description = mMetadata.getDescription();
-        Bitmap albumArt = BitmapFactory.decodeResource(mService.getResources(),
-                MusicLibrary.getAlbumRes(description.getMediaId()));
+        Bitmap albumArt = getAlbumArt(MusicLibrary.getAlbumRes(description.getMediaId()));
 
         notificationBuilder
                 .setStyle(new Notification.MediaStyle()
@@ -261,7 +296,38 @@ public class MediaNotificationManager extends BroadcastReceiver {
                 .setContentText(description.getSubtitle())
                 .setLargeIcon(albumArt);
         setNotificationPlaybackState(notificationBuilder);
-        return notificationBuilder.build();
+        Notification notification = notificationBuilder.build();
+        StallMonitor.end("createNotification", start);
+        return notification;
+    }
+
+    /**
+     * Returns the album art scaled down to the size of a notification large icon. Playback
+     * state changes rebuild the notification, but art is only decoded when it isn't cached.
+     */
+    private Bitmap getAlbumArt(int albumArtResId) {
+        Bitmap albumArt = mAlbumArt.get(albumArtResId);
+        if (albumArt != null) {
+            return albumArt;
+        }
+        Resources resources = mService.getResources();
+        int size = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, albumArtResId, options);
+        options.inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (options.inSampleSize * 2)
+                >= size) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        long start = StallMonitor.begin();
+        albumArt = BitmapFactory.decodeResource(resources, albumArtResId, options);
+        StallMonitor.end("decodeAlbumArt", start);
+        if (albumArt != null) {
+            mAlbumArt.put(albumArtResId, albumArt);
+        }
+        return albumArt;
     }
 
     private void addPlayPauseAction(Notification.Builder builder) {
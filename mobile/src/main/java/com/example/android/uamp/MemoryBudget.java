@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The memory the in-memory caches of the process may use together, and the place they shrink
+ * from under memory pressure.
+ * <p/>
+ * The budget is a fraction of the heap limit reported by {@link ActivityManager#getMemoryClass},
+ * smaller on low-RAM devices such as watches. Each cache registers with a share of it, sizes
+ * itself from the returned limit and reports an estimate of what it holds. On
+ * {@link #onTrimMemory} every cache is trimmed to a fraction of its limit that depends on the
+ * trim level, down to nothing once the process is about to be killed, so the playback service
+ * gives memory back before the system reclaims the whole process. Trims are one-off: caches may
+ * grow back to their limit once the pressure is gone.
+ */
+public class MemoryBudget implements ComponentCallbacks2 {
+
+    // Part of the heap limit the caches may use together
+    private static final int BUDGET_DIVISOR = 8;
+    private static final int LOW_RAM_BUDGET_DIVISOR = 16;
+
+    private static MemoryBudget sInstance;
+
+    private final long mBudgetBytes;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private int mLastTrimLevel = -1;
+    private int mTrimCount;
+
+    /**
+     * A cache whose size counts against the budget. Trims are called on the main thread.
+     */
+    public interface Cache {
+        /**
+         * Returns an estimate of the bytes the cache holds, or 0 if it isn't known.
+         */
+        long getSize();
+
+        /**
+         * Drops entries until the cache holds at most {@code maxSize} bytes.
+         */
+        void trimToSize(long maxSize);
+    }
+
+    public static synchronized MemoryBudget getInstance(Context context) {
+        if (sInstance == null) {
+            Context application = context.getApplicationContext();
+            ActivityManager activityManager =
+                    (ActivityManager) application.getSystemService(Context.ACTIVITY_SERVICE);
+            long heapBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+            sInstance = new MemoryBudget(heapBytes / (activityManager.isLowRamDevice()
+                    ? LOW_RAM_BUDGET_DIVISOR : BUDGET_DIVISOR));
+            application.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drops the instance, so the next {@link #getInstance} creates one for the current
+     * application. For tests.
+     */
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    MemoryBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Registers a cache for trimming and returns the most it may hold.
+     *
+     * @param percent the cache's share of the budget
+     * @return the size limit of the cache in bytes
+     */
+    public synchronized long register(String name, int percent, Cache cache) {
+        Entry entry = new Entry(name, mBudgetBytes * percent / 100, cache);
+        mEntries.add(entry);
+        return entry.maxSize;
+    }
+
+    public synchronized void unregister(Cache cache) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.get(i).cache == cache) {
+                mEntries.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of registered caches. For tests.
+     */
+    synchronized int getCacheCount() {
+        return mEntries.size();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        float retained = getRetainedFraction(level);
+        List<Entry> entries;
+        synchronized (this) {
+            mLastTrimLevel = level;
+            if (retained >= 1) {
+                return;
+            }
+            mTrimCount++;
+            entries = new ArrayList<>(mEntries);
+        }
+        for (Entry entry : entries) {
+            entry.cache.trimToSize((long) (entry.maxSize * retained));
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Returns the part of its limit each cache keeps at a trim level.
+     */
+    static float getRetainedFraction(int level) {
+        switch (level) {
+            case TRIM_MEMORY_RUNNING_MODERATE:
+            case TRIM_MEMORY_BACKGROUND:
+                return 0.5f;
+            case TRIM_MEMORY_RUNNING_LOW:
+            case TRIM_MEMORY_MODERATE:
+                return 0.25f;
+            case TRIM_MEMORY_RUNNING_CRITICAL:
+            case TRIM_MEMORY_COMPLETE:
+                return 0f;
+            default:
+                // TRIM_MEMORY_UI_HIDDEN only concerns the UI, which drops its own views.
+                return level > TRIM_MEMORY_COMPLETE ? 0f : 1f;
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println(String.format(Locale.US,
+                "Memory budget: %d KB, %d trims, last trim level %d", mBudgetBytes / 1024,
+                mTrimCount, mLastTrimLevel));
+        for (Entry entry : mEntries) {
+            writer.println(String.format(Locale.US, "  %s: %d of %d KB", entry.name,
+                    entry.cache.getSize() / 1024, entry.maxSize / 1024));
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+        final long maxSize;
+        final Cache cache;
+
+        Entry(String name, long maxSize, Cache cache) {
+            this.name = name;
+            this.maxSize = maxSize;
+            this.cache = cache;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.media.MediaMetadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent catalog of the tracks found by {@link LibraryScanner}. Tracks are keyed by path;
+ * title is indexed for the title ordered listings, genre, artist and album for structured voice
+ * searches, and an FTS4 table mirrors the text columns for free form search. Files whose tags
+ * could not be read are kept with their fingerprint in a separate table, so that rescans skip
+ * them until they change.
+ * <p/>
+ * All queries use constant SQL, so SQLite compiles each of them once per connection and reuses
+ * it from the connection's statement cache; writes go through statements compiled once per
+ * batch inside a single transaction. Write-ahead logging lets browse queries run while a scan
+ * is writing.
+ */
+public class MusicDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "music.db";
+    private static final int DATABASE_VERSION = 3;
+
+    private static final String TABLE_UNREADABLE = "unreadable";
+
+    public static final String COLUMN_GENRE = "genre";
+    public static final String COLUMN_ARTIST = "artist";
+    public static final String COLUMN_ALBUM = "album";
+
+    // The statements shared with the benchmarks are in CatalogSql.
+    private static final String QUERY_FINGERPRINTS =
+            "SELECT path, last_modified, size FROM tracks";
+    private static final String QUERY_UNREADABLE_FINGERPRINTS =
+            "SELECT path, last_modified, size FROM unreadable";
+    private static final String QUERY_NOT_ANALYZED =
+            "SELECT path FROM tracks WHERE replay_gain IS NULL";
+    private static final String DELETE_TRACK = "DELETE FROM tracks WHERE path = ?";
+    private static final String INSERT_UNREADABLE = "INSERT OR REPLACE INTO unreadable"
+            + " (path, last_modified, size) VALUES (?, ?, ?)";
+    private static final String DELETE_UNREADABLE = "DELETE FROM unreadable WHERE path = ?";
+    private static final String UPDATE_LOUDNESS =
+            "UPDATE tracks SET replay_gain = ?, peak = ? WHERE path = ?";
+
+    private static MusicDatabase sInstance;
+
+    public static synchronized MusicDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MusicDatabase(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drops the instance, so the next {@link #getInstance} creates one for the current
+     * application. For tests.
+     */
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    private MusicDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CatalogSql.CREATE_TRACKS);
+        db.execSQL(CatalogSql.CREATE_TITLE_INDEX);
+        db.execSQL(CatalogSql.CREATE_GENRE_INDEX);
+        db.execSQL(CatalogSql.CREATE_ARTIST_INDEX);
+        db.execSQL(CatalogSql.CREATE_ALBUM_INDEX);
+        db.execSQL(CatalogSql.CREATE_SEARCH);
+        db.execSQL(CatalogSql.CREATE_INSERT_TRIGGER);
+        db.execSQL(CatalogSql.CREATE_DELETE_TRIGGER);
+
+        createUnreadableTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createUnreadableTable(db);
+        }
+        if (oldVersion < 3) {
+            // Lets the listings ordered by title walk the index instead of sorting the table.
+            db.execSQL(CatalogSql.CREATE_TITLE_INDEX);
+        }
+    }
+
+    private static void createUnreadableTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_UNREADABLE + " ("
+                + "path TEXT PRIMARY KEY, "
+                + "last_modified INTEGER NOT NULL, "
+                + "size INTEGER NOT NULL)");
+    }
+
+    /**
+     * Returns the (last modified, size) fingerprint of every track, keyed by path.
+     */
+    public Map<String, long[]> getFingerprints() {
+        return queryFingerprints(QUERY_FINGERPRINTS);
+    }
+
+    /**
+     * Returns the (last modified, size) fingerprint of every file whose tags could not be read,
+     * keyed by path.
+     */
+    public Map<String, long[]> getUnreadableFingerprints() {
+        return queryFingerprints(QUERY_UNREADABLE_FINGERPRINTS);
+    }
+
+    private Map<String, long[]> queryFingerprints(String sql) {
+        Map<String, long[]> fingerprints = new HashMap<>();
+        Cursor cursor = getReadableDatabase().rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                fingerprints.put(cursor.getString(0),
+                        new long[] {cursor.getLong(1), cursor.getLong(2)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Inserts or replaces the given tracks in one transaction. Analysis results of replaced
+     * tracks are dropped, since the file has changed.
+     */
+    public void replaceTracks(Collection<Track> tracks) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement delete = db.compileStatement(DELETE_TRACK);
+            SQLiteStatement deleteUnreadable = db.compileStatement(DELETE_UNREADABLE);
+            SQLiteStatement insert = db.compileStatement(CatalogSql.INSERT_TRACK);
+            for (Track track : tracks) {
+                delete.bindString(1, track.path);
+                delete.executeUpdateDelete();
+                deleteUnreadable.bindString(1, track.path);
+                deleteUnreadable.executeUpdateDelete();
+
+                insert.clearBindings();
+                insert.bindString(1, track.path);
+                insert.bindLong(2, track.lastModified);
+                insert.bindLong(3, track.size);
+                bindStringOrNull(insert, 4, track.title);
+                bindStringOrNull(insert, 5, track.artist);
+                bindStringOrNull(insert, 6, track.album);
+                bindStringOrNull(insert, 7, track.genre);
+                insert.bindLong(8, track.duration);
+                insert.executeInsert();
+            }
+            delete.close();
+            deleteUnreadable.close();
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Records files whose tags could not be read, by path and fingerprint, in one transaction.
+     * A track previously stored for the same path is removed.
+     */
+    public void replaceUnreadable(Collection<Track> files) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement delete = db.compileStatement(DELETE_TRACK);
+            SQLiteStatement insert = db.compileStatement(INSERT_UNREADABLE);
+            for (Track file : files) {
+                delete.bindString(1, file.path);
+                delete.executeUpdateDelete();
+
+                insert.bindString(1, file.path);
+                insert.bindLong(2, file.lastModified);
+                insert.bindLong(3, file.size);
+                insert.executeInsert();
+            }
+            delete.close();
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the tracks and unreadable files with the given paths in one transaction.
+     */
+    public void deleteTracks(Collection<String> paths) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement delete = db.compileStatement(DELETE_TRACK);
+            SQLiteStatement deleteUnreadable = db.compileStatement(DELETE_UNREADABLE);
+            for (String path : paths) {
+                delete.bindString(1, path);
+                delete.executeUpdateDelete();
+                deleteUnreadable.bindString(1, path);
+                deleteUnreadable.executeUpdateDelete();
+            }
+            delete.close();
+            deleteUnreadable.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void setLoudness(String path, int gainMb, int peakMb) {
+        SQLiteStatement update = getWritableDatabase().compileStatement(UPDATE_LOUDNESS);
+        try {
+            update.bindLong(1, gainMb);
+            update.bindLong(2, peakMb);
+            update.bindString(3, path);
+            update.executeUpdateDelete();
+        } finally {
+            update.close();
+        }
+    }
+
+    public List<String> getPathsWithoutLoudness() {
+        return queryPaths(QUERY_NOT_ANALYZED);
+    }
+
+    /**
+     * Returns the row ids of all tracks, in the order of {@link #getTracks}. The ids are read
+     * from the title index alone.
+     */
+    public long[] getTrackIds() {
+        Cursor cursor = getReadableDatabase().rawQuery(CatalogSql.QUERY_ALL_IDS, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext() && i < ids.length; i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the path of the track with the given row id, or null if it is gone.
+     */
+    public String getPath(long id) {
+        Cursor cursor = getReadableDatabase().rawQuery(CatalogSql.QUERY_PATH,
+                new String[] {String.valueOf(id)});
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the row id of the track at {@code path}, or -1 if there is none.
+     */
+    public long getTrackId(String path) {
+        return queryLong(CatalogSql.QUERY_ID, path);
+    }
+
+    /**
+     * Returns the position of the track at {@code path} in the order of {@link #getTrackIds},
+     * or -1 if there is no such track.
+     */
+    public int getTitleRank(String path) {
+        return (int) queryLong(CatalogSql.QUERY_TITLE_RANK, path);
+    }
+
+    private long queryLong(String sql, String arg) {
+        Cursor cursor = getReadableDatabase().rawQuery(sql, new String[] {arg});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<String> queryPaths(String sql) {
+        List<String> paths = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                paths.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return paths;
+    }
+
+    public MediaMetadata getMetadata(String path) {
+        List<MediaMetadata> result = query(CatalogSql.QUERY_BY_PATH, path);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Returns up to {@code limit} tracks ordered by title, skipping the first {@code offset}.
+     */
+    public List<MediaMetadata> getTracks(int offset, int limit) {
+        return query(CatalogSql.QUERY_ALL, String.valueOf(limit), String.valueOf(offset));
+    }
+
+    /**
+     * Returns up to {@code limit} tracks whose genre, artist or album equals {@code value},
+     * ignoring case.
+     *
+     * @param column one of {@link #COLUMN_GENRE}, {@link #COLUMN_ARTIST} or
+     *               {@link #COLUMN_ALBUM}
+     */
+    public List<MediaMetadata> getTracksBy(String column, String value, int limit) {
+        if (!COLUMN_GENRE.equals(column) && !COLUMN_ARTIST.equals(column)
+                && !COLUMN_ALBUM.equals(column)) {
+            throw new IllegalArgumentException("Not an indexed column: " + column);
+        }
+        // One constant statement per column, so these are cached like the others.
+        return query("SELECT " + CatalogSql.METADATA_COLUMNS + " FROM tracks WHERE " + column
+                + " = ? COLLATE NOCASE LIMIT ?", value, String.valueOf(limit));
+    }
+
+    /**
+     * Returns up to {@code limit} tracks matching all words of {@code query}, each word
+     * matched as a prefix in any text column.
+     */
+    public List<MediaMetadata> search(String query, int limit) {
+        String match = CatalogSql.toMatchQuery(query);
+        if (match.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return query(CatalogSql.QUERY_SEARCH, match, String.valueOf(limit));
+    }
+
+    private List<MediaMetadata> query(String sql, String... args) {
+        List<MediaMetadata> result = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().rawQuery(sql, args);
+        try {
+            while (cursor.moveToNext()) {
+                MediaMetadata.Builder builder = MusicLibrary.newMetadataBuilder(
+                        LibraryScanner.MEDIA_ID_PREFIX + cursor.getString(CatalogSql.INDEX_PATH),
+                        cursor.getString(CatalogSql.INDEX_TITLE),
+                        cursor.getString(CatalogSql.INDEX_ARTIST),
+                        cursor.getString(CatalogSql.INDEX_ALBUM),
+                        cursor.getString(CatalogSql.INDEX_GENRE),
+                        cursor.getLong(CatalogSql.INDEX_DURATION),
+                        R.drawable.ic_default_art);
+                if (!cursor.isNull(CatalogSql.INDEX_REPLAY_GAIN)) {
+                    builder.putLong(MusicLibrary.METADATA_KEY_REPLAY_GAIN,
+                            cursor.getLong(CatalogSql.INDEX_REPLAY_GAIN));
+                    builder.putLong(MusicLibrary.METADATA_KEY_PEAK,
+                            cursor.getLong(CatalogSql.INDEX_PEAK));
+                }
+                result.add(builder.build());
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * A scanned file, its fingerprint and its tags.
+     */
+    public static final class Track {
+        public String path;
+        public long lastModified;
+        public long size;
+        public String title;
+        public String artist;
+        public String album;
+        public String genre;
+        public long duration;
+    }
+}
@@ -19,20 +19,43 @@ package com.example.android.uamp;
 import android.media.MediaMetadata;
 import android.media.browse.MediaBrowser;
 import android.media.session.MediaSession;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.LruCache;
 
+import java.io.File;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * The music catalog: the tracks bundled with the app, kept in memory, followed by the tracks
+ * found on local storage, which are served from {@link MusicDatabase} once
+ * {@link #setDatabase} has been called.
+ */
 public class MusicLibrary {
 
+    // Gain in millibels that normalizes the track loudness, see LoudnessAnalyzer
+    public static final String METADATA_KEY_REPLAY_GAIN =
+            "com.example.android.uamp.METADATA_KEY_REPLAY_GAIN";
+    // Sample peak in millibels relative to full scale
+    public static final String METADATA_KEY_PEAK = "com.example.android.uamp.METADATA_KEY_PEAK";
+
     public static String getRoot() {
         return "";
     }
 
-    private static final HashMap<String, MediaMetadata> music = new HashMap<>();
-    private static final HashMap<String, Integer> albumRes = new HashMap<>();
-    private static final HashMap<String, Integer> musicRes = new HashMap<>();
+    // The bundled tracks. Binder threads, the session callback and the UI read whichever
+    // snapshot is current without locking; writers swap in a modified copy.
+    private static final AtomicReference<CatalogSnapshot> catalog =
+            new AtomicReference<>(CatalogSnapshot.EMPTY);
+    private static volatile MusicDatabase database;
+    private static final CatalogChangeLog changeLog = new CatalogChangeLog();
     static {
         createMediaMetadata("Jazz_In_Paris", "Jazz in Paris",
                 "Media Right Productions", "Jazz & Blues", "Jazz", 103,
@@ -42,11 +65,96 @@ public class MusicLibrary {
                 R.raw.the_coldest_shoulder, R.drawable.album_youtube_audio_library_rock_2);
     }
 
-//    public static Uri getSongUri(String mediaId) {
-//        return Uri.parse("http://storage.googleapis.com/automotive-media/" + mediaId + ".mp3");
-//    }
+    // Where the streamed copies of the catalog tracks are, see OfflineStore
+    private static final String REMOTE_BASE_URI = "http://storage.googleapis.com/automotive-media/";
+
+    private static volatile OfflineStore offlineStore;
+
+    public static void setDatabase(MusicDatabase musicDatabase) {
+        database = musicDatabase;
+    }
+
+    /**
+     * Sets the store whose downloaded tracks {@link #getSongUri} prefers.
+     */
+    public static void setOfflineStore(OfflineStore store) {
+        offlineStore = store;
+    }
+
+    /**
+     * Returns the URI the track streams from.
+     */
+    public static String getRemoteSongUri(String mediaId) {
+        return REMOTE_BASE_URI + mediaId + ".mp3";
+    }
+
+    public static CatalogChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * Records a change to tracks of the catalog. All tracks are children of the root.
+     */
+    static void recordChanges(int change, Collection<String> mediaIds) {
+        changeLog.record(getRoot(), change, mediaIds);
+    }
+
+    /**
+     * Returns the items that changed since the version encoded in a delta id, each with its
+     * change and version in the extras, or null if the client has to reload the parent.
+     */
+    public static List<MediaBrowser.MediaItem> getChangedMediaItems(String deltaId) {
+        long version = CatalogChangeLog.getDeltaVersion(deltaId);
+        BrowseProjection projection =
+                BrowseProjection.fromRootId(CatalogChangeLog.getDeltaParentId(deltaId));
+        // Every projection root is a view of the same node.
+        List<CatalogChangeLog.Change> changes =
+                version < 0 ? null : changeLog.getChangesSince(getRoot(), version);
+        if (changes == null || changes.size() > projection.getMaxItems()) {
+            return null;
+        }
+        List<MediaBrowser.MediaItem> result = new ArrayList<>(changes.size());
+        for (CatalogChangeLog.Change change: changes) {
+            MediaMetadata metadata = change.change == CatalogChangeLog.CHANGE_REMOVED
+                    ? null : getMetadata(change.mediaId);
+            Bundle extras = new Bundle();
+            // A track removed after the change was recorded is reported as removed.
+            extras.putInt(CatalogChangeLog.EXTRA_CHANGE,
+                    metadata == null ? CatalogChangeLog.CHANGE_REMOVED : change.change);
+            extras.putLong(CatalogChangeLog.EXTRA_VERSION, change.version);
+            result.add(projection.createChangeItem(change.mediaId, metadata, extras));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the path of a track found on local storage, or null for a bundled track.
+     */
+    private static String getPath(String mediaId) {
+        if (database == null || mediaId == null
+                || !mediaId.startsWith(LibraryScanner.MEDIA_ID_PREFIX)) {
+            return null;
+        }
+        return mediaId.substring(LibraryScanner.MEDIA_ID_PREFIX.length());
+    }
+
+    /**
+     * Returns whether the track is persisted in {@link MusicDatabase}, including its loudness.
+     */
+    public static boolean isInDatabase(String mediaId) {
+        return getPath(mediaId) != null;
+    }
 
     public static String getSongUri(String mediaId) {
+        OfflineStore store = offlineStore;
+        File downloaded = store == null ? null : store.getLocalFile(mediaId);
+        if (downloaded != null) {
+            return Uri.fromFile(downloaded).toString();
+        }
+        String path = getPath(mediaId);
+        if (path != null) {
+            return Uri.fromFile(new File(path)).toString();
+        }
         return "android.resource://" + BuildConfig.APPLICATION_ID + "/" + getMusicRes(mediaId);
 //        AssetManager assetManager = ctx.getAssets();
 //        AssetFileDescriptor fd = null;
@@ -59,54 +167,322 @@ public class MusicLibrary {
 //        return fd;
     }
 
-    private static String getAlbumArtUri(int albumArtResId) {
-        return "android.resource://" + BuildConfig.APPLICATION_ID + "/" + albumArtResId;
+    private static String getAlbumArtUri(int albumArtResId, String bucket) {
+        return AlbumArtProvider.getUri(albumArtResId, bucket).toString();
     }
 
     public static int getMusicRes(String mediaId) {
-        return musicRes.containsKey(mediaId) ? musicRes.get(mediaId) : 0;
+        return catalog.get().getMusicRes(mediaId);
     }
 
     public static int getAlbumRes(String mediaId) {
-        return albumRes.containsKey(mediaId) ? albumRes.get(mediaId) : 0;
+        if (getPath(mediaId) != null) {
+            return R.drawable.ic_default_art;
+        }
+        return catalog.get().getAlbumRes(mediaId);
     }
 
     public static List<MediaBrowser.MediaItem> getMediaItems() {
+        return getMediaItems(BrowseProjection.FULL);
+    }
+
+    public static List<MediaBrowser.MediaItem> getMediaItems(BrowseProjection projection) {
+        return getMediaItems(projection, 0, projection.getMaxItems());
+    }
+
+    /**
+     * Returns the items of up to {@code limit} tracks, in the order of {@link #getMediaItems()},
+     * skipping the first {@code offset}. Reads the database, call it on a background thread.
+     */
+    public static List<MediaBrowser.MediaItem> getMediaItems(BrowseProjection projection,
+            int offset, int limit) {
+        List<MediaBrowser.MediaItem> result = new ArrayList<>();
+        for (MediaMetadata metadata: getAllMetadata(offset, limit)) {
+            result.add(projection.createMediaItem(metadata));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the items of the given tracks, in order, leaving out the ones no longer in the
+     * library.
+     */
+    public static List<MediaBrowser.MediaItem> getMediaItems(List<String> mediaIds,
+            BrowseProjection projection) {
         List<MediaBrowser.MediaItem> result = new ArrayList<>();
-        for (MediaMetadata metadata: music.values()) {
-            result.add(new MediaBrowser.MediaItem(metadata.getDescription(),
-                    MediaBrowser.MediaItem.FLAG_PLAYABLE));
+        for (String mediaId : mediaIds) {
+            if (result.size() >= projection.getMaxItems()) {
+                break;
+            }
+            MediaMetadata metadata = getMetadata(mediaId);
+            if (metadata != null) {
+                result.add(projection.createMediaItem(metadata));
+            }
+        }
+        return result;
+    }
+
+    private static List<MediaMetadata> getAllMetadata(int offset, int limit) {
+        List<MediaMetadata> result = new ArrayList<>();
+        List<MediaMetadata> bundled = catalog.get().getAllMetadata();
+        for (int i = offset; i < bundled.size(); i++) {
+            if (result.size() >= limit) {
+                return result;
+            }
+            result.add(bundled.get(i));
+        }
+        MusicDatabase musicDatabase = database;
+        if (musicDatabase != null && result.size() < limit) {
+            result.addAll(musicDatabase.getTracks(Math.max(0, offset - bundled.size()),
+                    limit - result.size()));
         }
         return result;
     }
 
     public static MediaMetadata getMetadata(String mediaId) {
-        return music.get(mediaId);
+        String path = getPath(mediaId);
+        if (path != null) {
+            return database.getMetadata(path);
+        }
+        return catalog.get().getMetadata(mediaId);
+    }
+
+    /**
+     * Returns up to {@code limit} tracks whose title, artist, album or genre match the words of
+     * {@code query}.
+     */
+    public static List<MediaMetadata> search(String query, int limit) {
+        List<MediaMetadata> result = new ArrayList<>();
+        String lowerCaseQuery = query.toLowerCase(Locale.getDefault());
+        for (MediaMetadata metadata: catalog.get().getAllMetadata()) {
+            if (result.size() < limit && (
+                    contains(metadata, MediaMetadata.METADATA_KEY_TITLE, lowerCaseQuery)
+                    || contains(metadata, MediaMetadata.METADATA_KEY_ARTIST, lowerCaseQuery)
+                    || contains(metadata, MediaMetadata.METADATA_KEY_ALBUM, lowerCaseQuery)
+                    || contains(metadata, MediaMetadata.METADATA_KEY_GENRE, lowerCaseQuery))) {
+                result.add(metadata);
+            }
+        }
+        MusicDatabase musicDatabase = database;
+        if (musicDatabase != null && result.size() < limit) {
+            result.addAll(musicDatabase.search(query, limit - result.size()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to {@code limit} tracks with the given genre, artist or album, ignoring case.
+     *
+     * @param metadataKey one of {@link MediaMetadata#METADATA_KEY_GENRE},
+     *                    {@link MediaMetadata#METADATA_KEY_ARTIST} or
+     *                    {@link MediaMetadata#METADATA_KEY_ALBUM}
+     */
+    public static List<MediaMetadata> getTracksBy(String metadataKey, String value, int limit) {
+        List<MediaMetadata> result = new ArrayList<>();
+        for (MediaMetadata metadata: catalog.get().getAllMetadata()) {
+            if (result.size() < limit
+                    && value.equalsIgnoreCase(metadata.getString(metadataKey))) {
+                result.add(metadata);
+            }
+        }
+        MusicDatabase musicDatabase = database;
+        if (musicDatabase != null && result.size() < limit) {
+            String column;
+            switch (metadataKey) {
+                case MediaMetadata.METADATA_KEY_GENRE:
+                    column = MusicDatabase.COLUMN_GENRE;
+                    break;
+                case MediaMetadata.METADATA_KEY_ARTIST:
+                    column = MusicDatabase.COLUMN_ARTIST;
+                    break;
+                default:
+                    column = MusicDatabase.COLUMN_ALBUM;
+                    break;
+            }
+            result.addAll(musicDatabase.getTracksBy(column, value, limit - result.size()));
+        }
+        return result;
+    }
+
+    private static boolean contains(MediaMetadata metadata, String key, String lowerCaseQuery) {
+        String value = metadata.getString(key);
+        return !TextUtils.isEmpty(value)
+                && value.toLowerCase(Locale.getDefault()).contains(lowerCaseQuery);
+    }
+
+    /**
+     * Returns the media ids of all tracks that have no loudness analysis results yet.
+     */
+    public static List<String> getMediaIdsWithoutLoudness() {
+        List<String> result = new ArrayList<>();
+        for (MediaMetadata metadata: catalog.get().getAllMetadata()) {
+            if (!metadata.containsKey(METADATA_KEY_REPLAY_GAIN)) {
+                result.add(metadata.getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
+            }
+        }
+        MusicDatabase musicDatabase = database;
+        if (musicDatabase != null) {
+            for (String path: musicDatabase.getPathsWithoutLoudness()) {
+                result.add(LibraryScanner.MEDIA_ID_PREFIX + path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores the loudness analysis results of a track into its metadata.
+     *
+     * @param gainMb normalization gain in millibels
+     * @param peakMb sample peak in millibels relative to full scale
+     */
+    public static void setLoudness(String mediaId, int gainMb, int peakMb) {
+        String path = getPath(mediaId);
+        if (path != null) {
+            database.setLoudness(path, gainMb, peakMb);
+            return;
+        }
+        while (true) {
+            CatalogSnapshot current = catalog.get();
+            MediaMetadata metadata = current.getMetadata(mediaId);
+            if (metadata == null) {
+                return;
+            }
+            CatalogSnapshot updated = current.withMetadata(new MediaMetadata.Builder(metadata)
+                    .putLong(METADATA_KEY_REPLAY_GAIN, gainMb)
+                    .putLong(METADATA_KEY_PEAK, peakMb)
+                    .build());
+            // Retry on top of a snapshot another writer published in the meantime.
+            if (catalog.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the linear volume factor that normalizes the track loudness. The player can only
+     * attenuate, so tracks quieter than the reference level play at their original volume.
+     */
+    public static float getTrackGain(MediaMetadata metadata) {
+        if (metadata == null || !metadata.containsKey(METADATA_KEY_REPLAY_GAIN)) {
+            return 1.0f;
+        }
+        long gainMb = metadata.getLong(METADATA_KEY_REPLAY_GAIN);
+        return gainMb >= 0 ? 1.0f : (float) Math.pow(10, gainMb / 2000.0);
     }
 
     public static List<MediaSession.QueueItem> createQueue() {
-        List<MediaSession.QueueItem> result = new ArrayList<>();
-        for (MediaMetadata metadata: music.values()) {
-            int queueId = metadata.getDescription().getMediaId().hashCode();
-            result.add(new MediaSession.QueueItem(metadata.getDescription(), queueId));
+        List<MediaMetadata> tracks = getAllMetadata(0, Integer.MAX_VALUE);
+        List<MediaSession.QueueItem> result = new ArrayList<>(tracks.size());
+        // Queue ids only have to be unique within the queue, so the position will do.
+        for (int i = 0; i < tracks.size(); i++) {
+            result.add(new MediaSession.QueueItem(tracks.get(i).getDescription(), i));
         }
         return result;
     }
 
-    private static void createMediaMetadata(String mediaId, String title, String artist, String album, String genre, long duration, int musicResId, int albumArtResId) {
-        music.put(mediaId,
-                new MediaMetadata.Builder()
+    /**
+     * Returns the media ids of all tracks, in the order of {@link #getMediaItems()}, for a
+     * {@link PlayQueue}. Only the row ids of database tracks are loaded, from the title index;
+     * their paths are looked up as the queue reaches them, which reads the database too, so
+     * {@code get} must not be called on the main thread either. Bundled tracks are read from the
+     * current catalog snapshot. Call it on a background thread.
+     */
+    public static List<String> getQueueMediaIds() {
+        MusicDatabase musicDatabase = database;
+        return new QueueMediaIds(catalog.get(), musicDatabase,
+                musicDatabase != null ? musicDatabase.getTrackIds() : new long[0]);
+    }
+
+    static MediaMetadata.Builder newMetadataBuilder(String mediaId, String title, String artist,
+            String album, String genre, long duration, int albumArtResId) {
+        return new MediaMetadata.Builder()
                 .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, mediaId)
                 .putString(MediaMetadata.METADATA_KEY_ALBUM, album)
                 .putString(MediaMetadata.METADATA_KEY_ARTIST, artist)
                 .putLong(MediaMetadata.METADATA_KEY_DURATION, duration)
                 .putString(MediaMetadata.METADATA_KEY_GENRE, genre)
-                .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, getAlbumArtUri(albumArtResId))
-                .putString(MediaMetadata.METADATA_KEY_DISPLAY_ICON_URI, getAlbumArtUri(albumArtResId))
-                .putString(MediaMetadata.METADATA_KEY_TITLE, title)
-                .build());
-        albumRes.put(mediaId, albumArtResId);
-        musicRes.put(mediaId, musicResId);
+                .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI,
+                        getAlbumArtUri(albumArtResId, AlbumArtProvider.BUCKET_LARGE))
+                .putString(MediaMetadata.METADATA_KEY_DISPLAY_ICON_URI,
+                        getAlbumArtUri(albumArtResId, AlbumArtProvider.BUCKET_SMALL))
+                .putString(MediaMetadata.METADATA_KEY_TITLE, title);
     }
 
-}
\ No newline at end of file
+    private static void createMediaMetadata(String mediaId, String title, String artist, String album, String genre, long duration, int musicResId, int albumArtResId) {
+        MediaMetadata metadata = newMetadataBuilder(mediaId, title, artist, album, genre,
+                duration, albumArtResId).build();
+        CatalogSnapshot current;
+        do {
+            current = catalog.get();
+        } while (!catalog.compareAndSet(current,
+                current.withTrack(metadata, musicResId, albumArtResId)));
+    }
+
+
+    private static final class QueueMediaIds extends AbstractList<String>
+            implements RandomAccess {
+        // Paths kept for the tracks around the current one
+        private static final int PATH_CACHE_SIZE = 64;
+
+        private final CatalogSnapshot mBundled;
+        private final MusicDatabase mDatabase;
+        private final long[] mIds;
+        private final LruCache<Integer, String> mPaths = new LruCache<>(PATH_CACHE_SIZE);
+
+        QueueMediaIds(CatalogSnapshot bundled, MusicDatabase database, long[] ids) {
+            mBundled = bundled;
+            mDatabase = database;
+            mIds = ids;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < mBundled.size()) {
+                return mBundled.getMediaId(index);
+            }
+            int position = index - mBundled.size();
+            String path = mPaths.get(position);
+            if (path == null) {
+                path = mDatabase.getPath(mIds[position]);
+                if (path == null) {
+                    // Removed by a scan since the queue was made; playing it reports an error.
+                    path = "";
+                }
+                mPaths.put(position, path);
+            }
+            return LibraryScanner.MEDIA_ID_PREFIX + path;
+        }
+
+        @Override
+        public int size() {
+            return mBundled.size() + mIds.length;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            String mediaId = (String) o;
+            String path = getPath(mediaId);
+            if (path == null) {
+                int ordinal = mBundled.getOrdinal(mediaId);
+                return ordinal != MediaIdTable.NOT_FOUND ? ordinal : -1;
+            }
+            if (mDatabase == null) {
+                return -1;
+            }
+            int position = mDatabase.getTitleRank(path);
+            if (position < 0 || position >= mIds.length
+                    || !mediaId.equals(get(mBundled.size() + position))) {
+                // A scan changed the catalog since the ids were read; find the row instead.
+                long id = mDatabase.getTrackId(path);
+                position = -1;
+                for (int i = 0; i < mIds.length && id >= 0; i++) {
+                    if (mIds[i] == id) {
+                        position = i;
+                        break;
+                    }
+                }
+            }
+            return position >= 0 ? mBundled.size() + position : -1;
+        }
+    }
+}
@@ -16,19 +16,115 @@
 
 package com.example.android.uamp;
 
+ import android.content.Intent;
+ import android.database.sqlite.SQLiteDatabase;
+ import android.media.MediaMetadata;
  import android.media.browse.MediaBrowser.MediaItem;
  import android.media.session.MediaSession;
  import android.media.session.PlaybackState;
  import android.os.Bundle;
+ import android.os.Handler;
+ import android.provider.MediaStore;
  import android.service.media.MediaBrowserService;
 
+ import java.io.FileDescriptor;
+ import java.io.PrintWriter;
+ import java.util.ArrayList;
+ import java.util.Collections;
+ import java.util.HashSet;
  import java.util.List;
+ import java.util.Set;
+ import java.util.concurrent.CountDownLatch;
+ import java.util.concurrent.ExecutorService;
+ import java.util.concurrent.Executors;
+ import java.util.concurrent.TimeUnit;
+ import java.util.concurrent.atomic.AtomicBoolean;
+ import java.util.concurrent.atomic.AtomicInteger;
 
 public class MusicService extends MediaBrowserService implements PlaybackManager.Callback {
 
     private MediaSession mSession;
     private MediaNotificationManager mMediaNotificationManager;
     private PlaybackManager mPlayback;
+    private LoudnessAnalyzer mLoudnessAnalyzer;
+    private LibraryScanner mLibraryScanner;
+    private CastRouteController mCastController;
+    // What plays next, only used on the main thread
+    private final PlayQueue mQueue = new PlayQueue();
+    // Loads the queue of the whole catalog and looks up its media ids, which read the database
+    private final ExecutorService mQueueExecutor = Executors.newSingleThreadExecutor();
+    // Answers onLoadChildren, which reads the database and builds the items
+    private final ExecutorService mBrowseExecutor = Executors.newSingleThreadExecutor();
+    // Incremented for each queue requested, so that only the latest one is applied
+    private int mQueueGeneration;
+    // Incremented for each queue position looked up, so that only the latest one is played
+    private int mResolveGeneration;
+    // Media ids of the current track and the ones after it that the player was sent, only
+    // used on the main thread
+    private List<String> mQueueWindow = Collections.emptyList();
+    // Latest state of the player, before the queue actions are added
+    private PlaybackState mPlaybackState;
+
+    // Catalog changes are batched for this long before subscribers are told to reload
+    private static final long NOTIFY_CHILDREN_DELAY_MS = 1000;
+    // Rough size of a retained catalog change: the entry, its deque slot and a media id
+    private static final int BYTES_PER_CHANGE = 200;
+    // Root hint asking for recently played media, MediaBrowserService.BrowserRoot.EXTRA_RECENT
+    // in API 24
+    private static final String EXTRA_RECENT = "android.service.media.extra.RECENT";
+    // Tracks a receiver is loaded with at a time, so it can play on without a round trip
+    private static final int REMOTE_QUEUE_WINDOW = 20;
+
+    private final Handler mHandler = new Handler();
+    // Parent ids handed out by onGetRoot, only used on the main thread
+    private final Set<String> mRootIds = new HashSet<>();
+    // Catalog pages past the first that were browsed, only used on the main thread
+    private final Set<String> mPageIds = new HashSet<>();
+    private final Set<String> mChangedParentIds = new HashSet<>();
+    private final AtomicBoolean mNotifyPending = new AtomicBoolean();
+
+    // Cold start: the session is created in onCreate, the steps below run in parallel in the
+    // background, and the player and notification are only set up on first play.
+    private final StartupTrace mStartup = new StartupTrace();
+    // Startup steps still running, plus one for onCreate until it has submitted them all
+    private final AtomicInteger mPendingStartupSteps = new AtomicInteger(1);
+    // Released when the last startup step is done, before the scanners are started
+    private final CountDownLatch mStartupStepsDone = new CountDownLatch(1);
+    // Runs the startup steps, stopped by onDestroy
+    private ExecutorService mStartupExecutor;
+    // The rest of the fields are only used on the main thread.
+    private boolean mStartupDone;
+    private boolean mRootServed;
+    private boolean mDestroyed;
+    // Children requested before the database was open, by parent id
+    private final List<String> mPendingParentIds = new ArrayList<>();
+    private final List<Result<List<MediaItem>>> mPendingResults = new ArrayList<>();
+
+    // Changes kept for delta subscriptions; trimming them makes clients reload instead.
+    private final MemoryBudget.Cache mChangeLogCache = new MemoryBudget.Cache() {
+        @Override
+        public long getSize() {
+            return (long) MusicLibrary.getChangeLog().getChangeCount() * BYTES_PER_CHANGE;
+        }
+
+        @Override
+        public void trimToSize(long maxSize) {
+            MusicLibrary.getChangeLog().trimTo((int) (maxSize / BYTES_PER_CHANGE));
+        }
+    };
+
+    // The page caches of the catalog database, which SQLite sizes itself
+    private final MemoryBudget.Cache mDatabaseCache = new MemoryBudget.Cache() {
+        @Override
+        public long getSize() {
+            return 0;
+        }
+
+        @Override
+        public void trimToSize(long maxSize) {
+            SQLiteDatabase.releaseMemory();
+        }
+    };
 
     /*
      * (non-Javadoc)
@@ -37,6 +133,8 @@ public class MusicService extends MediaBrowserService implements PlaybackManager
     @Override
     public void onCreate() {
         super.onCreate();
+        long start = mStartup.begin();
+        StallMonitor.install();
 
         // Start a new MediaSession
         mSession = new MediaSession(this, "MusicService");
@@ -45,10 +143,203 @@ public class MusicService extends MediaBrowserService implements PlaybackManager
         mSession.setFlags(MediaSession.FLAG_HANDLES_MEDIA_BUTTONS |
                 MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS);
 
-        mPlayback = new PlaybackManager(this);
-        mPlayback.setCallback(this);
+        MusicLibrary.getChangeLog().setListener(new CatalogChangeLog.Listener() {
+            @Override
+            public void onChildrenChanged(String parentId) {
+                synchronized (mChangedParentIds) {
+                    mChangedParentIds.add(parentId);
+                }
+                if (mNotifyPending.compareAndSet(false, true)) {
+                    mHandler.postDelayed(mNotifyChildrenChanged, NOTIFY_CHILDREN_DELAY_MS);
+                }
+            }
+        });
+
+        mStartup.end("session", start);
+
+        mStartupExecutor = Executors.newFixedThreadPool(3);
+        runStartupStep(mStartupExecutor, "database", new Runnable() {
+            @Override
+            public void run() {
+                MusicDatabase database = MusicDatabase.getInstance(MusicService.this);
+                // Opening creates or upgrades the schema, keep that off the main thread.
+                database.getWritableDatabase();
+                MusicLibrary.setDatabase(database);
+                // Reads its preferences and lists the downloaded tracks.
+                OfflineStore offlineStore = OfflineStore.getInstance(MusicService.this);
+                MusicLibrary.setOfflineStore(offlineStore);
+                offlineStore.schedulePending();
+            }
+        });
+        runStartupStep(mStartupExecutor, "memoryBudget", new Runnable() {
+            @Override
+            public void run() {
+                final MemoryBudget budget = MemoryBudget.getInstance(MusicService.this);
+                // Registered on the main thread, like onDestroy unregisters, so a service
+                // destroyed first isn't kept in the budget.
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDestroyed) {
+                            return;
+                        }
+                        long maxChangeBytes =
+                                budget.register("Catalog changes", 5, mChangeLogCache);
+                        MusicLibrary.getChangeLog().setCapacity(
+                                (int) (maxChangeBytes / BYTES_PER_CHANGE));
+                        budget.register("Catalog database", 0, mDatabaseCache);
+                    }
+                });
+            }
+        });
+        runStartupStep(mStartupExecutor, "playHistory", new Runnable() {
+            @Override
+            public void run() {
+                final PlaybackEventLog eventLog =
+                        PlaybackEventLog.getInstance(MusicService.this);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDestroyed) {
+                            eventLog.setHistoryListener(mHistoryListener);
+                        }
+                    }
+                });
+                try {
+                    // Browsing the history nodes waits for startup, so they are never empty
+                    // just because the log was still being read.
+                    eventLog.awaitOpen();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        mStartupExecutor.shutdown();
+        finishStartupStep();
+    }
+
+    private void runStartupStep(ExecutorService executor, final String phase,
+            final Runnable step) {
+        mPendingStartupSteps.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = mStartup.begin();
+                try {
+                    step.run();
+                } finally {
+                    mStartup.end(phase, start);
+                    finishStartupStep();
+                }
+            }
+        });
+    }
+
+    private void finishStartupStep() {
+        if (mPendingStartupSteps.decrementAndGet() == 0) {
+            mStartupStepsDone.countDown();
+            mHandler.post(mFinishStartup);
+        }
+    }
+
+    /**
+     * Waits for the background startup steps. The scanners are started once the main thread
+     * gets to the message the last step posted. For tests.
+     */
+    boolean awaitStartupSteps(long timeout, TimeUnit unit) throws InterruptedException {
+        return mStartupStepsDone.await(timeout, unit);
+    }
+
+    /**
+     * Returns the executor the queues are loaded on. For tests.
+     */
+    ExecutorService getQueueExecutor() {
+        return mQueueExecutor;
+    }
+
+    /**
+     * Waits for the background work stopped by {@link #onDestroy} to end. For tests.
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        boolean terminated = mStartupExecutor.awaitTermination(timeout, unit)
+                && mQueueExecutor.awaitTermination(timeout, unit)
+                && mBrowseExecutor.awaitTermination(timeout, unit);
+        if (mLibraryScanner != null) {
+            terminated &= mLoudnessAnalyzer.awaitTermination(timeout, unit)
+                    && mLibraryScanner.awaitTermination(timeout, unit);
+        }
+        return terminated;
+    }
+
+    /**
+     * Returns whether the player has been created yet. For tests.
+     */
+    boolean hasPlayback() {
+        return mPlayback != null;
+    }
+
+    /**
+     * Starts the scanners, which need the database, and answers the children requested in the
+     * meantime.
+     */
+    private final Runnable mFinishStartup = new Runnable() {
+        @Override
+        public void run() {
+            if (mDestroyed) {
+                return;
+            }
+            long start = mStartup.begin();
+            mLoudnessAnalyzer = new LoudnessAnalyzer(MusicService.this);
+            mLoudnessAnalyzer.start();
+
+            mLibraryScanner = new LibraryScanner(MusicService.this);
+            mLibraryScanner.setListener(new LibraryScanner.Listener() {
+                @Override
+                public void onScanFinished() {
+                    // Pick up the loudness of tracks the scan added.
+                    mLoudnessAnalyzer.start();
+                }
+            });
+            mLibraryScanner.scan();
+
+            mCastController = new CastRouteController(MusicService.this,
+                    new CastRouteController.Listener() {
+                        @Override
+                        public void onRemoteConnected(RemotePlayback remote) {
+                            getPlayback().switchToRemote(remote);
+                        }
+
+                        @Override
+                        public void onRemoteDisconnected() {
+                            if (mPlayback != null) {
+                                mPlayback.switchToLocal();
+                            }
+                        }
+                    });
+            mCastController.start();
+
+            mStartupDone = true;
+            for (int i = 0; i < mPendingResults.size(); i++) {
+                loadChildren(mPendingParentIds.get(i), mPendingResults.get(i));
+            }
+            mPendingParentIds.clear();
+            mPendingResults.clear();
+            mStartup.end("scanners", start);
+        }
+    };
 
-        mMediaNotificationManager = new MediaNotificationManager(this);
+    /**
+     * Creates the player on first use, so a service that is only browsed never sets one up.
+     */
+    private PlaybackManager getPlayback() {
+        if (mPlayback == null) {
+            long start = mStartup.begin();
+            mPlayback = new PlaybackManager(this);
+            mPlayback.setCallback(this);
+            mPlayback.setEventLog(PlaybackEventLog.getInstance(this));
+            mStartup.end("playback", start);
+        }
+        return mPlayback;
     }
 
     /**
@@ -58,42 +349,260 @@ public class MusicService extends MediaBrowserService implements PlaybackManager
     @Override
     public void onDestroy() {
         // Service is being killed, so make sure we release our resources
+        mDestroyed = true;
+        mStartupExecutor.shutdownNow();
         stopPlaying();
+        if (mPlayback != null) {
+            mPlayback.setCallback(null);
+            mPlayback.release();
+            PlaybackEventLog.getInstance(this).flush();
+        }
+        if (mLibraryScanner != null) {
+            mLoudnessAnalyzer.shutdown();
+            mLibraryScanner.shutdown();
+            mCastController.release();
+        }
+        if (mMediaNotificationManager != null) {
+            mMediaNotificationManager.release();
+        }
+        MemoryBudget budget = MemoryBudget.getInstance(this);
+        budget.unregister(mChangeLogCache);
+        budget.unregister(mDatabaseCache);
+        MusicLibrary.getChangeLog().setListener(null);
+        mHandler.removeCallbacks(mNotifyChildrenChanged);
+        mHandler.removeCallbacks(mNotifyHistoryChanged);
+        mHandler.removeCallbacks(mFinishStartup);
+        // A detached result that is never sent leaves its browser waiting.
+        for (Result<List<MediaItem>> result : mPendingResults) {
+            result.sendResult(null);
+        }
+        mPendingParentIds.clear();
+        mPendingResults.clear();
+        mQueueExecutor.shutdownNow();
+        // Loads already queued still answer their browsers.
+        mBrowseExecutor.shutdown();
+        PlaybackEventLog.getInstance(this).setHistoryListener(null);
 
         // Always release the MediaSession to clean up resources
         // and notify associated MediaController(s).
         mSession.release();
     }
 
+    /**
+     * Dumps the stall report, see {@link StallMonitor}, the lock hold times, see
+     * {@link PlaybackResources}, the seek latencies, the cache sizes, see
+     * {@link MemoryBudget}, the playback event log, the offline tracks and the startup timings.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StallMonitor.dump(writer);
+        if (mPlayback != null) {
+            mPlayback.getResources().dump(writer);
+            mPlayback.getSeekController().dump(writer);
+            PlaybackEventLog.getInstance(this).dump(writer);
+        }
+        MemoryBudget.getInstance(this).dump(writer);
+        OfflineStore.getInstance(this).dump(writer);
+        mStartup.dump(writer);
+    }
+
     @Override
     public BrowserRoot onGetRoot(String clientPackageName, int clientUid, Bundle rootHints) {
-        return new BrowserRoot(MusicLibrary.getRoot(), null);
+        if (!mRootServed) {
+            mRootServed = true;
+            mStartup.mark("first onGetRoot");
+        }
+        BrowseProjection projection = BrowseProjection.forClient(clientPackageName, rootHints);
+        mRootIds.add(projection.getRootId());
+        Bundle extras = new Bundle();
+        if (rootHints != null && rootHints.getBoolean(EXTRA_RECENT)) {
+            // The system's resumption UI only wants what was played last.
+            extras.putBoolean(EXTRA_RECENT, true);
+            return new BrowserRoot(projection.getRecentId(), extras);
+        }
+        // Clients pass this version back in a delta id to get only later changes.
+        extras.putLong(CatalogChangeLog.EXTRA_VERSION,
+                MusicLibrary.getChangeLog().getVersion(MusicLibrary.getRoot()));
+        return new BrowserRoot(projection.getRootId(), extras);
     }
 
     @Override
-    public void onLoadChildren(final String parentMediaId, final Result<List<MediaItem>> result) {
-        result.sendResult(MusicLibrary.getMediaItems());
+    public void onLoadChildren(String parentMediaId, Result<List<MediaItem>> result) {
+        result.detach();
+        if (!mStartupDone) {
+            // Answer once the database is open rather than with the bundled tracks only.
+            mPendingParentIds.add(parentMediaId);
+            mPendingResults.add(result);
+            return;
+        }
+        loadChildren(parentMediaId, result);
     }
 
+    /**
+     * Builds the children on {@link #mBrowseExecutor} and sends them to the detached
+     * {@code result} from the main thread.
+     */
+    private void loadChildren(final String parentMediaId,
+            final Result<List<MediaItem>> result) {
+        mBrowseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<MediaItem> items = queryChildren(parentMediaId);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (BrowseProjection.isPageId(parentMediaId)) {
+                            mPageIds.add(parentMediaId);
+                        }
+                        result.sendResult(items);
+                    }
+                });
+            }
+        });
+    }
+
+    private List<MediaItem> queryChildren(String parentMediaId) {
+        if (CatalogChangeLog.isDeltaId(parentMediaId)) {
+            // Null makes the client reload the whole parent.
+            return MusicLibrary.getChangedMediaItems(parentMediaId);
+        }
+        BrowseProjection projection = BrowseProjection.fromRootId(parentMediaId);
+        PlaybackEventLog eventLog = PlaybackEventLog.getInstance(this);
+        if (BrowseProjection.isRecentId(parentMediaId)) {
+            return MusicLibrary.getMediaItems(
+                    eventLog.getRecentlyPlayed(projection.getMaxItems()), projection);
+        } else if (BrowseProjection.isMostPlayedId(parentMediaId)) {
+            return MusicLibrary.getMediaItems(
+                    eventLog.getMostPlayed(projection.getMaxItems()), projection);
+        }
+        if (projection.isCompact()) {
+            List<MediaItem> items = MusicLibrary.getMediaItems(projection);
+            // Cars and watches open on what the user is most likely to play.
+            items.add(0, projection.createFolderItem(projection.getRecentId(),
+                    getString(R.string.browse_recently_played)));
+            items.add(1, projection.createFolderItem(projection.getMostPlayedId(),
+                    getString(R.string.browse_most_played)));
+            while (items.size() > Math.max(2, projection.getMaxItems())) {
+                items.remove(items.size() - 1);
+            }
+            return items;
+        }
+        int offset = BrowseProjection.getPageOffset(parentMediaId);
+        int pageSize = (int) Math.min(BrowseProjection.PAGE_SIZE,
+                (long) projection.getMaxItems() - offset);
+        if (pageSize <= 0) {
+            return new ArrayList<>();
+        }
+        // One more tells whether there is a next page.
+        List<MediaItem> items = MusicLibrary.getMediaItems(projection, offset, pageSize + 1);
+        if (items.size() > pageSize) {
+            items.remove(pageSize);
+            if (offset + pageSize < projection.getMaxItems()) {
+                items.add(projection.createFolderItem(projection.getPageId(offset + pageSize),
+                        getString(R.string.browse_more)));
+            }
+        }
+        return items;
+    }
+
+    private final PlaybackEventLog.HistoryListener mHistoryListener =
+            new PlaybackEventLog.HistoryListener() {
+                @Override
+                public void onHistoryChanged() {
+                    mHandler.removeCallbacks(mNotifyHistoryChanged);
+                    mHandler.post(mNotifyHistoryChanged);
+                }
+            };
+
+    // Tells the browsers of the history nodes to reload them
+    private final Runnable mNotifyHistoryChanged = new Runnable() {
+        @Override
+        public void run() {
+            for (String rootId : mRootIds) {
+                BrowseProjection projection = BrowseProjection.fromRootId(rootId);
+                notifyChildrenChanged(projection.getRecentId());
+                notifyChildrenChanged(projection.getMostPlayedId());
+            }
+        }
+    };
+
+    private final Runnable mNotifyChildrenChanged = new Runnable() {
+        @Override
+        public void run() {
+            mNotifyPending.set(false);
+            Set<String> changedParentIds;
+            synchronized (mChangedParentIds) {
+                changedParentIds = new HashSet<>(mChangedParentIds);
+                mChangedParentIds.clear();
+            }
+            for (String parentId : changedParentIds) {
+                if (MusicLibrary.getRoot().equals(parentId)) {
+                    // Every projection root lists the children of the root.
+                    for (String rootId : mRootIds) {
+                        notifyChildrenChanged(rootId);
+                    }
+                    for (String pageId : mPageIds) {
+                        notifyChildrenChanged(pageId);
+                    }
+                } else {
+                    notifyChildrenChanged(parentId);
+                }
+            }
+        }
+    };
+
     private final class MediaSessionCallback extends MediaSession.Callback {
         @Override
-        public void onPlayFromMediaId(String mediaId, Bundle extras) {
-            mSession.setActive(true);
-            mSession.setMetadata(MusicLibrary.getMetadata(mediaId));
-            mPlayback.play(mediaId);
+        public void onPlayFromMediaId(final String mediaId, Bundle extras) {
+            // Start with just the chosen track, and queue the whole catalog from it on once
+            // that is loaded.
+            final List<String> single = Collections.singletonList(mediaId);
+            mQueue.setQueue(single, 0);
+            // A skip still being looked up is overtaken by this.
+            mResolveGeneration++;
+            playMediaId(mediaId, single);
+            final int generation = ++mQueueGeneration;
+            mQueueExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final List<String> mediaIds = MusicLibrary.getQueueMediaIds();
+                    final int index = mediaIds.indexOf(mediaId);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == mQueueGeneration && !mDestroyed && index >= 0
+                                    && mQueue.getMediaIds() == single) {
+                                mQueue.setQueue(mediaIds, index);
+                                resolveQueuePosition(false);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public void onPlayFromSearch(String query, Bundle extras) {
+            List<MediaMetadata> results = searchMusic(query, extras);
+            if (!results.isEmpty()) {
+                onPlayFromMediaId(results.get(0).getString(MediaMetadata.METADATA_KEY_MEDIA_ID),
+                        null);
+            }
         }
 
         @Override
         public void onPlay() {
-            if (mPlayback.getCurrentMediaId() != null) {
-                mSession.setActive(true);
+            if (mPlayback != null && mPlayback.getCurrentMediaId() != null) {
+                startPlaying();
                 mPlayback.play(mPlayback.getCurrentMediaId());
             }
         }
 
         @Override
         public void onPause() {
-            mPlayback.pause();
+            if (mPlayback != null) {
+                mPlayback.pause();
+            }
         }
 
         @Override
@@ -101,28 +610,262 @@ public class MusicService extends MediaBrowserService implements PlaybackManager
             stopPlaying();
         }
 
+        @Override
+        public void onSkipToNext() {
+            logSkip();
+            if (mQueue.moveToNext()) {
+                resolveQueuePosition(true);
+            }
+        }
+
+        @Override
+        public void onSkipToPrevious() {
+            logSkip();
+            if (mQueue.moveToPrevious()) {
+                resolveQueuePosition(true);
+            }
+        }
+
+        @Override
+        public void onSeekTo(long position) {
+            if (mPlayback != null) {
+                mPlayback.seekTo((int) position);
+            }
+        }
+
+        @Override
+        public void onCustomAction(String action, Bundle extras) {
+            if (PlaybackManager.CUSTOM_ACTION_PLAYBACK_SPEED.equals(action)) {
+                if (extras != null && extras.containsKey(PlaybackManager.EXTRA_PLAYBACK_SPEED)) {
+                    getPlayback().setPlaybackSpeed(
+                            extras.getFloat(PlaybackManager.EXTRA_PLAYBACK_SPEED));
+                } else {
+                    getPlayback().cyclePlaybackSpeed();
+                }
+            } else if (PlaybackManager.CUSTOM_ACTION_SCRUB.equals(action)) {
+                getPlayback().setScrubbing(extras != null
+                        && extras.getBoolean(PlaybackManager.EXTRA_SCRUBBING));
+            } else if (PlayQueue.CUSTOM_ACTION_SHUFFLE.equals(action)) {
+                if (extras != null && extras.containsKey(PlayQueue.EXTRA_SHUFFLE)) {
+                    mQueue.setShuffled(extras.getBoolean(PlayQueue.EXTRA_SHUFFLE));
+                } else {
+                    mQueue.setShuffled(!mQueue.isShuffled());
+                }
+                publishPlaybackState();
+            } else if (PlayQueue.CUSTOM_ACTION_REPEAT.equals(action)) {
+                if (extras != null && extras.containsKey(PlayQueue.EXTRA_REPEAT_MODE)) {
+                    int repeatMode = extras.getInt(PlayQueue.EXTRA_REPEAT_MODE);
+                    if (!PlayQueue.isValidRepeatMode(repeatMode)) {
+                        return;
+                    }
+                    mQueue.setRepeatMode(repeatMode);
+                } else {
+                    mQueue.setRepeatMode(PlayQueue.nextRepeatMode(mQueue.getRepeatMode()));
+                }
+                publishPlaybackState();
+            } else if (OfflineStore.CUSTOM_ACTION_PIN.equals(action) && extras != null) {
+                OfflineStore store = OfflineStore.getInstance(MusicService.this);
+                if (extras.containsKey(OfflineStore.EXTRA_ALBUM)) {
+                    store.pinAlbum(extras.getString(OfflineStore.EXTRA_ALBUM));
+                } else if (extras.containsKey(OfflineStore.EXTRA_MEDIA_ID)) {
+                    store.pin(extras.getString(OfflineStore.EXTRA_MEDIA_ID));
+                }
+            } else if (OfflineStore.CUSTOM_ACTION_UNPIN.equals(action) && extras != null) {
+                OfflineStore store = OfflineStore.getInstance(MusicService.this);
+                if (extras.containsKey(OfflineStore.EXTRA_ALBUM)) {
+                    store.unpinAlbum(extras.getString(OfflineStore.EXTRA_ALBUM));
+                } else if (extras.containsKey(OfflineStore.EXTRA_MEDIA_ID)) {
+                    store.unpin(extras.getString(OfflineStore.EXTRA_MEDIA_ID));
+                }
+            } else if (LibraryScanner.CUSTOM_ACTION_RESCAN.equals(action)) {
+                // Before startup is done, the scan it starts will do.
+                if (mLibraryScanner != null) {
+                    mLibraryScanner.scan();
+                }
+            } else if (CastRouteController.CUSTOM_ACTION_CAST.equals(action)
+                    && mCastController != null) {
+                mCastController.selectRoute(extras == null ? null
+                        : extras.getString(CastRouteController.EXTRA_ROUTE_ID));
+            }
+        }
+
+    }
+
+    /**
+     * Resolves a voice search. Structured searches ("play some jazz") use the focus and field
+     * extras, anything else is matched against all text fields. An empty query means the user
+     * just asked for music.
+     */
+    private List<MediaMetadata> searchMusic(String query, Bundle extras) {
+        String focus = extras == null ? null : extras.getString(MediaStore.EXTRA_MEDIA_FOCUS);
+        if (MediaStore.Audio.Genres.ENTRY_CONTENT_TYPE.equals(focus)) {
+            return MusicLibrary.getTracksBy(MediaMetadata.METADATA_KEY_GENRE,
+                    extras.getString(MediaStore.EXTRA_MEDIA_GENRE, ""), 1);
+        } else if (MediaStore.Audio.Artists.ENTRY_CONTENT_TYPE.equals(focus)) {
+            return MusicLibrary.getTracksBy(MediaMetadata.METADATA_KEY_ARTIST,
+                    extras.getString(MediaStore.EXTRA_MEDIA_ARTIST, ""), 1);
+        } else if (MediaStore.Audio.Albums.ENTRY_CONTENT_TYPE.equals(focus)) {
+            return MusicLibrary.getTracksBy(MediaMetadata.METADATA_KEY_ALBUM,
+                    extras.getString(MediaStore.EXTRA_MEDIA_ALBUM, ""), 1);
+        }
+        // Every track matches an empty query.
+        return MusicLibrary.search(query == null ? "" : query, 1);
+    }
+
+    /**
+     * Records that the user left the current track before it ended.
+     */
+    private void logSkip() {
+        if (mPlayback != null) {
+            PlaybackEventLog.getInstance(this).log(PlaybackEventLog.EVENT_SKIP,
+                    mPlayback.getCurrentMediaId(), mPlayback.getCurrentStreamPosition());
+        }
+    }
+
+    /**
+     * Looks up the media ids of the current track of the queue and the ones after it on the
+     * queue thread, then plays it, or only sends the player the new window if {@code play} is
+     * false. Paths of catalog tracks may have to be read from the database.
+     */
+    private void resolveQueuePosition(final boolean play) {
+        if (mDestroyed) {
+            return;
+        }
+        final List<String> mediaIds = mQueue.getMediaIds();
+        final int[] indexes = mQueue.getUpcomingIndexes(REMOTE_QUEUE_WINDOW);
+        final int generation = ++mResolveGeneration;
+        mQueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<String> window = new ArrayList<>(indexes.length);
+                for (int index : indexes) {
+                    window.add(mediaIds.get(index));
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mResolveGeneration || mDestroyed || window.isEmpty()) {
+                            return;
+                        }
+                        if (play) {
+                            playMediaId(window.get(0), window);
+                        } else {
+                            mQueueWindow = window;
+                            if (mPlayback != null) {
+                                mPlayback.setQueueWindow(window);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Plays {@code mediaId}, the first of {@code window}, which the player is sent for a
+     * receiver to play on from.
+     */
+    private void playMediaId(String mediaId, List<String> window) {
+        startPlaying();
+        MediaMetadata metadata = MusicLibrary.getMetadata(mediaId);
+        mSession.setMetadata(metadata);
+        mQueueWindow = window;
+        getPlayback().setQueueWindow(window);
+        // Resolved here, so the playback thread doesn't query the database.
+        getPlayback().play(mediaId, MusicLibrary.getTrackGain(metadata));
+    }
+
+    /**
+     * Keeps the service running while it plays, even after every browser has disconnected.
+     */
+    private void startPlaying() {
+        startService(new Intent(getApplicationContext(), MusicService.class));
+        mSession.setActive(true);
     }
 
     /**
      * Handle a request to stop music
      */
     private void stopPlaying() {
-        mPlayback.stop();
+        if (mPlayback != null) {
+            mPlayback.stop();
+        }
         stopSelf();
     }
 
     @Override
     public void onPlaybackStatusChanged(PlaybackState state) {
-        mSession.setPlaybackState(state);
+        String mediaId = mPlayback.getCurrentMediaId();
+        int skipped = mediaId != null ? mQueueWindow.indexOf(mediaId) : -1;
+        if (skipped > 0) {
+            // A receiver moved on to the next track of its batch.
+            mQueue.moveForward(skipped);
+            mQueueWindow = new ArrayList<>(mQueueWindow.subList(skipped, mQueueWindow.size()));
+            MediaMetadata metadata = MusicLibrary.getMetadata(mediaId);
+            mSession.setMetadata(metadata);
+        }
+        mPlaybackState = state;
+        publishPlaybackState();
         switch (state.getState()) {
             case PlaybackState.STATE_PLAYING:
             case PlaybackState.STATE_PAUSED:
+                if (mMediaNotificationManager == null) {
+                    long start = mStartup.begin();
+                    mMediaNotificationManager = new MediaNotificationManager(this);
+                    mStartup.end("notification", start);
+                }
                 mMediaNotificationManager.startNotification();
                 break;
+            case PlaybackState.STATE_SKIPPING_TO_NEXT:
+                // The track played to the end.
+                if (mQueue.moveOnCompletion()) {
+                    resolveQueuePosition(true);
+                } else {
+                    stopPlaying();
+                }
+                break;
             case PlaybackState.STATE_STOPPED:
                 stopPlaying();
                 break;
         }
     }
 
+    /**
+     * Publishes the latest player state with the shuffle and repeat actions of the queue.
+     */
+    private void publishPlaybackState() {
+        if (mPlaybackState == null) {
+            return;
+        }
+        boolean shuffled = mQueue.isShuffled();
+        int repeatLabel;
+        int repeatIcon;
+        switch (mQueue.getRepeatMode()) {
+            case PlayQueue.REPEAT_MODE_ALL:
+                repeatLabel = R.string.label_repeat_all;
+                repeatIcon = R.drawable.ic_repeat_white_24dp;
+                break;
+            case PlayQueue.REPEAT_MODE_ONE:
+                repeatLabel = R.string.label_repeat_one;
+                repeatIcon = R.drawable.ic_repeat_one_white_24dp;
+                break;
+            default:
+                repeatLabel = R.string.label_repeat_off;
+                repeatIcon = R.drawable.ic_repeat_off_white_24dp;
+                break;
+        }
+        PlaybackState state = new PlaybackState.Builder(mPlaybackState)
+                .addCustomAction(new PlaybackState.CustomAction.Builder(
+                        PlayQueue.CUSTOM_ACTION_SHUFFLE,
+                        getString(shuffled ? R.string.label_shuffle_on
+                                : R.string.label_shuffle_off),
+                        shuffled ? R.drawable.ic_shuffle_white_24dp
+                                : R.drawable.ic_shuffle_off_white_24dp).build())
+                .addCustomAction(new PlaybackState.CustomAction.Builder(
+                        PlayQueue.CUSTOM_ACTION_REPEAT, getString(repeatLabel), repeatIcon)
+                        .build())
+                .build();
+        mSession.setPlaybackState(state);
+    }
+
 }
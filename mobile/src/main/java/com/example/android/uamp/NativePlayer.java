@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.PlaybackParams;
+import android.net.Uri;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * A {@link LocalPlayer} backed by {@link MediaPlayer}, which holds a partial wake lock while
+ * started. It plays at other speeds from API 23 on, through {@link PlaybackParams}, which
+ * time-stretches without changing the pitch.
+ */
+final class NativePlayer implements LocalPlayer, MediaPlayer.OnCompletionListener,
+        MediaPlayer.OnSeekCompleteListener {
+
+    private final MediaPlayer mPlayer;
+    private Listener mListener;
+
+    private NativePlayer(MediaPlayer player) {
+        mPlayer = player;
+        mPlayer.setOnCompletionListener(this);
+        mPlayer.setOnSeekCompleteListener(this);
+    }
+
+    /**
+     * Creates and prepares a player for {@code uri}, or returns null if it can't be played.
+     */
+    static NativePlayer create(Context context, Uri uri) {
+        Context application = context.getApplicationContext();
+        MediaPlayer player = MediaPlayer.create(application, uri);
+        if (player == null) {
+            return null;
+        }
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        player.setWakeMode(application, PowerManager.PARTIAL_WAKE_LOCK);
+        return new NativePlayer(player);
+    }
+
+    /**
+     * Returns whether MediaPlayer can play at speeds other than 1x on this device.
+     */
+    static boolean isSpeedSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void start() {
+        mPlayer.start();
+    }
+
+    @Override
+    public void pause() {
+        mPlayer.pause();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mPlayer.isPlaying();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return mPlayer.getDuration();
+    }
+
+    @Override
+    public void seekTo(int position) {
+        mPlayer.seekTo(position);
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        mPlayer.setVolume(volume, volume);
+    }
+
+    /**
+     * {@inheritDoc} On API 23 a non-zero speed also resumes a paused player. Ignored before
+     * API 23, where this player only plays at 1x.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public void setSpeed(float speed) {
+        if (isSpeedSupported()) {
+            PlaybackParams params = mPlayer.getPlaybackParams();
+            if (params.getSpeed() != speed) {
+                mPlayer.setPlaybackParams(params.setSpeed(speed));
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        mPlayer.reset();
+        mPlayer.release();
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer player) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCompletion(this);
+        }
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer player) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSeekComplete(this);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.media.MediaMetadata;
+import android.media.session.PlaybackState;
+
+/**
+ * The latest playback state and metadata of the {@link MusicService} session, as last seen by
+ * the UI through its MediaController. A recreated activity renders from here right away instead
+ * of waiting for its MediaBrowser to connect. The service runs in another process and doesn't
+ * use it.
+ */
+public final class NowPlaying {
+
+    private static volatile PlaybackState sPlaybackState;
+    private static volatile MediaMetadata sMetadata;
+
+    private NowPlaying() {
+    }
+
+    /**
+     * Returns the latest playback state, or null if nothing has played yet.
+     */
+    public static PlaybackState getPlaybackState() {
+        return sPlaybackState;
+    }
+
+    /**
+     * Returns the metadata of the current item, or null if nothing has played yet.
+     */
+    public static MediaMetadata getMetadata() {
+        return sMetadata;
+    }
+
+    public static void setPlaybackState(PlaybackState state) {
+        sPlaybackState = state;
+    }
+
+    public static void setMetadata(MediaMetadata metadata) {
+        sMetadata = metadata;
+    }
+}
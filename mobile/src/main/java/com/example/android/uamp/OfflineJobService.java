@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Process;
+
+/**
+ * Runs {@link OfflineStore#downloadPending()} while the constraints of the offline job hold.
+ * When they stop holding the download thread is interrupted, and the job runs again later with
+ * the chunks downloaded so far kept.
+ */
+public class OfflineJobService extends JobService {
+
+    private static final String TAG = "OfflineJobService";
+
+    private Thread mThread;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean retry;
+                try {
+                    retry = OfflineStore.getInstance(OfflineJobService.this).downloadPending();
+                } catch (InterruptedException e) {
+                    // Stopped by onStopJob, which asked for a retry already.
+                    return;
+                }
+                jobFinished(params, retry);
+            }
+        }, TAG);
+        mThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        mThread.interrupt();
+        return true;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaMetadata;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Tracks pinned for offline playback and their downloaded copies, which
+ * {@link MusicLibrary#getSongUri} plays instead of the stream once they are complete.
+ * <p/>
+ * Pinning a track or an album schedules a job that only runs while the device is charging and
+ * on an unmetered network, see {@link OfflineJobService}. The job downloads the missing tracks
+ * one after the other, each as a {@link ChunkedDownload}, so an interrupted job resumes with
+ * the missing chunks. Downloads stay within a quota: at most {@link #MAX_QUOTA_BYTES}, and at
+ * most half of the free space. Tracks that don't fit wait until space is freed by unpinning.
+ * The job is persisted across reboots and scheduled again at startup while tracks are missing.
+ * <p/>
+ * Pinning and unpinning read the catalog, so they are applied in order on a background thread.
+ * <p/>
+ * Pins are kept in shared preferences; the copies in the files directory. Lives in the
+ * playback process with the service and the job.
+ */
+public final class OfflineStore {
+
+    private static final String TAG = "OfflineStore";
+
+    // Custom session actions that pin or unpin the track in EXTRA_MEDIA_ID or every track of
+    // the album in EXTRA_ALBUM
+    public static final String CUSTOM_ACTION_PIN = "com.example.android.uamp.PIN";
+    public static final String CUSTOM_ACTION_UNPIN = "com.example.android.uamp.UNPIN";
+    public static final String EXTRA_MEDIA_ID = "com.example.android.uamp.EXTRA_MEDIA_ID";
+    public static final String EXTRA_ALBUM = "com.example.android.uamp.EXTRA_ALBUM";
+
+    public static final long MAX_QUOTA_BYTES = 1024L * 1024L * 1024L;
+
+    private static final String PREFS_NAME = "offline";
+    private static final String KEY_PINNED = "pinned";
+    private static final String DIR_NAME = "offline";
+    private static final String SUFFIX = ".mp3";
+    private static final int JOB_ID = 1;
+    private static final int CHUNK_SIZE = 512 * 1024;
+    // Connections per track; servers throttle more than that
+    private static final int CONNECTIONS = 3;
+    private static final int MAX_ALBUM_TRACKS = 500;
+
+    private static OfflineStore sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final File mDir;
+    // Applies pins and unpins, in the order they were made
+    private final ExecutorService mExecutor;
+    // Pinned tracks with a verified copy; getSongUri reads it on the playback thread
+    private final Set<String> mDownloaded =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public static synchronized OfflineStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OfflineStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drops the instance, so the next {@link #getInstance} creates one for the current
+     * application. For tests.
+     */
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    private OfflineStore(Context context) {
+        mContext = context;
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+        Set<String> pinned = getPinned();
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SUFFIX)) {
+                    String mediaId = decode(name.substring(0, name.length() - SUFFIX.length()));
+                    if (pinned.contains(mediaId)) {
+                        mDownloaded.add(mediaId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the downloaded copy of a track, or null if there is none yet.
+     */
+    public File getLocalFile(String mediaId) {
+        return mDownloaded.contains(mediaId) ? getFile(mediaId) : null;
+    }
+
+    public boolean isPinned(String mediaId) {
+        return getPinned().contains(mediaId);
+    }
+
+    /**
+     * Keeps a copy of the track for offline playback. Tracks already on the device and ids
+     * that are not in the catalog are left alone.
+     */
+    public void pin(final String mediaId) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pin(Collections.singleton(mediaId));
+            }
+        });
+    }
+
+    /**
+     * Keeps a copy of every track of the album for offline playback.
+     */
+    public void pinAlbum(final String album) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pin(getAlbumMediaIds(album));
+            }
+        });
+    }
+
+    /**
+     * Deletes the copy of the track, or stops its download.
+     */
+    public void unpin(final String mediaId) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                unpin(Collections.singleton(mediaId));
+            }
+        });
+    }
+
+    /**
+     * Unpins every track of the album.
+     */
+    public void unpinAlbum(final String album) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                unpin(getAlbumMediaIds(album));
+            }
+        });
+    }
+
+    /**
+     * Schedules the download job if pinned tracks are missing, in case the pending job was
+     * dropped, such as by a force stop.
+     */
+    public void schedulePending() {
+        Set<String> missing = getPinned();
+        missing.removeAll(mDownloaded);
+        if (!missing.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Downloads the pinned tracks that have no copy yet, on the calling background thread.
+     * Returns whether the job should be retried later because a download failed; tracks over
+     * the quota don't count.
+     *
+     * @throws InterruptedException when the thread was interrupted, such as when the job's
+     *                              constraints no longer hold
+     */
+    boolean downloadPending() throws InterruptedException {
+        boolean retry = false;
+        ExecutorService executor = Executors.newFixedThreadPool(CONNECTIONS);
+        try {
+            for (String mediaId : getPinned()) {
+                if (mDownloaded.contains(mediaId)) {
+                    continue;
+                }
+                ChunkedDownload download = createDownload(mediaId);
+                try {
+                    long length = download.probe();
+                    // What an earlier attempt preallocated is already this track's space.
+                    if (length < 0 || length > getRemainingQuota(download.getPartialBytes())) {
+                        Log.i(TAG, "No room for " + mediaId + " in the offline quota");
+                        continue;
+                    }
+                    download.run(executor, CONNECTIONS);
+                } catch (IOException e) {
+                    // A read that timed out is an InterruptedIOException too, but only worth
+                    // a retry; the flag tells the two apart.
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
+                    }
+                    Log.w(TAG, "Unable to download " + mediaId, e);
+                    retry = true;
+                    continue;
+                }
+                if (isPinned(mediaId)) {
+                    mDownloaded.add(mediaId);
+                } else {
+                    // Unpinned while it was downloading
+                    download.delete();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return retry;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Offline tracks: " + mDownloaded.size() + " of " + getPinned().size()
+                + " downloaded, " + getUsedBytes() / 1024 + " KiB used");
+    }
+
+    private void pin(Set<String> mediaIds) {
+        synchronized (this) {
+            Set<String> pinned = getPinned();
+            for (String mediaId : mediaIds) {
+                if (MusicLibrary.isInDatabase(mediaId)) {
+                    continue;
+                }
+                if (MusicLibrary.getMetadata(mediaId) == null) {
+                    Log.w(TAG, "Not pinning unknown track " + mediaId);
+                    continue;
+                }
+                pinned.add(mediaId);
+            }
+            mPreferences.edit().putStringSet(KEY_PINNED, pinned).apply();
+        }
+        schedule();
+    }
+
+    private void unpin(Set<String> mediaIds) {
+        Set<String> unpinned = new HashSet<>();
+        synchronized (this) {
+            Set<String> pinned = getPinned();
+            for (String mediaId : mediaIds) {
+                if (pinned.remove(mediaId)) {
+                    unpinned.add(mediaId);
+                }
+            }
+            if (unpinned.isEmpty()) {
+                return;
+            }
+            mPreferences.edit().putStringSet(KEY_PINNED, pinned).apply();
+        }
+        for (String mediaId : unpinned) {
+            mDownloaded.remove(mediaId);
+            createDownload(mediaId).delete();
+        }
+        // The space may let tracks that were over the quota in.
+        schedule();
+    }
+
+    private static Set<String> getAlbumMediaIds(String album) {
+        Set<String> mediaIds = new HashSet<>();
+        for (MediaMetadata metadata : MusicLibrary.getTracksBy(
+                MediaMetadata.METADATA_KEY_ALBUM, album, MAX_ALBUM_TRACKS)) {
+            mediaIds.add(metadata.getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
+        }
+        return mediaIds;
+    }
+
+    /**
+     * Schedules the download job, replacing a pending one.
+     */
+    private void schedule() {
+        JobScheduler scheduler =
+                (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(mContext, OfflineJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build());
+    }
+
+    /**
+     * Returns a copy of the pinned media ids.
+     */
+    private synchronized Set<String> getPinned() {
+        return new HashSet<>(mPreferences.getStringSet(KEY_PINNED,
+                Collections.<String>emptySet()));
+    }
+
+    /**
+     * Returns how much more the downloads may take, not counting {@code ownBytes} already taken
+     * by the download the quota is checked for.
+     */
+    private long getRemainingQuota(long ownBytes) {
+        long used = getUsedBytes() - ownBytes;
+        long quota = Math.min(MAX_QUOTA_BYTES, used + mDir.getUsableSpace() / 2);
+        return quota - used;
+    }
+
+    /**
+     * Returns the size of the copies and partial downloads.
+     */
+    private long getUsedBytes() {
+        long used = 0;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                used += file.length();
+            }
+        }
+        return used;
+    }
+
+    private ChunkedDownload createDownload(String mediaId) {
+        if (!mDir.isDirectory()) {
+            mDir.mkdirs();
+        }
+        try {
+            return new ChunkedDownload(new URL(MusicLibrary.getRemoteSongUri(mediaId)),
+                    getFile(mediaId), CHUNK_SIZE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("No remote copy of " + mediaId, e);
+        }
+    }
+
+    private File getFile(String mediaId) {
+        try {
+            return new File(mDir, URLEncoder.encode(mediaId, "UTF-8") + SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The recently played and most played tracks, kept up to date with every play so the browse
+ * nodes listing them are served from memory.
+ * <p/>
+ * Recently played is a bounded deque of distinct media ids, most recent last. Most played is a
+ * min-heap of the top tracks by play count with an index of where each track sits in it. Play
+ * counts only ever go up by one, so every track outside the heap has at most the count of its
+ * root: a play either moves a track already in the heap down, or replaces the root. Both lists
+ * are updated in O(log n) for a heap of n tracks.
+ */
+final class PlayHistory {
+
+    private final int mMaxItems;
+    // Media ids in the order they were last played, as a set with O(1) move to the end
+    private final LinkedHashMap<String, Boolean> mRecent = new LinkedHashMap<>();
+    // Min-heap on play count of the most played tracks
+    private final String[] mHeapIds;
+    private final int[] mHeapCounts;
+    private final Map<String, Integer> mHeapIndex = new HashMap<>();
+    private int mHeapSize;
+    private int mVersion;
+
+    PlayHistory(int maxItems) {
+        mMaxItems = maxItems;
+        mHeapIds = new String[maxItems];
+        mHeapCounts = new int[maxItems];
+    }
+
+    /**
+     * Records a play of a track that has now been played {@code playCount} times.
+     */
+    synchronized void onPlayed(String mediaId, int playCount) {
+        mVersion++;
+        mRecent.remove(mediaId);
+        mRecent.put(mediaId, Boolean.TRUE);
+        if (mRecent.size() > mMaxItems) {
+            Iterator<String> eldest = mRecent.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+
+        Integer index = mHeapIndex.get(mediaId);
+        if (index != null) {
+            mHeapCounts[index] = playCount;
+            siftDown(index);
+        } else if (mHeapSize < mMaxItems) {
+            set(mHeapSize, mediaId, playCount);
+            mHeapSize++;
+            siftUp(mHeapSize - 1);
+        } else if (playCount > mHeapCounts[0]) {
+            mHeapIndex.remove(mHeapIds[0]);
+            set(0, mediaId, playCount);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Returns up to {@code max} media ids, most recently played first.
+     */
+    synchronized List<String> getRecentlyPlayed(int max) {
+        List<String> result = new ArrayList<>(mRecent.keySet());
+        Collections.reverse(result);
+        return result.size() > max ? new ArrayList<>(result.subList(0, max)) : result;
+    }
+
+    /**
+     * Returns up to {@code max} media ids, most played first.
+     */
+    synchronized List<String> getMostPlayed(int max) {
+        Integer[] order = new Integer[mHeapSize];
+        for (int i = 0; i < mHeapSize; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return mHeapCounts[b] - mHeapCounts[a];
+            }
+        });
+        List<String> result = new ArrayList<>(Math.min(max, mHeapSize));
+        for (int i = 0; i < order.length && i < max; i++) {
+            result.add(mHeapIds[order[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a number that changes whenever the lists may have changed.
+     */
+    synchronized int getVersion() {
+        return mVersion;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (mHeapCounts[parent] <= mHeapCounts[index]) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < mHeapSize && mHeapCounts[left] < mHeapCounts[smallest]) {
+                smallest = left;
+            }
+            if (right < mHeapSize && mHeapCounts[right] < mHeapCounts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        String mediaId = mHeapIds[a];
+        int count = mHeapCounts[a];
+        set(a, mHeapIds[b], mHeapCounts[b]);
+        set(b, mediaId, count);
+    }
+
+    private void set(int index, String mediaId, int count) {
+        mHeapIds[index] = mediaId;
+        mHeapCounts[index] = count;
+        mHeapIndex.put(mediaId, index);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The play order of {@link MusicService}: a list of media ids, a position in it, and the
+ * shuffle and repeat modes. Skipping is constant time and shuffling takes no memory beyond a
+ * {@link ShuffleOrder}, so queues of the whole catalog are cheap however large it is.
+ * <p/>
+ * When shuffle is turned on, the current track becomes the first of the shuffled order, so the
+ * rest of the queue still plays exactly once. Not thread safe; the service uses it on the main
+ * thread.
+ * <p/>
+ * Looking up a media id in the list may query the database, so the service moves through the
+ * queue with the {@code move} methods, which only work on positions, and resolves the indexes
+ * they leave it at on a background thread.
+ */
+public final class PlayQueue {
+
+    // Custom session action that turns shuffle on or off, depending on EXTRA_SHUFFLE, or
+    // toggles it without that extra.
+    public static final String CUSTOM_ACTION_SHUFFLE = "com.example.android.uamp.SHUFFLE";
+    public static final String EXTRA_SHUFFLE = "com.example.android.uamp.EXTRA_SHUFFLE";
+    // Custom session action that sets the repeat mode in EXTRA_REPEAT_MODE, or cycles through
+    // off, all and one without that extra.
+    public static final String CUSTOM_ACTION_REPEAT = "com.example.android.uamp.REPEAT";
+    public static final String EXTRA_REPEAT_MODE = "com.example.android.uamp.EXTRA_REPEAT_MODE";
+
+    public static final int REPEAT_MODE_NONE = 0;
+    public static final int REPEAT_MODE_ALL = 1;
+    public static final int REPEAT_MODE_ONE = 2;
+
+    private final Random mRandom;
+    private List<String> mMediaIds = Collections.emptyList();
+    // Position in the play order, not in mMediaIds
+    private int mPosition;
+    private int mRepeatMode = REPEAT_MODE_NONE;
+    private ShuffleOrder mShuffleOrder;
+    // Index of the track the shuffle started from, which is swapped with the one the shuffle
+    // order puts first
+    private int mShuffleStart;
+
+    public PlayQueue() {
+        this(new Random());
+    }
+
+    PlayQueue(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Replaces the queue, keeping the shuffle and repeat modes. A new shuffle order starts at
+     * {@code index}.
+     *
+     * @param mediaIds the tracks, which the queue keeps a reference to
+     */
+    public void setQueue(List<String> mediaIds, int index) {
+        mMediaIds = mediaIds;
+        mPosition = 0;
+        if (mShuffleOrder != null) {
+            shuffleFrom(index);
+        } else {
+            mPosition = index;
+        }
+    }
+
+    public boolean isEmpty() {
+        return mMediaIds.isEmpty();
+    }
+
+    /**
+     * Returns the list the indexes of {@link #getCurrentIndex} and {@link #getUpcomingIndexes}
+     * refer to.
+     */
+    public List<String> getMediaIds() {
+        return mMediaIds;
+    }
+
+    /**
+     * Returns the index of the current track in {@link #getMediaIds}, or -1 if the queue is
+     * empty.
+     */
+    public int getCurrentIndex() {
+        return mMediaIds.isEmpty() ? -1 : getIndex(mPosition);
+    }
+
+    /**
+     * Returns the current media id, or null if the queue is empty.
+     */
+    public String getCurrentMediaId() {
+        return mMediaIds.isEmpty() ? null : mMediaIds.get(getIndex(mPosition));
+    }
+
+    public boolean isShuffled() {
+        return mShuffleOrder != null;
+    }
+
+    public void setShuffled(boolean shuffled) {
+        if (shuffled == isShuffled()) {
+            return;
+        }
+        int current = getIndex(mPosition);
+        if (shuffled) {
+            shuffleFrom(current);
+        } else {
+            mShuffleOrder = null;
+            mPosition = current;
+        }
+    }
+
+    public int getRepeatMode() {
+        return mRepeatMode;
+    }
+
+    /**
+     * @param repeatMode one of {@link #REPEAT_MODE_NONE}, {@link #REPEAT_MODE_ALL} or
+     *                   {@link #REPEAT_MODE_ONE}
+     */
+    public void setRepeatMode(int repeatMode) {
+        if (!isValidRepeatMode(repeatMode)) {
+            throw new IllegalArgumentException("Not a repeat mode: " + repeatMode);
+        }
+        mRepeatMode = repeatMode;
+    }
+
+    public static boolean isValidRepeatMode(int repeatMode) {
+        return repeatMode == REPEAT_MODE_NONE || repeatMode == REPEAT_MODE_ALL
+                || repeatMode == REPEAT_MODE_ONE;
+    }
+
+    /**
+     * Returns the repeat mode that follows {@code repeatMode} when cycling through off, all
+     * and one.
+     */
+    public static int nextRepeatMode(int repeatMode) {
+        switch (repeatMode) {
+            case REPEAT_MODE_NONE:
+                return REPEAT_MODE_ALL;
+            case REPEAT_MODE_ALL:
+                return REPEAT_MODE_ONE;
+            default:
+                return REPEAT_MODE_NONE;
+        }
+    }
+
+    /**
+     * Returns the indexes in {@link #getMediaIds} of the current track followed by up to
+     * {@code max - 1} of the ones that play after it, without wrapping around. With repeat one
+     * only the current one plays next.
+     */
+    public int[] getUpcomingIndexes(int max) {
+        if (mMediaIds.isEmpty()) {
+            return new int[0];
+        }
+        int end = mRepeatMode == REPEAT_MODE_ONE ? mPosition + 1
+                : Math.min(mMediaIds.size(), mPosition + max);
+        int[] upcoming = new int[end - mPosition];
+        for (int i = 0; i < upcoming.length; i++) {
+            upcoming[i] = getIndex(mPosition + i);
+        }
+        return upcoming;
+    }
+
+    /**
+     * Moves {@code count} tracks forward, as when a receiver played through a batch from
+     * {@link #getUpcomingIndexes} on its own. Stops at the last track.
+     */
+    public void moveForward(int count) {
+        mPosition = Math.max(0, Math.min(mMediaIds.size() - 1, mPosition + count));
+    }
+
+    /**
+     * Moves to the next track because the user skipped. Returns false if the end of the queue
+     * was reached without repeat.
+     */
+    public boolean moveToNext() {
+        if (mPosition + 1 < mMediaIds.size()) {
+            mPosition++;
+        } else if (mRepeatMode != REPEAT_MODE_NONE && !mMediaIds.isEmpty()) {
+            wrapAround();
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the previous track, or stays on the first one without repeat. Returns false if
+     * the queue is empty.
+     */
+    public boolean moveToPrevious() {
+        if (mPosition > 0) {
+            mPosition--;
+        } else if (mRepeatMode != REPEAT_MODE_NONE) {
+            mPosition = Math.max(0, mMediaIds.size() - 1);
+        }
+        return !mMediaIds.isEmpty();
+    }
+
+    /**
+     * Moves on after the current track played to the end. Returns false to stop.
+     */
+    public boolean moveOnCompletion() {
+        if (mRepeatMode == REPEAT_MODE_ONE) {
+            return !mMediaIds.isEmpty();
+        }
+        return moveToNext();
+    }
+
+    /**
+     * Like {@link #moveToNext}, but returns the new current media id, or null.
+     */
+    public String skipToNext() {
+        return moveToNext() ? getCurrentMediaId() : null;
+    }
+
+    /**
+     * Like {@link #moveToPrevious}, but returns the new current media id, or null.
+     */
+    public String skipToPrevious() {
+        return moveToPrevious() ? getCurrentMediaId() : null;
+    }
+
+    /**
+     * Like {@link #moveOnCompletion}, but returns the media id to play next, or null.
+     */
+    public String onCompletion() {
+        return moveOnCompletion() ? getCurrentMediaId() : null;
+    }
+
+    private void wrapAround() {
+        mPosition = 0;
+        if (mShuffleOrder != null) {
+            // Every pass plays in a new order, from whichever track it puts first.
+            mShuffleOrder = new ShuffleOrder(mMediaIds.size(), mRandom.nextLong());
+            mShuffleStart = mShuffleOrder.get(0);
+        }
+    }
+
+    private void shuffleFrom(int index) {
+        mShuffleOrder = new ShuffleOrder(Math.max(1, mMediaIds.size()), mRandom.nextLong());
+        mShuffleStart = index;
+        mPosition = 0;
+    }
+
+    /**
+     * Maps a position in the play order to an index in mMediaIds.
+     */
+    private int getIndex(int position) {
+        if (mShuffleOrder == null) {
+            return position;
+        }
+        // Swap the start track with the one the shuffle order plays first, so it comes first.
+        int index = mShuffleOrder.get(position);
+        if (index == mShuffleStart) {
+            return mShuffleOrder.get(0);
+        } else if (position == 0) {
+            return mShuffleStart;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Record of what gets played, paused, skipped, sought and played to the end, and the per track
+ * play counts and skip rates that follow from it.
+ * <p/>
+ * {@link #log} puts an event in an {@link EventRing} and returns; it is safe to call from the
+ * playback thread, which it never makes wait for a lock or for I/O. A background writer thread
+ * drains the ring a few seconds after the first pending event, appends the batch to an
+ * {@link EventLogFile} with a single write and folds it into the running
+ * {@link PlaybackStats} and {@link PlayHistory}. On start the writer replays the retained files
+ * into them once.
+ */
+public final class PlaybackEventLog {
+
+    private static final String TAG = "PlaybackEventLog";
+
+    public static final int EVENT_PLAY = 1;
+    public static final int EVENT_PAUSE = 2;
+    public static final int EVENT_SKIP = 3;
+    public static final int EVENT_COMPLETE = 4;
+    public static final int EVENT_SEEK = 5;
+    public static final int EVENT_FOCUS_LOSS = 6;
+
+    // Minutes of busy playback; a full ring drops events instead of blocking
+    private static final int RING_CAPACITY = 1024;
+    // How long events are batched before they are written
+    private static final long FLUSH_DELAY_MS = 5000;
+    // About 3800 events a file, so the retained files hold some 30000
+    private static final long MAX_FILE_BYTES = 64 * 1024;
+    private static final int MAX_FILES = 8;
+    // Length of the recently and most played lists
+    private static final int HISTORY_SIZE = 100;
+
+    private static final int MSG_OPEN = 1;
+    private static final int MSG_DRAIN = 2;
+
+    private static PlaybackEventLog sInstance;
+
+    private final EventRing mRing = new EventRing(RING_CAPACITY);
+    private final PlayHistory mHistory = new PlayHistory(HISTORY_SIZE);
+    private final PlaybackStats mStats = new PlaybackStats(mHistory);
+    private final EventLogFile mFile;
+    private final Handler mHandler;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final CountDownLatch mOpened = new CountDownLatch(1);
+    private volatile HistoryListener mHistoryListener;
+    // History version the listener was last told about, only used by the writer thread
+    private int mNotifiedVersion;
+    // Written by the writer thread, for dump()
+    private volatile long mWrittenCount;
+    private volatile String mFileStatus = "not open";
+
+    // Writes each drained event and counts it, on the writer thread
+    private final EventRing.Consumer mWriter = new EventRing.Consumer() {
+        @Override
+        public void onEvent(int type, String mediaId, int position, long time) {
+            mFile.onEvent(type, mediaId, position, time);
+            mStats.onEvent(type, mediaId, position, time);
+        }
+    };
+
+    /**
+     * Told when the recently or most played tracks changed, on the writer thread.
+     */
+    public interface HistoryListener {
+        void onHistoryChanged();
+    }
+
+    public static synchronized PlaybackEventLog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PlaybackEventLog(
+                    new File(context.getApplicationContext().getFilesDir(), "playback_events"));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drops the instance, so the next {@link #getInstance} creates one for the current
+     * application. For tests.
+     */
+    static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    private PlaybackEventLog(File dir) {
+        mFile = new EventLogFile(dir, MAX_FILE_BYTES, MAX_FILES);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_OPEN:
+                        handleOpen();
+                        break;
+                    case MSG_DRAIN:
+                        handleDrain();
+                        break;
+                }
+                return true;
+            }
+        });
+        mHandler.sendEmptyMessage(MSG_OPEN);
+    }
+
+    /**
+     * Records an event of the track at {@code position} milliseconds, from any thread.
+     *
+     * @param type one of the {@code EVENT_} constants
+     */
+    public void log(int type, String mediaId, int position) {
+        if (mediaId == null) {
+            return;
+        }
+        mRing.offer(type, mediaId, position, System.currentTimeMillis());
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessageDelayed(MSG_DRAIN, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes the pending events now, such as before the service goes away.
+     */
+    public void flush() {
+        mHandler.sendEmptyMessage(MSG_DRAIN);
+    }
+
+    /**
+     * Waits until the retained files have been replayed, so the history is complete. Not to be
+     * called on the main thread.
+     */
+    public void awaitOpen() throws InterruptedException {
+        mOpened.await();
+    }
+
+    public void setHistoryListener(HistoryListener listener) {
+        mHistoryListener = listener;
+    }
+
+    /**
+     * Returns the listener set last, or null. For tests.
+     */
+    HistoryListener getHistoryListener() {
+        return mHistoryListener;
+    }
+
+    /**
+     * Returns up to {@code max} media ids, most recently played first, as of the last write.
+     */
+    public List<String> getRecentlyPlayed(int max) {
+        return mHistory.getRecentlyPlayed(max);
+    }
+
+    /**
+     * Returns up to {@code max} media ids, most played first, as of the last write.
+     */
+    public List<String> getMostPlayed(int max) {
+        return mHistory.getMostPlayed(max);
+    }
+
+    /**
+     * Returns how many times the track was started, as of the last write.
+     */
+    public int getPlayCount(String mediaId) {
+        return mStats.getPlayCount(mediaId);
+    }
+
+    /**
+     * Returns the part of the plays of the track that were skipped, from 0 to 1, as of the
+     * last write.
+     */
+    public float getSkipRate(String mediaId) {
+        return mStats.getSkipRate(mediaId);
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Playback events: " + mWrittenCount + " written, "
+                + mRing.getDroppedCount() + " dropped, " + mStats.getTrackCount()
+                + " tracks, " + mFileStatus);
+    }
+
+    private void handleOpen() {
+        try {
+            mFile.open(mStats);
+            updateFileStatus();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open the event log", e);
+        } finally {
+            mNotifiedVersion = mHistory.getVersion();
+            mOpened.countDown();
+        }
+    }
+
+    private void handleDrain() {
+        mDrainScheduled.set(false);
+        mWrittenCount += mRing.drain(mWriter);
+        try {
+            mFile.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write playback events", e);
+        }
+        updateFileStatus();
+        int version = mHistory.getVersion();
+        HistoryListener listener = mHistoryListener;
+        if (version != mNotifiedVersion && listener != null) {
+            mNotifiedVersion = version;
+            listener.onHistoryChanged();
+        }
+    }
+
+    private void updateFileStatus() {
+        mFileStatus = "file " + mFile.getFileNumber() + " at " + mFile.getFileSize() + " bytes";
+    }
+}
@@ -17,19 +17,52 @@ package com.example.android.uamp;
 
 import android.content.Context;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
 import android.media.session.PlaybackState;
 import android.net.Uri;
-import android.os.PowerManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.os.SystemClock;
+import android.text.TextUtils;
 
-import static android.media.MediaPlayer.OnCompletionListener;
+import java.text.NumberFormat;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A class that implements local media playback using {@link MediaPlayer}
+ * A class that implements local media playback using a {@link LocalPlayer}
+ * <p/>
+ * All playback transitions run on a single dedicated playback thread: the public methods only
+ * enqueue commands, and every field that describes the player is confined to that thread.
+ * Readers on any other thread see an immutable {@link Snapshot} published after each
+ * transition, so {@link #isPlaying()} and {@link #getCurrentStreamPosition()} never call into
+ * the native player. Callbacks are delivered on the main thread.
+ * <p/>
+ * The position is tracked by a {@link PositionClock} anchored at each transition and
+ * extrapolated in between. While playing, the player is only asked for its real position every
+ * {@link #DRIFT_CHECK_INTERVAL_MS} to detect drift.
+ * <p/>
+ * Variable playback speed time-stretches without changing the pitch. From API 23 MediaPlayer
+ * does it ({@link NativePlayer}); before that a track played at another speed than 1x goes
+ * through a {@link StretchPlayer}, and changing between 1x and another speed switches players
+ * at the current position.
+ * <p/>
+ * Native seeks go through a {@link SeekController}, which keeps one in flight and coalesces the
+ * rest. In scrub mode ({@link #setScrubbing(boolean)}) seeks keep the playing state so the
+ * position follows the input, and the release ends with a precise seek.
+ * <p/>
+ * Playback can be handed over to a {@link RemotePlayback} receiver and back. The handoff carries
+ * the position and sends the receiver the window of the queue set with
+ * {@link #setQueueWindow} in one load; the clock then runs from the receiver's status updates.
+ * <p/>
+ * A player that stays paused is released after an idle timeout and the position restored on
+ * the next play; see {@link PlaybackResources} for the timeout and the lock accounting.
  */
 public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
-        MediaPlayer.OnCompletionListener, MediaPlayer.OnSeekCompleteListener {
+        LocalPlayer.Listener {
 
     // The volume we set the media player to when we lose audio focus, but are
     // allowed to reduce the volume instead of stopping playback.
@@ -37,6 +70,24 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
     // The volume we set the media player when we have audio focus.
     public static final float VOLUME_NORMAL = 1.0f;
 
+    // Range of supported playback speeds
+    public static final float MIN_PLAYBACK_SPEED = 0.5f;
+    public static final float MAX_PLAYBACK_SPEED = 3.0f;
+
+    // Custom session action that changes the playback speed. With EXTRA_PLAYBACK_SPEED it sets
+    // that speed, without it cycles through PLAYBACK_SPEED_PRESETS.
+    public static final String CUSTOM_ACTION_PLAYBACK_SPEED =
+            "com.example.android.uamp.PLAYBACK_SPEED";
+    public static final String EXTRA_PLAYBACK_SPEED = "com.example.android.uamp.EXTRA_SPEED";
+
+    // Custom session action that starts or ends a scrub gesture, depending on EXTRA_SCRUBBING.
+    public static final String CUSTOM_ACTION_SCRUB = "com.example.android.uamp.SCRUB";
+    public static final String EXTRA_SCRUBBING = "com.example.android.uamp.EXTRA_SCRUBBING";
+
+    private static final float[] PLAYBACK_SPEED_PRESETS = {
+            0.5f, 0.75f, 1.0f, 1.25f, 1.5f, 2.0f, 3.0f
+    };
+
     // we don't have audio focus, and can't duck (play at a low volume)
     private static final int AUDIO_NO_FOCUS_NO_DUCK = 0;
     // we don't have focus, but can duck (play at a low volume)
@@ -44,81 +95,608 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
     // we have full audio focus
     private static final int AUDIO_FOCUSED  = 2;
 
+    // Commands handled on the playback thread
+    private static final int MSG_PLAY = 1;
+    private static final int MSG_PAUSE = 2;
+    private static final int MSG_STOP = 3;
+    private static final int MSG_SEEK = 4;
+    private static final int MSG_FOCUS_CHANGE = 5;
+    private static final int MSG_CHECK_DRIFT = 6;
+    private static final int MSG_SET_SPEED = 7;
+    private static final int MSG_CYCLE_SPEED = 8;
+    private static final int MSG_RELEASE_IDLE = 9;
+    private static final int MSG_SET_SCRUBBING = 10;
+    private static final int MSG_SWITCH_REMOTE = 11;
+    private static final int MSG_REMOTE_STATUS = 12;
+    private static final int MSG_REMOTE_ITEM = 13;
+    private static final int MSG_REMOTE_FINISHED = 14;
+    private static final int MSG_REMOTE_DISCONNECTED = 15;
+
+    // Track gain of a play command that keeps the gain of the current item
+    private static final float KEEP_TRACK_GAIN = Float.NaN;
+
+    // How often the extrapolated position is compared with the player while playing
+    private static final long DRIFT_CHECK_INTERVAL_MS = 15000;
+    // How far the extrapolated position may be off before the clock is re-anchored
+    private static final long DRIFT_TOLERANCE_MS = 250;
+
+    // Marks that no seek is waiting to be applied
+    private static final int NO_PENDING_SEEK = -1;
+
     private final Context mContext;
+    private final HandlerThread mPlaybackThread;
+    private final Handler mHandler;
+    private final Handler mCallbackHandler;
+    private final PlaybackResources mResources;
+    private final SeekController mSeeks = new SeekController();
+    private volatile Callback mCallback;
+    private volatile Snapshot mSnapshot = Snapshot.IDLE;
+    private volatile PlaybackEventLog mEventLog;
+
+    // Latest seek target requested by a caller that the playback thread has not applied yet.
+    // Seeks issued while one is pending replace its target instead of queuing another command.
+    private final AtomicInteger mPendingSeek = new AtomicInteger(NO_PENDING_SEEK);
+    // The current item and the ones that play after it, sent to a receiver in one batch
+    private volatile List<String> mQueueWindow = Collections.emptyList();
+
+    // Everything below is only accessed on the playback thread.
     private int mState;
     private boolean mPlayOnFocusGain;
-    private Callback mCallback;
-    private volatile int mCurrentPosition;
-    private volatile String mCurrentMediaId;
+    private int mCurrentPosition;
+    private int mDuration = -1;
+    private float mPlaybackSpeed = 1.0f;
+    // Loudness normalization factor of the current item, applied on top of the focus volume
+    private float mTrackGain = 1.0f;
+    private PositionClock mClock = PositionClock.ZERO;
+    private String mCurrentMediaId;
+    // Whether the paused player was released to save power and mCurrentPosition must be
+    // restored when the same item plays again
+    private boolean mRestorePosition;
+    private boolean mHoldingResources;
+    // Whether the player's data source is on the network, decided when it is set
+    private boolean mStreaming;
+    private boolean mScrubbing;
+    // The receiver playback was handed to, or null when playing locally
+    private RemotePlayback mRemote;
+    // What the receiver was loaded with
+    private List<String> mRemoteQueue = Collections.emptyList();
 
     // Type of audio focus we have:
     private int mAudioFocus = AUDIO_NO_FOCUS_NO_DUCK;
     private AudioManager mAudioManager;
-    private MediaPlayer mMediaPlayer;
+    private LocalPlayer mPlayer;
 
     public PlaybackManager(Context context) {
         this.mContext = context;
         this.mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mResources = new PlaybackResources(context);
+
+        mPlaybackThread = new HandlerThread("PlaybackManager", Process.THREAD_PRIORITY_AUDIO);
+        mPlaybackThread.start();
+        mHandler = new Handler(mPlaybackThread.getLooper(), mCommandHandler);
+        mCallbackHandler = new Handler(Looper.getMainLooper());
     }
 
     public boolean isPlaying() {
-        return mPlayOnFocusGain || (mMediaPlayer != null && mMediaPlayer.isPlaying());
+        return mSnapshot.playing;
     }
 
     public String getCurrentMediaId() {
-        return mCurrentMediaId;
+        return mSnapshot.mediaId;
     }
 
     public int getCurrentStreamPosition() {
-        return mMediaPlayer != null ?
-                mMediaPlayer.getCurrentPosition() : mCurrentPosition;
+        return (int) mSnapshot.clock.getPosition(SystemClock.elapsedRealtime());
     }
 
+    /**
+     * Returns the clock the current position is extrapolated from.
+     */
+    public PositionClock getPositionClock() {
+        return mSnapshot.clock;
+    }
+
+    public float getPlaybackSpeed() {
+        return mSnapshot.speed;
+    }
+
+    /**
+     * Changes the playback speed, clamped to [{@link #MIN_PLAYBACK_SPEED},
+     * {@link #MAX_PLAYBACK_SPEED}]. Ignored while playing remotely.
+     */
+    public void setPlaybackSpeed(float speed) {
+        speed = Math.max(MIN_PLAYBACK_SPEED, Math.min(MAX_PLAYBACK_SPEED, speed));
+        mHandler.obtainMessage(MSG_SET_SPEED, Float.floatToIntBits(speed), 0).sendToTarget();
+    }
+
+    /**
+     * Switches to the next faster speed preset, wrapping around to the slowest one.
+     */
+    public void cyclePlaybackSpeed() {
+        mHandler.sendEmptyMessage(MSG_CYCLE_SPEED);
+    }
+
+    /**
+     * Plays an item, or resumes it at the gain it was started with.
+     */
     public void play(String mediaId) {
-        mCurrentMediaId = mediaId;
+        play(mediaId, KEEP_TRACK_GAIN);
+    }
+
+    /**
+     * Plays an item with its loudness normalized by {@code trackGain}, a linear volume factor
+     * the caller resolves from the item's metadata, see {@link MusicLibrary#getTrackGain}.
+     */
+    public void play(String mediaId, float trackGain) {
+        mHandler.obtainMessage(MSG_PLAY, Float.floatToIntBits(trackGain), 0, mediaId)
+                .sendToTarget();
+    }
+
+    public void pause() {
+        mHandler.sendEmptyMessage(MSG_PAUSE);
+    }
+
+    public void stop() {
+        // A stop supersedes anything that is still waiting in the queue.
+        mHandler.removeMessages(MSG_PLAY);
+        mHandler.removeMessages(MSG_PAUSE);
+        mHandler.removeMessages(MSG_SEEK);
+        mPendingSeek.set(NO_PENDING_SEEK);
+        mHandler.sendEmptyMessage(MSG_STOP);
+    }
+
+    /**
+     * Seeks the current item to the given position. Consecutive seeks that arrive before the
+     * playback thread gets to them are collapsed into the latest one, and a seek that follows a
+     * pending {@link #play(String)} is applied as part of preparing that item.
+     *
+     * @param position position in milliseconds
+     */
+    public void seekTo(int position) {
+        if (mPendingSeek.getAndSet(Math.max(0, position)) == NO_PENDING_SEEK) {
+            mHandler.sendEmptyMessage(MSG_SEEK);
+        }
+    }
+
+    /**
+     * Starts or ends a scrub gesture. While scrubbing, seeks move the reported position right
+     * away and the player follows as fast as it can seek; ending the gesture seeks precisely
+     * to where it stopped.
+     */
+    public void setScrubbing(boolean scrubbing) {
+        mHandler.obtainMessage(MSG_SET_SCRUBBING, scrubbing ? 1 : 0, 0).sendToTarget();
+    }
+
+    /**
+     * Sets the log the plays, pauses, seeks, completions and focus losses go to.
+     */
+    public void setEventLog(PlaybackEventLog eventLog) {
+        mEventLog = eventLog;
+    }
+
+    /**
+     * Sets the current item and the ones that follow it in the play order. A receiver that
+     * playback is handed to gets all of them in a single load and plays through them without
+     * further requests.
+     */
+    public void setQueueWindow(List<String> mediaIds) {
+        mQueueWindow = mediaIds;
+    }
+
+    /**
+     * Hands playback over to a receiver, at the current item and position. The local player is
+     * released, and playback continues on the receiver if it was playing.
+     */
+    public void switchToRemote(RemotePlayback remote) {
+        mHandler.obtainMessage(MSG_SWITCH_REMOTE, remote).sendToTarget();
+    }
+
+    /**
+     * Takes playback back from the receiver and continues locally where it was.
+     */
+    public void switchToLocal() {
+        mHandler.obtainMessage(MSG_SWITCH_REMOTE, null).sendToTarget();
+    }
+
+    /**
+     * Stops playback and shuts down the playback thread. The instance can't be used afterwards.
+     */
+    public void release() {
+        stop();
+        mPlaybackThread.quitSafely();
+    }
+
+    public void setCallback(Callback callback) {
+        this.mCallback = callback;
+    }
+
+    /**
+     * Returns the power policy, which also reports how long locks were held.
+     */
+    public PlaybackResources getResources() {
+        return mResources;
+    }
+
+    SeekController getSeekController() {
+        return mSeeks;
+    }
+
+    private final Handler.Callback mCommandHandler = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PLAY:
+                    handlePlay((String) msg.obj, Float.intBitsToFloat(msg.arg1));
+                    break;
+                case MSG_PAUSE:
+                    handlePause();
+                    break;
+                case MSG_STOP:
+                    handleStop();
+                    break;
+                case MSG_SEEK:
+                    handleSeek();
+                    break;
+                case MSG_FOCUS_CHANGE:
+                    handleAudioFocusChange(msg.arg1);
+                    break;
+                case MSG_CHECK_DRIFT:
+                    handleCheckDrift();
+                    break;
+                case MSG_SET_SPEED:
+                    handleSetSpeed(Float.intBitsToFloat(msg.arg1));
+                    break;
+                case MSG_CYCLE_SPEED:
+                    handleSetSpeed(nextSpeedPreset(mPlaybackSpeed));
+                    break;
+                case MSG_RELEASE_IDLE:
+                    handleReleaseIdle();
+                    break;
+                case MSG_SET_SCRUBBING:
+                    handleSetScrubbing(msg.arg1 != 0);
+                    break;
+                case MSG_SWITCH_REMOTE:
+                    handleSwitchRemote((RemotePlayback) msg.obj);
+                    break;
+                case MSG_REMOTE_STATUS:
+                    handleRemoteStatus(msg.arg1, (Long) msg.obj);
+                    break;
+                case MSG_REMOTE_ITEM:
+                    handleRemoteItem(msg.arg1);
+                    break;
+                case MSG_REMOTE_FINISHED:
+                    handleRemoteFinished();
+                    break;
+                case MSG_REMOTE_DISCONNECTED:
+                    handleRemoteDisconnected();
+                    break;
+                default:
+                    return false;
+            }
+            return true;
+        }
+    };
+
+    private void handlePlay(String mediaId, float trackGain) {
+        if (mRemote != null) {
+            playRemote(mediaId);
+            return;
+        }
         mPlayOnFocusGain = true;
         tryToGetAudioFocus();
 
-        mState = PlaybackState.STATE_STOPPED;
-        relaxResources(true);
+        int pendingSeek = mPendingSeek.getAndSet(NO_PENDING_SEEK);
+        boolean sameItem = TextUtils.equals(mediaId, mCurrentMediaId);
+        boolean resume = mPlayer != null && sameItem;
+        if (!Float.isNaN(trackGain)) {
+            mTrackGain = trackGain;
+        } else if (!sameItem) {
+            mTrackGain = 1.0f;
+        }
+        if (!resume) {
+            if (!sameItem || !mRestorePosition) {
+                mCurrentPosition = 0;
+            }
+            mRestorePosition = false;
+            mCurrentMediaId = mediaId;
+            mDuration = -1;
+            mState = PlaybackState.STATE_STOPPED;
+            relaxResources(true);
 
-        mMediaPlayer = MediaPlayer.create(mContext.getApplicationContext(),
-                Uri.parse(MusicLibrary.getSongUri(mediaId)));
-        mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        mMediaPlayer.setWakeMode(mContext.getApplicationContext(),
-                PowerManager.PARTIAL_WAKE_LOCK);
-        mMediaPlayer.setOnCompletionListener(this);
-        mMediaPlayer.setOnSeekCompleteListener(this);
+            String songUri = MusicLibrary.getSongUri(mediaId);
+            mStreaming = PlaybackResources.isStreaming(songUri);
+            long start = StallMonitor.begin();
+            mPlayer = createPlayer(Uri.parse(songUri));
+            StallMonitor.end("createPlayer", start);
+            if (mPlayer == null) {
+                mPlayOnFocusGain = false;
+                mState = PlaybackState.STATE_ERROR;
+                updatePlaybackState();
+                return;
+            }
+            mPlayer.setListener(this);
+            mDuration = mPlayer.getDuration();
+        }
+        if (pendingSeek != NO_PENDING_SEEK) {
+            mCurrentPosition = pendingSeek;
+        }
 
         configMediaPlayerState();
+        logEvent(PlaybackEventLog.EVENT_PLAY, mCurrentPosition);
     }
 
-    public void pause() {
-        if (mState == PlaybackState.STATE_PLAYING) {
-            // Pause media player and cancel the 'foreground service' state.
-            if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
-                mMediaPlayer.pause();
-                mCurrentPosition = mMediaPlayer.getCurrentPosition();
-            }
+    private void handlePause() {
+        if (isPlayingOrBuffering()) {
+            logEvent(PlaybackEventLog.EVENT_PAUSE, getPosition());
+        }
+        if (mRemote != null) {
+            mRemote.pause();
+        } else if (isPlayingOrBuffering()) {
+            pausePlayer();
             // while paused, retain the MediaPlayer but give up audio focus
             relaxResources(false);
             giveUpAudioFocus();
         }
+        mPlayOnFocusGain = false;
         mState = PlaybackState.STATE_PAUSED;
         updatePlaybackState();
     }
 
-    public void stop() {
+    /**
+     * Pauses the player without touching audio focus or mPlayOnFocusGain, so playback resumes
+     * when a transient focus loss ends. Doesn't report the new state.
+     */
+    private void pausePlayer() {
+        if (mPlayer != null && mPlayer.isPlaying()) {
+            mPlayer.pause();
+            // While buffering, the position is the target of the seek in flight.
+            if (mState == PlaybackState.STATE_PLAYING) {
+                mCurrentPosition = mPlayer.getCurrentPosition();
+            }
+        }
+        mState = PlaybackState.STATE_PAUSED;
+    }
+
+    /**
+     * Returns whether playback is meant to be audible: playing, or seeking to play on from the
+     * target. A seek while playing keeps the player started.
+     */
+    private boolean isPlayingOrBuffering() {
+        return mState == PlaybackState.STATE_PLAYING || mState == PlaybackState.STATE_BUFFERING;
+    }
+
+    private void handleStop() {
+        if (mRemote != null) {
+            mRemote.stop();
+        }
+        boolean changed = mState != PlaybackState.STATE_STOPPED;
         mState = PlaybackState.STATE_STOPPED;
-        updatePlaybackState();
+        mPlayOnFocusGain = false;
+        mRestorePosition = false;
+        mScrubbing = false;
+        if (mPlayer != null) {
+            mCurrentPosition = mPlayer.getCurrentPosition();
+        }
         // Give up Audio focus
         giveUpAudioFocus();
         // Relax all resources
         relaxResources(true);
+        mHoldingResources = false;
+        mResources.onStop();
+        // Listeners react to STOPPED by stopping us again, so only report actual changes.
+        if (changed) {
+            updatePlaybackState();
+        }
+    }
+
+    /**
+     * Releases the player of a track that played to the end and reports
+     * {@link PlaybackState#STATE_SKIPPING_TO_NEXT}, keeping audio focus. The callback either
+     * plays the next track or stops.
+     */
+    private void handleCompletion() {
+        mState = PlaybackState.STATE_SKIPPING_TO_NEXT;
+        mPlayOnFocusGain = false;
+        mRestorePosition = false;
+        mScrubbing = false;
+        mCurrentPosition = mPlayer.getCurrentPosition();
+        logEvent(PlaybackEventLog.EVENT_COMPLETE, mCurrentPosition);
+        relaxResources(true);
+        updatePlaybackState();
     }
 
-    public void setCallback(Callback callback) {
-        this.mCallback = callback;
+    private void handleSwitchRemote(RemotePlayback remote) {
+        if (remote == mRemote) {
+            return;
+        }
+        boolean playing = mState == PlaybackState.STATE_PLAYING
+                || mState == PlaybackState.STATE_BUFFERING || mPlayOnFocusGain;
+        if (mState == PlaybackState.STATE_PLAYING) {
+            mCurrentPosition = (int) mClock.getPosition(SystemClock.elapsedRealtime());
+        }
+        if (mRemote != null) {
+            mRemote.setListener(null);
+            mRemote.stop();
+        } else {
+            // The receiver plays at its own volume, so the local player and focus can go.
+            relaxResources(true);
+            giveUpAudioFocus();
+            mPlayOnFocusGain = false;
+        }
+        mRemote = remote;
+        if (mCurrentMediaId == null) {
+            if (remote != null) {
+                remote.setListener(mRemoteListener);
+            }
+            return;
+        }
+        if (remote != null) {
+            remote.setListener(mRemoteListener);
+            loadRemote(mCurrentMediaId, mCurrentPosition, playing);
+            mState = playing ? PlaybackState.STATE_BUFFERING : PlaybackState.STATE_PAUSED;
+            updatePlaybackState();
+        } else {
+            mRemoteQueue = Collections.emptyList();
+            mRestorePosition = true;
+            if (playing) {
+                handlePlay(mCurrentMediaId, KEEP_TRACK_GAIN);
+            } else {
+                mState = PlaybackState.STATE_PAUSED;
+                updatePlaybackState();
+            }
+        }
+    }
+
+    private void playRemote(String mediaId) {
+        int pendingSeek = mPendingSeek.getAndSet(NO_PENDING_SEEK);
+        if (TextUtils.equals(mediaId, mCurrentMediaId) && !mRemoteQueue.isEmpty()) {
+            if (pendingSeek != NO_PENDING_SEEK) {
+                mCurrentPosition = pendingSeek;
+                mRemote.seekTo(pendingSeek);
+            }
+            mRemote.play();
+        } else {
+            mCurrentMediaId = mediaId;
+            mDuration = -1;
+            mCurrentPosition = pendingSeek != NO_PENDING_SEEK ? pendingSeek : 0;
+            int index = mRemoteQueue.indexOf(mediaId);
+            if (index >= 0 && pendingSeek == NO_PENDING_SEEK) {
+                // Already on the receiver, no need to load anything.
+                mRemote.jumpTo(index);
+            } else {
+                loadRemote(mediaId, mCurrentPosition, true);
+            }
+        }
+        logEvent(PlaybackEventLog.EVENT_PLAY, mCurrentPosition);
+        mState = PlaybackState.STATE_BUFFERING;
+        updatePlaybackState();
+    }
+
+    /**
+     * Loads the receiver with the queue window if it starts at {@code mediaId}, or with just
+     * that item otherwise.
+     */
+    private void loadRemote(String mediaId, long position, boolean autoplay) {
+        List<String> window = mQueueWindow;
+        if (window.isEmpty() || !mediaId.equals(window.get(0))) {
+            window = Collections.singletonList(mediaId);
+        }
+        mRemoteQueue = window;
+        mRemote.load(window, position, autoplay);
+    }
+
+    private void handleRemoteStatus(int state, long position) {
+        if (mRemote == null || mCurrentMediaId == null) {
+            return;
+        }
+        mState = state;
+        mCurrentPosition = (int) position;
+        updatePlaybackState();
+    }
+
+    private void handleRemoteItem(int index) {
+        if (mRemote == null || index < 0 || index >= mRemoteQueue.size()) {
+            return;
+        }
+        logEvent(PlaybackEventLog.EVENT_COMPLETE, getPosition());
+        mCurrentMediaId = mRemoteQueue.get(index);
+        mDuration = -1;
+        mCurrentPosition = 0;
+        logEvent(PlaybackEventLog.EVENT_PLAY, 0);
+        updatePlaybackState();
+    }
+
+    private void handleRemoteFinished() {
+        if (mRemote == null) {
+            return;
+        }
+        logEvent(PlaybackEventLog.EVENT_COMPLETE, getPosition());
+        // Same as a local track that played to the end: the callback plays what comes next,
+        // which loads the receiver with the following window.
+        mRemoteQueue = Collections.emptyList();
+        mState = PlaybackState.STATE_SKIPPING_TO_NEXT;
+        updatePlaybackState();
+    }
+
+    private void handleRemoteDisconnected() {
+        if (mRemote == null) {
+            return;
+        }
+        // Don't blast the phone speaker when the speaker goes away; stay paused at the position.
+        if (mState == PlaybackState.STATE_PLAYING) {
+            mCurrentPosition = (int) mClock.getPosition(SystemClock.elapsedRealtime());
+        }
+        mRemote.setListener(null);
+        mRemote = null;
+        mRemoteQueue = Collections.emptyList();
+        mRestorePosition = true;
+        if (mCurrentMediaId != null) {
+            mState = PlaybackState.STATE_PAUSED;
+            updatePlaybackState();
+        }
+    }
+
+    /**
+     * Returns the position of the current item, extrapolated while playing.
+     */
+    private int getPosition() {
+        if (mState == PlaybackState.STATE_PLAYING) {
+            return (int) mClock.getPosition(SystemClock.elapsedRealtime());
+        }
+        return mCurrentPosition;
+    }
+
+    private void logEvent(int type, int position) {
+        PlaybackEventLog eventLog = mEventLog;
+        if (eventLog != null) {
+            eventLog.log(type, mCurrentMediaId, position);
+        }
+    }
+
+    private void handleSeek() {
+        int position = mPendingSeek.getAndSet(NO_PENDING_SEEK);
+        if (position == NO_PENDING_SEEK) {
+            // Already applied by a play command.
+            return;
+        }
+        mCurrentPosition = position;
+        if (!mScrubbing) {
+            // A scrub is logged once, where it ends.
+            logEvent(PlaybackEventLog.EVENT_SEEK, position);
+        }
+        if (mRemote != null) {
+            mRemote.seekTo(position);
+        } else if (mPlayer != null) {
+            // A scrub keeps playing from each step instead of flickering through buffering.
+            if (!mScrubbing && mState == PlaybackState.STATE_PLAYING) {
+                mState = PlaybackState.STATE_BUFFERING;
+            }
+            mSeeks.seekTo(mPlayer, position, mScrubbing);
+        }
+        updatePlaybackState();
+    }
+
+    private void handleSetScrubbing(boolean scrubbing) {
+        if (scrubbing == mScrubbing) {
+            return;
+        }
+        mScrubbing = scrubbing;
+        if (scrubbing || mPlayer == null) {
+            return;
+        }
+        // Land precisely on the last step, or where playback got to since then.
+        int position = mPendingSeek.getAndSet(NO_PENDING_SEEK);
+        if (position != NO_PENDING_SEEK) {
+            mCurrentPosition = position;
+        } else if (mState == PlaybackState.STATE_PLAYING) {
+            mCurrentPosition = (int) mClock.getPosition(SystemClock.elapsedRealtime());
+        }
+        if (mState == PlaybackState.STATE_PLAYING) {
+            mState = PlaybackState.STATE_BUFFERING;
+        }
+        mSeeks.seekTo(mPlayer, mCurrentPosition, false);
+        logEvent(PlaybackEventLog.EVENT_SEEK, mCurrentPosition);
+        updatePlaybackState();
     }
 
     /**
@@ -156,27 +734,34 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
      * you are sure this is the case.
      */
     private void configMediaPlayerState() {
+        if (mState == PlaybackState.STATE_PLAYING) {
+            // Nothing tells us where the player is right now, so carry the clock forward.
+            mCurrentPosition = (int) mClock.getPosition(SystemClock.elapsedRealtime());
+        }
         if (mAudioFocus == AUDIO_NO_FOCUS_NO_DUCK) {
             // If we don't have audio focus and can't duck, we have to pause,
-            if (mState == PlaybackState.STATE_PLAYING) {
-                pause();
+            if (isPlayingOrBuffering()) {
+                pausePlayer();
             }
         } else {  // we have audio focus:
-            if (mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK) {
-                mMediaPlayer.setVolume(VOLUME_DUCK, VOLUME_DUCK); // we'll be relatively quiet
-            } else {
-                if (mMediaPlayer != null) {
-                    mMediaPlayer.setVolume(VOLUME_NORMAL, VOLUME_NORMAL); // we can be loud again
-                } // else do something for remote client.
+            // The player is gone after an idle release; the next play sets the volume again.
+            if (mPlayer != null) {
+                if (mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK) {
+                    float volume = VOLUME_DUCK * mTrackGain;
+                    mPlayer.setVolume(volume); // we'll be relatively quiet
+                } else {
+                    float volume = VOLUME_NORMAL * mTrackGain;
+                    mPlayer.setVolume(volume); // we can be loud again
+                }
             }
             // If we were playing when we lost focus, we need to resume playing.
             if (mPlayOnFocusGain) {
-                if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
-                    if (mCurrentPosition == mMediaPlayer.getCurrentPosition()) {
-                        mMediaPlayer.start();
+                if (mPlayer != null && !mPlayer.isPlaying()) {
+                    if (mCurrentPosition == mPlayer.getCurrentPosition()) {
+                        startMediaPlayer();
                         mState = PlaybackState.STATE_PLAYING;
                     } else {
-                        mMediaPlayer.seekTo(mCurrentPosition);
+                        mSeeks.seekTo(mPlayer, mCurrentPosition, false);
                         mState = PlaybackState.STATE_BUFFERING;
                     }
                 }
@@ -192,6 +777,11 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
      */
     @Override
     public void onAudioFocusChange(int focusChange) {
+        // AudioManager calls us on the main thread; hand the change over to the playback thread.
+        mHandler.obtainMessage(MSG_FOCUS_CHANGE, focusChange, 0).sendToTarget();
+    }
+
+    private void handleAudioFocusChange(int focusChange) {
         if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
             // We have gained focus:
             mAudioFocus = AUDIO_FOCUSED;
@@ -206,33 +796,146 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
 
             // If we are playing, we need to reset media player by calling configMediaPlayerState
             // with mAudioFocus properly set.
-            if (mState == PlaybackState.STATE_PLAYING && !canDuck) {
+            if (isPlayingOrBuffering() && !canDuck) {
+                logEvent(PlaybackEventLog.EVENT_FOCUS_LOSS, getPosition());
                 // If we don't have audio focus and can't duck, we save the information that
                 // we were playing, so that we can resume playback once we get the focus back.
                 mPlayOnFocusGain = true;
             }
         }
-        configMediaPlayerState();
+        if (mPlayer != null) {
+            configMediaPlayerState();
+        } else if (mPlayOnFocusGain && mAudioFocus == AUDIO_FOCUSED && mRemote == null) {
+            // The idle timeout released the player while the focus was away, e.g. during a
+            // long call. Playing recreates it at the kept position.
+            handlePlay(mCurrentMediaId, KEEP_TRACK_GAIN);
+        }
     }
 
     /**
-     * Called when media player is done playing current song.
+     * Called when media player is done playing current song. The player was created on the
+     * playback thread, so this is delivered there as well.
      *
-     * @see OnCompletionListener
+     * @see LocalPlayer.Listener
      */
     @Override
-    public void onCompletion(MediaPlayer player) {
-        stop();
+    public void onCompletion(LocalPlayer player) {
+        if (player == mPlayer) {
+            handleCompletion();
+        }
+    }
+
+    private void handleSetSpeed(float speed) {
+        if (speed == mPlaybackSpeed || mRemote != null) {
+            return;
+        }
+        // Anchor the clock at the old speed before switching to the new one.
+        mCurrentPosition = (int) mClock.getPosition(SystemClock.elapsedRealtime());
+        mPlaybackSpeed = speed;
+        if (mPlayer != null && needsStretchPlayer() != mPlayer instanceof StretchPlayer) {
+            // Continue on the other kind of player from the current position.
+            relaxResources(true);
+            mRestorePosition = true;
+            if (isPlayingOrBuffering()) {
+                handlePlay(mCurrentMediaId, KEEP_TRACK_GAIN);
+                return;
+            }
+        }
+        if (mState == PlaybackState.STATE_PLAYING) {
+            applyPlaybackSpeed();
+        }
+        updatePlaybackState();
+    }
+
+    private static float nextSpeedPreset(float speed) {
+        for (float preset : PLAYBACK_SPEED_PRESETS) {
+            if (preset > speed) {
+                return preset;
+            }
+        }
+        return PLAYBACK_SPEED_PRESETS[0];
+    }
+
+    /**
+     * Returns whether the current speed needs a {@link StretchPlayer}: MediaPlayer only plays
+     * at other speeds than 1x from API 23.
+     */
+    private boolean needsStretchPlayer() {
+        return mPlaybackSpeed != 1.0f && !NativePlayer.isSpeedSupported();
+    }
+
+    private LocalPlayer createPlayer(Uri uri) {
+        if (needsStretchPlayer()) {
+            return StretchPlayer.create(mContext, uri);
+        }
+        return NativePlayer.create(mContext, uri);
+    }
+
+    /**
+     * Starts the player at the current playback speed.
+     */
+    private void startMediaPlayer() {
+        mPlayer.start();
+        applyPlaybackSpeed();
+    }
+
+    /**
+     * Applies mPlaybackSpeed to the player. Must only be called while playing; see
+     * {@link LocalPlayer#setSpeed}.
+     */
+    private void applyPlaybackSpeed() {
+        if (mPlayer != null) {
+            mPlayer.setSpeed(mPlaybackSpeed);
+        }
+    }
+
+    /**
+     * Releases the player of a paused item once it has been idle for the configured time. The
+     * position is kept, so the next play of the item, or the focus gain that ends a transient
+     * loss, continues where it was paused.
+     */
+    private void handleReleaseIdle() {
+        if (mState != PlaybackState.STATE_PAUSED || mPlayer == null) {
+            return;
+        }
+        mCurrentPosition = mPlayer.getCurrentPosition();
+        relaxResources(true);
+        mRestorePosition = true;
+        mResources.onIdleRelease();
+    }
+
+    private void handleCheckDrift() {
+        if (mState != PlaybackState.STATE_PLAYING || mPlayer == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        int actualPosition = mPlayer.getCurrentPosition();
+        if (mClock.hasDrifted(actualPosition, now, DRIFT_TOLERANCE_MS)) {
+            mCurrentPosition = actualPosition;
+            updatePlaybackState();
+        } else {
+            mHandler.sendEmptyMessageDelayed(MSG_CHECK_DRIFT, DRIFT_CHECK_INTERVAL_MS);
+        }
     }
 
     @Override
-    public void onSeekComplete(MediaPlayer player) {
+    public void onSeekComplete(LocalPlayer player) {
+        if (player != mPlayer || !mSeeks.onSeekComplete(player)) {
+            // A newer target is being sought.
+            return;
+        }
+        if (mScrubbing) {
+            // The reported position stays on the scrub target until the precise seek.
+            return;
+        }
         mCurrentPosition = player.getCurrentPosition();
         if (mState == PlaybackState.STATE_BUFFERING) {
-            mMediaPlayer.start();
+            startMediaPlayer();
             mState = PlaybackState.STATE_PLAYING;
         }
+        updatePlaybackState();
     }
+
     /**
      * Releases resources used by the service for playback. This includes the
      * "foreground service" status, the wake locks and possibly the MediaPlayer.
@@ -242,33 +945,130 @@ public class PlaybackManager implements AudioManager.OnAudioFocusChangeListener,
      */
     private void relaxResources(boolean releaseMediaPlayer) {
         // stop and release the Media Player, if it's available
-        if (releaseMediaPlayer && mMediaPlayer != null) {
-            mMediaPlayer.reset();
-            mMediaPlayer.release();
-            mMediaPlayer = null;
+        if (releaseMediaPlayer && mPlayer != null) {
+            mSeeks.reset();
+            mPlayer.release();
+            mPlayer = null;
         }
     }
 
     private long getAvailableActions() {
         long actions = PlaybackState.ACTION_PLAY | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID |
-                PlaybackState.ACTION_PLAY_FROM_SEARCH;
-        if (isPlaying()) {
+                PlaybackState.ACTION_PLAY_FROM_SEARCH | PlaybackState.ACTION_SEEK_TO |
+                PlaybackState.ACTION_SKIP_TO_NEXT | PlaybackState.ACTION_SKIP_TO_PREVIOUS;
+        if (mPlayOnFocusGain || isPlayingOrBuffering()) {
             actions |= PlaybackState.ACTION_PAUSE;
         }
         return actions;
     }
 
+    /**
+     * Re-anchors the position clock at {@link #mCurrentPosition}, publishes a new
+     * {@link Snapshot} and reports the state to the callback. Callers must make sure
+     * mCurrentPosition is up to date. Must be called on the playback thread.
+     */
     private void updatePlaybackState() {
-        if (mCallback == null) {
-            return;
+        long now = SystemClock.elapsedRealtime();
+        boolean running = mState == PlaybackState.STATE_PLAYING;
+        // Receivers play at normal speed.
+        float speed = mRemote == null ? mPlaybackSpeed : 1.0f;
+        mClock = new PositionClock(mCurrentPosition, now, running ? speed : 0f, mDuration);
+        mSnapshot = new Snapshot(mState, mCurrentMediaId, mClock, speed,
+                mPlayOnFocusGain || running);
+
+        mHandler.removeMessages(MSG_CHECK_DRIFT);
+        if (running) {
+            mHandler.sendEmptyMessageDelayed(MSG_CHECK_DRIFT, DRIFT_CHECK_INTERVAL_MS);
+        }
+        mHandler.removeMessages(MSG_RELEASE_IDLE);
+        if (mState == PlaybackState.STATE_PAUSED && mPlayer != null) {
+            mHandler.sendEmptyMessageDelayed(MSG_RELEASE_IDLE,
+                    mResources.getIdleReleaseTimeout());
+        }
+        // The player holds its wake lock while started, which includes seeking. A receiver
+        // doesn't need any.
+        boolean holding = mRemote == null
+                && (running || mState == PlaybackState.STATE_BUFFERING);
+        if (holding != mHoldingResources) {
+            mHoldingResources = holding;
+            mResources.onPlayingChanged(holding, mStreaming);
         }
+
         PlaybackState.Builder stateBuilder = new PlaybackState.Builder()
                 .setActions(getAvailableActions());
 
-        stateBuilder.setState(mState, getCurrentStreamPosition(), 1.0f, SystemClock.elapsedRealtime());
-        mCallback.onPlaybackStatusChanged(stateBuilder.build());
+        stateBuilder.setState(mState, mCurrentPosition, speed, now);
+        if (mRemote == null) {
+            stateBuilder.addCustomAction(new PlaybackState.CustomAction.Builder(
+                    CUSTOM_ACTION_PLAYBACK_SPEED,
+                    mContext.getString(R.string.label_playback_speed,
+                            formatSpeed(mPlaybackSpeed)),
+                    R.drawable.ic_speed_white_24dp).build());
+        }
+        final PlaybackState state = stateBuilder.build();
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Callback callback = mCallback;
+                if (callback != null) {
+                    callback.onPlaybackStatusChanged(state);
+                }
+            }
+        });
     }
 
+    private static String formatSpeed(float speed) {
+        NumberFormat format = NumberFormat.getNumberInstance();
+        format.setMinimumFractionDigits(1);
+        format.setMaximumFractionDigits(2);
+        return format.format(speed);
+    }
+
+    /**
+     * Immutable view of the playback state, safe to read from any thread.
+     */
+    private static final class Snapshot {
+        static final Snapshot IDLE = new Snapshot(PlaybackState.STATE_NONE, null,
+                PositionClock.ZERO, 1.0f, false);
+
+        final int state;
+        final String mediaId;
+        final PositionClock clock;
+        final float speed;
+        final boolean playing;
+
+        Snapshot(int state, String mediaId, PositionClock clock, float speed, boolean playing) {
+            this.state = state;
+            this.mediaId = mediaId;
+            this.clock = clock;
+            this.speed = speed;
+            this.playing = playing;
+        }
+    }
+
+    // Hands the receiver's events over to the playback thread
+    private final RemotePlayback.Listener mRemoteListener = new RemotePlayback.Listener() {
+        @Override
+        public void onStatusChanged(int state, long position) {
+            mHandler.obtainMessage(MSG_REMOTE_STATUS, state, 0, position).sendToTarget();
+        }
+
+        @Override
+        public void onItemChanged(int index) {
+            mHandler.obtainMessage(MSG_REMOTE_ITEM, index, 0).sendToTarget();
+        }
+
+        @Override
+        public void onQueueFinished() {
+            mHandler.sendEmptyMessage(MSG_REMOTE_FINISHED);
+        }
+
+        @Override
+        public void onDisconnected() {
+            mHandler.sendEmptyMessage(MSG_REMOTE_DISCONNECTED);
+        }
+    };
+
     public interface Callback {
         void onPlaybackStatusChanged(PlaybackState state);
     }
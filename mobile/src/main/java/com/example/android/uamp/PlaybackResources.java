@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.Context;
+import android.net.Uri;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * The power policy of {@link PlaybackManager}: how long a paused player may keep its codec
+ * resources, when to hold a WiFi lock, and how long locks were held.
+ * <p/>
+ * A paused player is released after {@link #getIdleReleaseTimeout()}; the playback manager
+ * keeps the position and restores it on the next play. The WiFi lock is only held while a
+ * network stream is playing; local files never need it. The player itself holds a partial wake
+ * lock while it plays, and the time it does is accounted per session, from the first play to
+ * the stop, and kept for the latest sessions.
+ * <p/>
+ * The policy methods are called on the playback thread; {@link #dump} may be called from any
+ * thread.
+ */
+public class PlaybackResources {
+
+    public static final long DEFAULT_IDLE_RELEASE_TIMEOUT_MS = 30000;
+
+    private static final String WIFI_LOCK_TAG = "uamp_lock";
+    private static final int SESSION_HISTORY = 10;
+
+    private final WifiManager.WifiLock mWifiLock;
+    private volatile long mIdleReleaseTimeoutMs = DEFAULT_IDLE_RELEASE_TIMEOUT_MS;
+
+    // Start of the current hold, or -1 when not held
+    private long mWakeLockSince = -1;
+    private long mWifiLockSince = -1;
+    private Session mSession;
+    private final ArrayDeque<Session> mHistory = new ArrayDeque<>();
+
+    public PlaybackResources(Context context) {
+        WifiManager wifiManager = (WifiManager) context.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+        mWifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, WIFI_LOCK_TAG);
+        mWifiLock.setReferenceCounted(false);
+    }
+
+    public long getIdleReleaseTimeout() {
+        return mIdleReleaseTimeoutMs;
+    }
+
+    /**
+     * Sets how long a paused player keeps its resources. Applies from the next pause.
+     */
+    public void setIdleReleaseTimeout(long timeoutMs) {
+        mIdleReleaseTimeoutMs = Math.max(0, timeoutMs);
+    }
+
+    /**
+     * Returns whether the track is streamed over the network.
+     */
+    static boolean isStreaming(String songUri) {
+        String scheme = songUri == null ? null : Uri.parse(songUri).getScheme();
+        return "http".equals(scheme) || "https".equals(scheme);
+    }
+
+    /**
+     * Called whenever the player starts or stops holding its wake lock, that is starts or stops
+     * playing.
+     */
+    synchronized void onPlayingChanged(boolean playing, boolean streaming) {
+        long now = SystemClock.elapsedRealtime();
+        if (playing) {
+            if (mSession == null) {
+                mSession = new Session(System.currentTimeMillis());
+            }
+            if (mWakeLockSince < 0) {
+                mWakeLockSince = now;
+            }
+            if (streaming && mWifiLockSince < 0) {
+                mWifiLock.acquire();
+                mWifiLockSince = now;
+            } else if (!streaming) {
+                releaseWifiLock(now);
+            }
+        } else {
+            if (mWakeLockSince >= 0) {
+                mSession.wakeLockMs += now - mWakeLockSince;
+                mWakeLockSince = -1;
+            }
+            releaseWifiLock(now);
+        }
+    }
+
+    synchronized void onIdleRelease() {
+        if (mSession != null) {
+            mSession.idleReleases++;
+        }
+    }
+
+    /**
+     * Called when playback stops. Ends the session.
+     */
+    synchronized void onStop() {
+        onPlayingChanged(false, false);
+        if (mSession != null) {
+            if (mHistory.size() == SESSION_HISTORY) {
+                mHistory.removeFirst();
+            }
+            mHistory.addLast(mSession);
+            mSession = null;
+        }
+    }
+
+    private void releaseWifiLock(long now) {
+        if (mWifiLockSince >= 0) {
+            mWifiLock.release();
+            mSession.wifiLockMs += now - mWifiLockSince;
+            mWifiLockSince = -1;
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Idle release timeout: " + mIdleReleaseTimeoutMs + " ms");
+        writer.println("Playback sessions (start, wake lock ms, WiFi lock ms, idle releases):");
+        for (Session session : mHistory) {
+            writer.println("  " + session);
+        }
+        if (mSession != null) {
+            long now = SystemClock.elapsedRealtime();
+            Session current = new Session(mSession.startTime);
+            current.wakeLockMs = mSession.wakeLockMs
+                    + (mWakeLockSince >= 0 ? now - mWakeLockSince : 0);
+            current.wifiLockMs = mSession.wifiLockMs
+                    + (mWifiLockSince >= 0 ? now - mWifiLockSince : 0);
+            current.idleReleases = mSession.idleReleases;
+            writer.println("  " + current + " (current)");
+        }
+    }
+
+    private static final class Session {
+        final long startTime;
+        long wakeLockMs;
+        long wifiLockMs;
+        int idleReleases;
+
+        Session(long startTime) {
+            this.startTime = startTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%tF %<tT, %d, %d, %d", startTime,
+                    wakeLockMs, wifiLockMs, idleReleases);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running per track aggregates of the playback events: how often each track was started,
+ * skipped and played to the end. Each event updates them in constant time, so queries never
+ * go back over the history.
+ * <p/>
+ * A track counts as played when it starts, not when it resumes after a pause; it counts as
+ * skipped when the user moved on before it ended. Every play is also passed on to a
+ * {@link PlayHistory}.
+ */
+final class PlaybackStats implements EventRing.Consumer {
+
+    private static final int PLAYS = 0;
+    private static final int SKIPS = 1;
+    private static final int COMPLETIONS = 2;
+
+    private final Map<String, int[]> mCounts = new HashMap<>();
+    private final PlayHistory mHistory;
+    // Track of the last play event, until it ended; only used by the consumer thread
+    private String mCurrentMediaId;
+
+    PlaybackStats(PlayHistory history) {
+        mHistory = history;
+    }
+
+    @Override
+    public synchronized void onEvent(int type, String mediaId, int position, long time) {
+        switch (type) {
+            case PlaybackEventLog.EVENT_PLAY:
+                if (!mediaId.equals(mCurrentMediaId)) {
+                    mCurrentMediaId = mediaId;
+                    mHistory.onPlayed(mediaId, ++getCounts(mediaId)[PLAYS]);
+                }
+                break;
+            case PlaybackEventLog.EVENT_SKIP:
+                getCounts(mediaId)[SKIPS]++;
+                mCurrentMediaId = null;
+                break;
+            case PlaybackEventLog.EVENT_COMPLETE:
+                getCounts(mediaId)[COMPLETIONS]++;
+                mCurrentMediaId = null;
+                break;
+        }
+    }
+
+    synchronized int getPlayCount(String mediaId) {
+        int[] counts = mCounts.get(mediaId);
+        return counts == null ? 0 : counts[PLAYS];
+    }
+
+    synchronized int getCompletionCount(String mediaId) {
+        int[] counts = mCounts.get(mediaId);
+        return counts == null ? 0 : counts[COMPLETIONS];
+    }
+
+    /**
+     * Returns the part of the plays of the track that were skipped, from 0 to 1.
+     */
+    synchronized float getSkipRate(String mediaId) {
+        int[] counts = mCounts.get(mediaId);
+        if (counts == null || counts[PLAYS] == 0) {
+            return 0f;
+        }
+        return Math.min(1f, (float) counts[SKIPS] / counts[PLAYS]);
+    }
+
+    synchronized int getTrackCount() {
+        return mCounts.size();
+    }
+
+    private int[] getCounts(String mediaId) {
+        int[] counts = mCounts.get(mediaId);
+        if (counts == null) {
+            counts = new int[3];
+            mCounts.put(mediaId, counts);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.media.session.PlaybackState;
+import android.os.SystemClock;
+
+/**
+ * Immutable playback position anchor. It records the position, the
+ * {@link SystemClock#elapsedRealtime()} it was taken at and the playback speed, and
+ * extrapolates from there the same way a {@link PlaybackState} is meant to be read. This lets
+ * any thread know the current position without asking the player.
+ */
+public final class PositionClock {
+
+    public static final PositionClock ZERO = new PositionClock(0, 0, 0f, -1);
+
+    private final long mPosition;
+    private final long mUpdateTime;
+    private final float mSpeed;
+    private final long mDuration;
+
+    /**
+     * @param position position in milliseconds at {@code updateTime}
+     * @param updateTime {@link SystemClock#elapsedRealtime()} when the position was taken
+     * @param speed playback speed, or 0 if the position isn't advancing
+     * @param duration duration of the item in milliseconds, or -1 if unknown
+     */
+    public PositionClock(long position, long updateTime, float speed, long duration) {
+        mPosition = position;
+        mUpdateTime = updateTime;
+        mSpeed = speed;
+        mDuration = duration;
+    }
+
+    public long getAnchorPosition() {
+        return mPosition;
+    }
+
+    public long getUpdateTime() {
+        return mUpdateTime;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    public boolean isRunning() {
+        return mSpeed != 0f;
+    }
+
+    public long getPosition() {
+        return getPosition(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Returns the extrapolated position at {@code now}, clamped to the item duration.
+     */
+    public long getPosition(long now) {
+        if (mSpeed == 0f || now <= mUpdateTime) {
+            return mPosition;
+        }
+        long position = mPosition + (long) ((now - mUpdateTime) * mSpeed);
+        if (mDuration >= 0 && position > mDuration) {
+            return mDuration;
+        }
+        return position;
+    }
+
+    /**
+     * Returns whether the position actually reported by the player has moved away from the
+     * extrapolated one by more than {@code tolerance} milliseconds.
+     */
+    public boolean hasDrifted(long actualPosition, long now, long tolerance) {
+        return Math.abs(actualPosition - getPosition(now)) > tolerance;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.util.List;
+
+/**
+ * A receiver that plays on another device, such as a Cast speaker. {@link PlaybackManager}
+ * hands playback over to it with {@link PlaybackManager#switchToRemote} and drives it instead
+ * of the local player.
+ * <p/>
+ * The receiver gets a batch of the queue in a single {@link #load} and moves through it on its
+ * own; skipping within the batch is a {@link #jumpTo}, not a new load. It reports status
+ * changes as they happen and is never polled for its position: the playback manager
+ * extrapolates from the last reported one.
+ * <p/>
+ * Commands are called on the playback thread. Listener methods may be called on any thread.
+ */
+public interface RemotePlayback {
+
+    void setListener(Listener listener);
+
+    /**
+     * Replaces the receiver's queue and starts with the first item.
+     *
+     * @param position where to start in the first item, in milliseconds
+     * @param autoplay whether to start playing once loaded, or stay paused
+     */
+    void load(List<String> mediaIds, long position, boolean autoplay);
+
+    /**
+     * Moves to an item of the loaded queue and plays it from the start.
+     */
+    void jumpTo(int index);
+
+    void play();
+
+    void pause();
+
+    void seekTo(long position);
+
+    /**
+     * Stops playback on the receiver. The connection stays open for another {@link #load}.
+     */
+    void stop();
+
+    interface Listener {
+        /**
+         * Called when the receiver changed state.
+         *
+         * @param state one of the {@link android.media.session.PlaybackState} states
+         * @param position position of the receiver at the time of the change, in milliseconds
+         */
+        void onStatusChanged(int state, long position);
+
+        /**
+         * Called when the receiver moved on to another item of the loaded queue.
+         */
+        void onItemChanged(int index);
+
+        /**
+         * Called when the receiver finished the last item of the loaded queue.
+         */
+        void onQueueFinished();
+
+        /**
+         * Called when the connection to the receiver was lost.
+         */
+        void onDisconnected();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Issues the native seeks of {@link PlaybackManager}. The players queue every seekTo, so a
+ * burst of seeks from a rotary crown or a scrub bar would be applied one after the other. This
+ * keeps at most one seek in flight and only the latest target of the ones that arrive meanwhile,
+ * which is issued when the in-flight seek completes.
+ * <p/>
+ * Seeks issued while scrubbing and precise seeks are timed separately, from seekTo to
+ * onSeekComplete. The seek methods are called on the playback thread; {@link #dump} may be
+ * called from any thread.
+ */
+final class SeekController {
+
+    private static final int NO_TARGET = -1;
+
+    private LocalPlayer mPlayer;
+    private boolean mInFlight;
+    private boolean mInFlightScrub;
+    private long mIssuedAt;
+    // Latest target that arrived while a seek was in flight
+    private int mNextTarget = NO_TARGET;
+    private boolean mNextScrub;
+
+    private final Latency mScrubLatency = new Latency();
+    private final Latency mPreciseLatency = new Latency();
+    private int mCoalesced;
+
+    /**
+     * Seeks the player to the position, or replaces the target of the seek that follows the
+     * one in flight.
+     *
+     * @param scrub whether the seek is an intermediate step of a scrub gesture
+     */
+    synchronized void seekTo(LocalPlayer player, int position, boolean scrub) {
+        if (mInFlight && player == mPlayer) {
+            if (mNextTarget != NO_TARGET) {
+                mCoalesced++;
+            }
+            mNextTarget = position;
+            mNextScrub = scrub;
+            return;
+        }
+        mPlayer = player;
+        mNextTarget = NO_TARGET;
+        issue(position, scrub);
+    }
+
+    /**
+     * Called when the player completed a seek. Returns true if the player is now at the
+     * latest target, false if a newer seek has been issued.
+     */
+    synchronized boolean onSeekComplete(LocalPlayer player) {
+        if (player != mPlayer || !mInFlight) {
+            // A seek that wasn't issued through here, like the one of MediaPlayer.create
+            return true;
+        }
+        long latency = SystemClock.elapsedRealtime() - mIssuedAt;
+        (mInFlightScrub ? mScrubLatency : mPreciseLatency).add(latency);
+        if (mNextTarget != NO_TARGET) {
+            int position = mNextTarget;
+            mNextTarget = NO_TARGET;
+            issue(position, mNextScrub);
+            return false;
+        }
+        mInFlight = false;
+        return true;
+    }
+
+    /**
+     * Forgets the player, which is being released with its seeks.
+     */
+    synchronized void reset() {
+        mPlayer = null;
+        mInFlight = false;
+        mNextTarget = NO_TARGET;
+    }
+
+    private void issue(int position, boolean scrub) {
+        mInFlight = true;
+        mInFlightScrub = scrub;
+        mIssuedAt = SystemClock.elapsedRealtime();
+        // Compiled against API 23, where seekTo has no mode; a scrub step lands wherever the
+        // player's default seek takes it and the precise seek on release corrects it.
+        mPlayer.seekTo(position);
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Seek latency (count, average ms, max ms, last ms):");
+        writer.println("  precise: " + mPreciseLatency);
+        writer.println("  scrub: " + mScrubLatency);
+        writer.println("  coalesced seeks: " + mCoalesced);
+    }
+
+    private static final class Latency {
+        int count;
+        long totalMs;
+        long maxMs;
+        long lastMs;
+
+        void add(long ms) {
+            count++;
+            totalMs += ms;
+            maxMs = Math.max(maxMs, ms);
+            lastMs = ms;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d, %d, %d, %d", count,
+                    count == 0 ? 0 : totalMs / count, maxMs, lastMs);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+/**
+ * A seeded pseudo-random permutation of the indices {@code [0, size)} that is computed on
+ * demand, so shuffling a queue of any length takes constant memory and time.
+ * <p/>
+ * Indices are run through a small Feistel network over the smallest domain of an even number
+ * of bits that holds them, which is a bijection on that domain. Results that fall outside the
+ * queue are fed through again until they land in it (cycle walking), which keeps it a bijection
+ * on {@code [0, size)}. The domain is less than four times the size, so that takes a few rounds
+ * at most on average.
+ */
+final class ShuffleOrder {
+
+    private static final int ROUNDS = 4;
+
+    private final int mSize;
+    private final int mHalfBits;
+    private final long mHalfMask;
+    private final int[] mKeys = new int[ROUNDS];
+
+    ShuffleOrder(int size, long seed) {
+        mSize = size;
+        int bits = 2;
+        while ((1L << bits) < size) {
+            bits += 2;
+        }
+        mHalfBits = bits / 2;
+        mHalfMask = (1L << mHalfBits) - 1;
+        for (int i = 0; i < ROUNDS; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            mKeys[i] = (int) (seed >>> 32);
+        }
+    }
+
+    /**
+     * Returns the index that plays at {@code position}.
+     */
+    int get(int position) {
+        long value = position;
+        do {
+            value = encrypt(value);
+        } while (value >= mSize);
+        return (int) value;
+    }
+
+    private long encrypt(long value) {
+        long left = value >>> mHalfBits;
+        long right = value & mHalfMask;
+        for (int i = 0; i < ROUNDS; i++) {
+            long next = left ^ round(right, mKeys[i]);
+            left = right;
+            right = next;
+        }
+        return (left << mHalfBits) | right;
+    }
+
+    private long round(long half, int key) {
+        int h = (int) half * 0x9E3779B9 ^ key;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h & mHalfMask;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Diagnostic mode for finding stalls on the main thread. It is on in debug builds, and in
+ * release builds after {@code adb shell setprop log.tag.StallMonitor DEBUG} and a restart.
+ * <p/>
+ * When on, {@link #install()} enables StrictMode on the main thread and starts a watchdog that
+ * notices when the main looper stops processing messages. Known slow operations are timed with
+ * {@link #begin()} and {@link #end}. Timings over the threshold of their thread, and watchdog
+ * stalls with the main thread's stack, go into a ring buffer of the latest events; every timed
+ * operation also counts toward per operation totals. The report is part of the service dump:
+ * {@code adb shell dumpsys activity service com.example.android.uamp/.MusicService}.
+ * When off, the timing calls return right away.
+ */
+public final class StallMonitor {
+
+    private static final String TAG = "StallMonitor";
+
+    public static final boolean ENABLED = BuildConfig.DEBUG || Log.isLoggable(TAG, Log.DEBUG);
+
+    // One frame; anything slower on the main thread drops frames
+    private static final long MAIN_THREAD_THRESHOLD_MS = 16;
+    private static final long BACKGROUND_THRESHOLD_MS = 100;
+    // How long the main looper may be busy before the watchdog reports it
+    private static final long WATCHDOG_STALL_MS = 200;
+    private static final long WATCHDOG_POLL_MS = 20;
+    private static final int REPORT_SIZE = 64;
+    private static final int STACK_DEPTH = 8;
+
+    private static final Object sLock = new Object();
+    // Latest events, oldest overwritten first
+    private static final Event[] sEvents = new Event[REPORT_SIZE];
+    private static int sEventCount;
+    private static final Map<String, long[]> sTotals = new TreeMap<>();
+    private static boolean sInstalled;
+
+    private StallMonitor() {
+    }
+
+    /**
+     * Enables StrictMode on the calling thread, which should be the main thread, and starts the
+     * watchdog on first use. Does nothing when the diagnostic mode is off.
+     */
+    public static void install() {
+        if (!ENABLED) {
+            return;
+        }
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectAll()
+                .penaltyLog()
+                .build());
+        synchronized (sLock) {
+            if (sInstalled) {
+                return;
+            }
+            sInstalled = true;
+        }
+        StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                .detectLeakedClosableObjects()
+                .detectLeakedSqlLiteObjects()
+                .penaltyLog()
+                .build());
+        Thread watchdog = new Thread(new Watchdog(), TAG);
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * Returns the start time to pass to {@link #end}.
+     */
+    public static long begin() {
+        return ENABLED ? SystemClock.uptimeMillis() : 0;
+    }
+
+    /**
+     * Records an operation started at {@code start}, as returned by {@link #begin()}.
+     */
+    public static void end(String operation, long start) {
+        if (!ENABLED) {
+            return;
+        }
+        long duration = SystemClock.uptimeMillis() - start;
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        synchronized (sLock) {
+            long[] totals = sTotals.get(operation);
+            if (totals == null) {
+                // count, total ms, max ms
+                totals = new long[3];
+                sTotals.put(operation, totals);
+            }
+            totals[0]++;
+            totals[1] += duration;
+            totals[2] = Math.max(totals[2], duration);
+        }
+        if (duration >= (mainThread ? MAIN_THREAD_THRESHOLD_MS : BACKGROUND_THRESHOLD_MS)) {
+            record(new Event(operation, Thread.currentThread().getName(), duration, null));
+        }
+    }
+
+    /**
+     * Writes the report: the totals per operation followed by the latest slow events.
+     */
+    public static void dump(PrintWriter writer) {
+        if (!ENABLED) {
+            writer.println("Stall monitor off");
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        synchronized (sLock) {
+            writer.println("Timed operations (count, total ms, max ms):");
+            for (Map.Entry<String, long[]> entry : sTotals.entrySet()) {
+                long[] totals = entry.getValue();
+                writer.println("  " + entry.getKey() + ": " + totals[0] + ", " + totals[1]
+                        + ", " + totals[2]);
+            }
+            int count = Math.min(sEventCount, REPORT_SIZE);
+            writer.println("Slow operations and stalls (latest " + count + " of " + sEventCount
+                    + "):");
+            for (int i = sEventCount - count; i < sEventCount; i++) {
+                Event event = sEvents[i % REPORT_SIZE];
+                writer.println("  " + format.format(new Date(event.time)) + " "
+                        + event.operation + " on " + event.thread + ": " + event.duration
+                        + " ms");
+                if (event.stack != null) {
+                    for (StackTraceElement element : event.stack) {
+                        writer.println("      at " + element);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void record(Event event) {
+        synchronized (sLock) {
+            sEvents[sEventCount % REPORT_SIZE] = event;
+            sEventCount++;
+        }
+        Log.w(TAG, event.operation + " took " + event.duration + " ms on " + event.thread);
+    }
+
+    /**
+     * Posts a tick to the main looper and reports a stall, with the stack of the main thread
+     * when it was first noticed, whenever the tick doesn't run in time.
+     */
+    private static final class Watchdog implements Runnable {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private volatile long mTicks;
+        private final Runnable mTick = new Runnable() {
+            @Override
+            public void run() {
+                mTicks++;
+            }
+        };
+
+        @Override
+        public void run() {
+            Thread mainThread = Looper.getMainLooper().getThread();
+            try {
+                while (true) {
+                    long ticks = mTicks;
+                    long posted = SystemClock.uptimeMillis();
+                    mMainHandler.post(mTick);
+                    Thread.sleep(WATCHDOG_STALL_MS);
+                    if (mTicks != ticks) {
+                        continue;
+                    }
+                    StackTraceElement[] stack = mainThread.getStackTrace();
+                    while (mTicks == ticks) {
+                        Thread.sleep(WATCHDOG_POLL_MS);
+                    }
+                    StackTraceElement[] top = new StackTraceElement[
+                            Math.min(STACK_DEPTH, stack.length)];
+                    System.arraycopy(stack, 0, top, 0, top.length);
+                    record(new Event("main thread stall", mainThread.getName(),
+                            SystemClock.uptimeMillis() - posted, top));
+                }
+            } catch (InterruptedException e) {
+                // Only stops with the process.
+            }
+        }
+    }
+
+    private static final class Event {
+        final long time = System.currentTimeMillis();
+        final String operation;
+        final String thread;
+        final long duration;
+        final StackTraceElement[] stack;
+
+        Event(String operation, String thread, long duration, StackTraceElement[] stack) {
+            this.operation = operation;
+            this.thread = thread;
+            this.duration = duration;
+            this.stack = stack;
+        }
+    }
+}
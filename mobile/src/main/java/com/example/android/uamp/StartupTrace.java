@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timings of the phases of a cold start of {@link MusicService}. Phases may run in parallel on
+ * several threads, so each records when it started, relative to the start of the service, and
+ * how long it took.
+ */
+final class StartupTrace {
+
+    private final long mStartMs = SystemClock.elapsedRealtime();
+    private final List<String> mPhases = new ArrayList<>();
+
+    long begin() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records a phase that started at {@code start}, a value returned by {@link #begin()}.
+     */
+    void end(String phase, long start) {
+        long now = SystemClock.elapsedRealtime();
+        String entry = String.format(Locale.US, "  %s: at %d ms, took %d ms on %s", phase,
+                start - mStartMs, now - start, Thread.currentThread().getName());
+        synchronized (this) {
+            mPhases.add(entry);
+        }
+    }
+
+    /**
+     * Records that something happened now, such as the first client connecting.
+     */
+    void mark(String event) {
+        end(event, begin());
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Startup phases:");
+        for (String phase : mPhases) {
+            writer.println(phase);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Plays a track at speeds other than 1x before API 23, where MediaPlayer can't: the first
+ * audio track is decoded with {@link MediaCodec}, time-stretched by a {@link TimeStretcher} and
+ * written to an {@link AudioTrack}, on a thread of its own at audio priority.
+ * <p/>
+ * The decode thread owns the codec and the track. Commands only set the state it works
+ * towards and wake it up, and the track is written without blocking so that it notices them
+ * within a few milliseconds. Everything is allocated when the player is created, or when the
+ * decoder changes its output format, so the decode loop doesn't allocate per buffer.
+ * <p/>
+ * The position is extrapolated from the last seek by the frames the track played since,
+ * times the speed.
+ */
+final class StretchPlayer implements LocalPlayer {
+
+    private static final String TAG = "StretchPlayer";
+
+    private static final long CODEC_TIMEOUT_US = 5000;
+    // How long the decode thread waits when the track is full or playing out the end
+    private static final long WRITE_RETRY_MS = 5;
+    // Frames stretched and written to the track at a time
+    private static final int WRITE_FRAMES = 1024;
+    private static final int NO_SEEK = -1;
+
+    private final MediaExtractor mExtractor;
+    private final MediaCodec mCodec;
+    private final PowerManager.WakeLock mWakeLock;
+    private final Handler mCallbackHandler;
+    private final int mDuration;
+    private final Thread mThread;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private boolean mPlaying;
+    private boolean mReleased;
+    private int mPendingSeek = NO_SEEK;
+    private float mSpeed = 1.0f;
+    private float mVolume = 1.0f;
+    private AudioTrack mTrack;
+    private int mSampleRate;
+    // Position and track head at the last seek or speed change
+    private long mAnchorPosition;
+    private long mAnchorHead;
+    private float mAnchorSpeed = 1.0f;
+
+    private volatile Listener mListener;
+
+    // Only used on the decode thread
+    private TimeStretcher mStretcher;
+    private int mChannels;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer mWriteBuffer;
+    private short[] mStretched;
+    // Codec output buffer being fed to the stretcher, or -1
+    private int mOutputIndex = -1;
+    private ByteBuffer mOutputBuffer;
+    private boolean mInputDone;
+    private boolean mOutputDone;
+    // Decoded audio before this time is dropped, so a seek lands between sync frames
+    private long mDropUntilUs;
+    // Frames written to the track since it was last flushed, and its head then
+    private long mWrittenFrames;
+    private long mFlushedHead;
+    private boolean mTrackPlaying;
+    private float mStretcherSpeed;
+
+    private final Runnable mNotifySeekComplete = new Runnable() {
+        @Override
+        public void run() {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onSeekComplete(StretchPlayer.this);
+            }
+        }
+    };
+
+    private final Runnable mNotifyCompletion = new Runnable() {
+        @Override
+        public void run() {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onCompletion(StretchPlayer.this);
+            }
+        }
+    };
+
+    private StretchPlayer(Context context, MediaExtractor extractor, MediaCodec codec,
+            MediaFormat format) {
+        mExtractor = extractor;
+        mCodec = codec;
+        mDuration = format.containsKey(MediaFormat.KEY_DURATION)
+                ? (int) (format.getLong(MediaFormat.KEY_DURATION) / 1000) : -1;
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+        mCallbackHandler = new Handler(Looper.myLooper());
+        configureOutput(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                decode();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Creates a player for the first audio track of {@code uri}, or returns null if it can't
+     * be decoded. Must be called on a thread with a looper.
+     */
+    static StretchPlayer create(Context context, Uri uri) {
+        Context application = context.getApplicationContext();
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(application, uri, null);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                if (trackFormat.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+            if (format == null) {
+                extractor.release();
+                return null;
+            }
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            return new StretchPlayer(application, extractor, codec, format);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to decode " + uri, e);
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+            return null;
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void start() {
+        synchronized (mLock) {
+            mPlaying = true;
+            mWakeLock.acquire();
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void pause() {
+        synchronized (mLock) {
+            mPlaying = false;
+            mWakeLock.release();
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        synchronized (mLock) {
+            return mPlaying;
+        }
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        synchronized (mLock) {
+            long position = getPositionLocked();
+            return (int) (mDuration < 0 ? position : Math.min(position, mDuration));
+        }
+    }
+
+    @Override
+    public int getDuration() {
+        return mDuration;
+    }
+
+    @Override
+    public void seekTo(int position) {
+        synchronized (mLock) {
+            mPendingSeek = position;
+            mAnchorPosition = position;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        synchronized (mLock) {
+            mVolume = volume;
+            mTrack.setVolume(volume);
+        }
+    }
+
+    @Override
+    public void setSpeed(float speed) {
+        synchronized (mLock) {
+            mSpeed = speed;
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mPlaying = false;
+            mWakeLock.release();
+            mLock.notifyAll();
+        }
+        mCallbackHandler.removeCallbacks(mNotifySeekComplete);
+        mCallbackHandler.removeCallbacks(mNotifyCompletion);
+    }
+
+    /**
+     * Sets up the track, the stretcher and the buffers for the decoder's output format.
+     * Called by the constructor, and on the decode thread if the format changes.
+     */
+    private void configureOutput(int sampleRate, int channels) {
+        int channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO
+                : AudioFormat.CHANNEL_OUT_STEREO;
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBufferSize, 2 * WRITE_FRAMES * channels * 2), AudioTrack.MODE_STREAM);
+        mChannels = Math.min(channels, 2);
+        mStretcher = new TimeStretcher(sampleRate, mChannels);
+        mStretcherSpeed = 0;
+        mStretched = new short[WRITE_FRAMES * mChannels];
+        mWriteBuffer = ByteBuffer.allocateDirect(mStretched.length * 2)
+                .order(ByteOrder.nativeOrder());
+        mWriteBuffer.limit(0);
+        AudioTrack old;
+        synchronized (mLock) {
+            old = mTrack;
+            long position = mTrack == null ? 0 : getPositionLocked();
+            mTrack = track;
+            mTrack.setVolume(mVolume);
+            mSampleRate = sampleRate;
+            mAnchorPosition = position;
+            mAnchorHead = 0;
+        }
+        if (old != null) {
+            old.release();
+        }
+        mWrittenFrames = 0;
+        mFlushedHead = 0;
+        mTrackPlaying = false;
+    }
+
+    private long getPositionLocked() {
+        if (mPendingSeek != NO_SEEK) {
+            return mAnchorPosition;
+        }
+        return mAnchorPosition
+                + (long) ((getHead() - mAnchorHead) * 1000 * mAnchorSpeed / mSampleRate);
+    }
+
+    /**
+     * Returns the frames the track played, which its 32 bit head counts unsigned.
+     */
+    private long getHead() {
+        return mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+    }
+
+    private void decode() {
+        try {
+            while (step()) {
+                // Each step does a bit of work, then checks the commands again.
+            }
+        } catch (InterruptedException e) {
+            // Released
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Decoding failed", e);
+            synchronized (mLock) {
+                mPlaying = false;
+                mWakeLock.release();
+            }
+            // End the item rather than hang on it.
+            mCallbackHandler.post(mNotifyCompletion);
+        } finally {
+            synchronized (mLock) {
+                mTrack.release();
+            }
+            mCodec.release();
+            mExtractor.release();
+        }
+    }
+
+    /**
+     * Applies the latest commands and moves the audio one buffer further. Returns false once
+     * the player is released.
+     */
+    private boolean step() throws InterruptedException {
+        int seek;
+        float speed;
+        synchronized (mLock) {
+            while (!mReleased && mPendingSeek == NO_SEEK && !mPlaying) {
+                if (mTrackPlaying) {
+                    mTrack.pause();
+                    mTrackPlaying = false;
+                }
+                mLock.wait();
+            }
+            if (mReleased) {
+                return false;
+            }
+            seek = mPendingSeek;
+            mPendingSeek = NO_SEEK;
+            speed = mSpeed;
+            if (seek == NO_SEEK && speed != mStretcherSpeed) {
+                // Audio already in the track still plays at the old speed; close enough.
+                mAnchorPosition = getPositionLocked();
+                mAnchorHead = getHead();
+                mAnchorSpeed = speed;
+            }
+        }
+        if (seek != NO_SEEK) {
+            applySeek(seek);
+            return true;
+        }
+        if (speed != mStretcherSpeed) {
+            mStretcher.setSpeed(speed);
+            mStretcherSpeed = speed;
+        }
+        if (!mTrackPlaying) {
+            mTrack.play();
+            mTrackPlaying = true;
+        }
+
+        if (mWriteBuffer.hasRemaining()) {
+            int written = mTrack.write(mWriteBuffer, mWriteBuffer.remaining(),
+                    AudioTrack.WRITE_NON_BLOCKING);
+            if (written < 0) {
+                throw new IllegalStateException("AudioTrack.write returned " + written);
+            }
+            mWrittenFrames += written / 2 / mChannels;
+            if (written == 0) {
+                waitForCommand(WRITE_RETRY_MS);
+            }
+            return true;
+        }
+        int frames = mStretcher.read(mStretched, WRITE_FRAMES);
+        if (frames > 0) {
+            mWriteBuffer.clear();
+            for (int i = 0; i < frames * mChannels; i++) {
+                mWriteBuffer.putShort(mStretched[i]);
+            }
+            mWriteBuffer.flip();
+            return true;
+        }
+        if (mOutputIndex >= 0) {
+            if (mStretcher.queueInput(mOutputBuffer)) {
+                mCodec.releaseOutputBuffer(mOutputIndex, false);
+                mOutputIndex = -1;
+            }
+            return true;
+        }
+        if (mOutputDone) {
+            playOut();
+            return true;
+        }
+        decodeBuffer();
+        return true;
+    }
+
+    /**
+     * Feeds the codec and takes the next output buffer, if there is one.
+     */
+    private void decodeBuffer() {
+        if (!mInputDone) {
+            int index = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (index >= 0) {
+                int size = mExtractor.readSampleData(mCodec.getInputBuffer(index), 0);
+                if (size < 0) {
+                    mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mInputDone = true;
+                } else {
+                    mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+                    mExtractor.advance();
+                }
+            }
+        }
+        int index = mCodec.dequeueOutputBuffer(mInfo, CODEC_TIMEOUT_US);
+        if (index >= 0) {
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mStretcher.endOfStream();
+                mOutputDone = true;
+            }
+            ByteBuffer output = mCodec.getOutputBuffer(index);
+            int frameBytes = 2 * mChannels;
+            int start = mInfo.offset;
+            if (mInfo.presentationTimeUs < mDropUntilUs) {
+                long dropFrames = (mDropUntilUs - mInfo.presentationTimeUs) * mSampleRate
+                        / 1000000;
+                start += (int) Math.min(mInfo.size, dropFrames * frameBytes);
+            }
+            int end = mInfo.offset + mInfo.size;
+            if (start >= end) {
+                mCodec.releaseOutputBuffer(index, false);
+                return;
+            }
+            output.order(ByteOrder.nativeOrder());
+            output.limit(end);
+            output.position(start);
+            mOutputBuffer = output;
+            mOutputIndex = index;
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            MediaFormat format = mCodec.getOutputFormat();
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            if (sampleRate != mSampleRate || Math.min(channels, 2) != mChannels) {
+                configureOutput(sampleRate, channels);
+            }
+        }
+    }
+
+    /**
+     * Waits for the track to play what was written at the end of the stream, then reports
+     * the completion and stops.
+     */
+    private void playOut() throws InterruptedException {
+        if (getHeadLocked() - mFlushedHead < mWrittenFrames) {
+            waitForCommand(WRITE_RETRY_MS);
+            return;
+        }
+        synchronized (mLock) {
+            if (mPendingSeek != NO_SEEK || !mPlaying) {
+                return;
+            }
+            mPlaying = false;
+            mWakeLock.release();
+        }
+        mCallbackHandler.post(mNotifyCompletion);
+    }
+
+    private long getHeadLocked() {
+        synchronized (mLock) {
+            return getHead();
+        }
+    }
+
+    private void applySeek(int position) {
+        if (mOutputIndex >= 0) {
+            mCodec.releaseOutputBuffer(mOutputIndex, false);
+            mOutputIndex = -1;
+        }
+        mTrack.pause();
+        mTrack.flush();
+        mTrackPlaying = false;
+        mExtractor.seekTo(position * 1000L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mCodec.flush();
+        mStretcher.clear();
+        mStretcherSpeed = 0;
+        mWriteBuffer.limit(0);
+        mInputDone = false;
+        mOutputDone = false;
+        mDropUntilUs = position * 1000L;
+        synchronized (mLock) {
+            mFlushedHead = getHead();
+            mWrittenFrames = 0;
+            if (mPendingSeek == NO_SEEK) {
+                mAnchorPosition = position;
+                mAnchorHead = mFlushedHead;
+            }
+        }
+        mCallbackHandler.post(mNotifySeekComplete);
+    }
+
+    private void waitForCommand(long timeoutMs) throws InterruptedException {
+        synchronized (mLock) {
+            if (!mReleased && mPendingSeek == NO_SEEK) {
+                mLock.wait(timeoutMs);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Changes the tempo of interleaved 16 bit PCM without changing its pitch, by WSOLA. The input
+ * is cut into sequences that overlap the previous output by a short cross-fade; each sequence
+ * starts where it best matches the tail of the previous one within a seek window, and the
+ * input advances by the sequence length times the speed. The lengths are the ones SoundTouch
+ * uses for music.
+ * <p/>
+ * The buffers are allocated up front for {@link PlaybackManager#MAX_PLAYBACK_SPEED}, so
+ * queueing input and reading output never allocate. Not thread safe.
+ */
+final class TimeStretcher {
+
+    private static final int SEQUENCE_MS = 40;
+    private static final int SEEK_WINDOW_MS = 15;
+    private static final int OVERLAP_MS = 8;
+    // The seek window is searched at this step first, then around the best match
+    private static final int COARSE_STEP = 4;
+
+    private final int mChannels;
+    // Lengths in frames
+    private final int mSequence;
+    private final int mSeekWindow;
+    private final int mOverlap;
+
+    // Input not consumed yet, from the start of the array
+    private final short[] mInput;
+    private int mInputFrames;
+    // End of the previous sequence, cross-faded into the next one
+    private final short[] mTail;
+    private boolean mHasTail;
+    // One sequence of output, read from mOutputStart on
+    private final short[] mOutput;
+    private int mOutputStart;
+    private int mOutputFrames;
+
+    private float mSpeed = 1.0f;
+    // Fraction of a frame the input is behind the nominal position
+    private double mSkipFraction;
+    private boolean mEnded;
+
+    TimeStretcher(int sampleRate, int channels) {
+        mChannels = channels;
+        mSequence = sampleRate * SEQUENCE_MS / 1000;
+        mSeekWindow = sampleRate * SEEK_WINDOW_MS / 1000;
+        mOverlap = Math.max(1, sampleRate * OVERLAP_MS / 1000);
+        // Room for the input of one sequence at the highest speed, twice, so a full buffer
+        // always yields output.
+        int maxSkip = (int) Math.ceil(PlaybackManager.MAX_PLAYBACK_SPEED
+                * (mSequence - mOverlap)) + 1;
+        mInput = new short[2 * (Math.max(maxSkip + mOverlap, mSequence) + mSeekWindow)
+                * channels];
+        mTail = new short[mOverlap * channels];
+        mOutput = new short[mSequence * channels];
+    }
+
+    /**
+     * Sets the speed, clamped to [{@link PlaybackManager#MIN_PLAYBACK_SPEED},
+     * {@link PlaybackManager#MAX_PLAYBACK_SPEED}]. Applies from the next sequence on.
+     */
+    void setSpeed(float speed) {
+        mSpeed = Math.max(PlaybackManager.MIN_PLAYBACK_SPEED,
+                Math.min(PlaybackManager.MAX_PLAYBACK_SPEED, speed));
+    }
+
+    /**
+     * Drops the input and output, such as after a seek.
+     */
+    void clear() {
+        mInputFrames = 0;
+        mOutputFrames = 0;
+        mHasTail = false;
+        mSkipFraction = 0;
+        mEnded = false;
+    }
+
+    /**
+     * Marks the end of the input, so that the rest is read out even though it is shorter than
+     * a sequence.
+     */
+    void endOfStream() {
+        mEnded = true;
+    }
+
+    /**
+     * Copies as many whole frames of native order samples from {@code pcm} as there is room
+     * for, advancing its position. Returns whether all of them were taken; if not, read some
+     * output and try again.
+     */
+    boolean queueInput(ByteBuffer pcm) {
+        int samples = Math.min(mInput.length - mInputFrames * mChannels, pcm.remaining() / 2);
+        samples -= samples % mChannels;
+        int at = mInputFrames * mChannels;
+        for (int i = 0; i < samples; i++) {
+            mInput[at + i] = pcm.getShort();
+        }
+        mInputFrames += samples / mChannels;
+        return pcm.remaining() < 2 * mChannels;
+    }
+
+    /**
+     * Reads up to {@code maxFrames} frames of output into {@code out}. Returns the number of
+     * frames read, 0 when more input is needed.
+     */
+    int read(short[] out, int maxFrames) {
+        int read = 0;
+        while (read < maxFrames) {
+            if (mOutputFrames == 0 && !produce()) {
+                break;
+            }
+            int frames = Math.min(mOutputFrames, maxFrames - read);
+            System.arraycopy(mOutput, mOutputStart * mChannels, out, read * mChannels,
+                    frames * mChannels);
+            mOutputStart += frames;
+            mOutputFrames -= frames;
+            read += frames;
+        }
+        return read;
+    }
+
+    /**
+     * Stretches the next sequence into mOutput. Returns false if there isn't enough input.
+     */
+    private boolean produce() {
+        int stride = mSequence - mOverlap;
+        double skip = mSkipFraction + mSpeed * stride;
+        int required = Math.max((int) skip + mOverlap, mSequence) + mSeekWindow;
+        mOutputStart = 0;
+        if (mInputFrames < required) {
+            return mEnded && produceRest();
+        }
+        int offset = mHasTail ? findBestOffset() : 0;
+        if (mHasTail) {
+            crossFade(offset);
+            System.arraycopy(mInput, (offset + mOverlap) * mChannels, mOutput,
+                    mOverlap * mChannels, (stride - mOverlap) * mChannels);
+        } else {
+            System.arraycopy(mInput, 0, mOutput, 0, stride * mChannels);
+        }
+        mOutputFrames = stride;
+        System.arraycopy(mInput, (offset + stride) * mChannels, mTail, 0, mOverlap * mChannels);
+        mHasTail = true;
+
+        mSkipFraction = skip - (int) skip;
+        consume((int) skip);
+        return true;
+    }
+
+    /**
+     * Reads out the input left at the end of the stream as it is.
+     */
+    private boolean produceRest() {
+        int frames = Math.min(mInputFrames, mSequence);
+        if (frames == 0) {
+            return false;
+        }
+        if (mHasTail && frames >= mOverlap) {
+            crossFade(0);
+            System.arraycopy(mInput, mOverlap * mChannels, mOutput, mOverlap * mChannels,
+                    (frames - mOverlap) * mChannels);
+        } else {
+            System.arraycopy(mInput, 0, mOutput, 0, frames * mChannels);
+        }
+        mHasTail = false;
+        mOutputFrames = frames;
+        consume(frames);
+        return true;
+    }
+
+    private void crossFade(int offset) {
+        int in = offset * mChannels;
+        for (int frame = 0; frame < mOverlap; frame++) {
+            for (int c = 0; c < mChannels; c++) {
+                int i = frame * mChannels + c;
+                mOutput[i] = (short) ((mTail[i] * (mOverlap - frame)
+                        + mInput[in + i] * frame) / mOverlap);
+            }
+        }
+    }
+
+    private void consume(int frames) {
+        mInputFrames -= frames;
+        System.arraycopy(mInput, frames * mChannels, mInput, 0, mInputFrames * mChannels);
+    }
+
+    /**
+     * Returns the offset in the seek window where the input best continues the tail.
+     */
+    private int findBestOffset() {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int offset = 0; offset < mSeekWindow; offset += COARSE_STEP) {
+            double score = correlate(offset);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        int from = Math.max(0, best - COARSE_STEP + 1);
+        int to = Math.min(mSeekWindow - 1, best + COARSE_STEP - 1);
+        int coarse = best;
+        for (int offset = from; offset <= to; offset++) {
+            if (offset == coarse) {
+                continue;
+            }
+            double score = correlate(offset);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the normalized cross-correlation of the tail with the input at {@code offset}.
+     */
+    private double correlate(int offset) {
+        int in = offset * mChannels;
+        long product = 0;
+        long energy = 0;
+        for (int i = 0; i < mTail.length; i++) {
+            int sample = mInput[in + i];
+            product += mTail[i] * sample;
+            energy += sample * sample;
+        }
+        return product / Math.sqrt(energy + 1);
+    }
+}
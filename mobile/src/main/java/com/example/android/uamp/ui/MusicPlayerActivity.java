@@ -15,13 +15,18 @@
  */
 package com.example.android.uamp.ui;
 
+import android.Manifest;
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
 import android.media.MediaMetadata;
 import android.media.browse.MediaBrowser;
 import android.media.session.MediaController;
 import android.media.session.PlaybackState;
 import android.net.Uri;
 import android.os.Bundle;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
 import android.support.v7.app.ActionBarActivity;
 import android.support.v7.widget.Toolbar;
 import android.text.TextUtils;
@@ -35,9 +40,11 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.example.android.uamp.MusicLibrary;
-import com.example.android.uamp.PlaybackManager;
+import com.example.android.uamp.LibraryScanner;
+import com.example.android.uamp.MusicService;
+import com.example.android.uamp.NowPlaying;
 import com.example.android.uamp.R;
+import com.example.android.uamp.StallMonitor;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -52,7 +59,8 @@ import java.util.List;
  */
 public class MusicPlayerActivity extends ActionBarActivity {
 
-    private PlaybackManager mPlaybackManager;
+    private static final int REQUEST_STORAGE = 1;
+
     private BrowseAdapter mBrowserAdapter;
     private ImageButton mPlayPause;
     private TextView mTitle;
@@ -65,6 +73,8 @@ public class MusicPlayerActivity extends ActionBarActivity {
     private PlaybackState mCurrentState;
 
     private MediaBrowser mMediaBrowser;
+    // The storage permission was granted before the browser connected
+    private boolean mRescanPending;
 
     private MediaBrowser.ConnectionCallback mConnectionCallback =
             new MediaBrowser.ConnectionCallback() {
@@ -75,6 +85,18 @@ public class MusicPlayerActivity extends ActionBarActivity {
                             MusicPlayerActivity.this, mMediaBrowser.getSessionToken());
                     mediaController.registerCallback(mMediaControllerCallback);
                     setMediaController(mediaController);
+                    if (mRescanPending) {
+                        mRescanPending = false;
+                        requestRescan();
+                    }
+                    // Catch up on anything that changed before the callback was registered
+                    if (mediaController.getMetadata() != null) {
+                        mMediaControllerCallback.onMetadataChanged(mediaController.getMetadata());
+                    }
+                    if (mediaController.getPlaybackState() != null) {
+                        mMediaControllerCallback.onPlaybackStateChanged(
+                                mediaController.getPlaybackState());
+                    }
                 }
             };
 
@@ -87,6 +109,7 @@ public class MusicPlayerActivity extends ActionBarActivity {
             if (metadata == null) {
                 return;
             }
+            NowPlaying.setMetadata(metadata);
             updatePlaybackControlsMetadata(metadata);
             mBrowserAdapter.notifyDataSetChanged();
         }
@@ -94,6 +117,7 @@ public class MusicPlayerActivity extends ActionBarActivity {
         @Override
         public void onPlaybackStateChanged(PlaybackState state) {
             super.onPlaybackStateChanged(state);
+            NowPlaying.setPlaybackState(state);
             updatePlaybackControls(state);
             mBrowserAdapter.notifyDataSetChanged();
         }
@@ -115,10 +139,8 @@ public class MusicPlayerActivity extends ActionBarActivity {
         };
 
     public void onMediaItemSelected(MediaBrowser.MediaItem item) {
-        if (item.isPlayable()) {
-            mPlaybackManager.play(item.getMediaId());
-            updatePlaybackControlsMetadata(MusicLibrary.getMetadata(item.getMediaId()));
-//            getMediaController().getTransportControls().playFromMediaId(item.getMediaId(), null);
+        if (item.isPlayable() && getMediaController() != null) {
+            getMediaController().getTransportControls().playFromMediaId(item.getMediaId(), null);
         }
     }
 
@@ -126,20 +148,12 @@ public class MusicPlayerActivity extends ActionBarActivity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StallMonitor.install();
         setContentView(R.layout.activity_player);
         setTitle(getString(R.string.app_name));
         setSupportActionBar((Toolbar) findViewById(R.id.toolbar));
 
         // Music list configuration:
-        mPlaybackManager = new PlaybackManager(this);
-        mPlaybackManager.setCallback(new PlaybackManager.Callback() {
-            @Override
-            public void onPlaybackStatusChanged(PlaybackState state) {
-                mBrowserAdapter.notifyDataSetChanged();
-                updatePlaybackControls(state);
-            }
-        });
-
         mBrowserAdapter = new BrowseAdapter(this);
 
         ListView listView = (ListView) findViewById(R.id.list_view);
@@ -162,34 +176,72 @@ public class MusicPlayerActivity extends ActionBarActivity {
         mSubtitle = (TextView) findViewById(R.id.artist);
         mAlbumArt = (ImageView) findViewById(R.id.album_art);
 
-//        // Connect to the media browser:
-//        mMediaBrowser = new MediaBrowser(this,
-//                new ComponentName(this, MusicService.class), mConnectionCallback, null);
+        // Connect to the media browser:
+        mMediaBrowser = new MediaBrowser(this,
+                new ComponentName(this, MusicService.class), mConnectionCallback, null);
+
+        // The service only scans local storage with this permission, which M+ grants at runtime.
+        if (savedInstanceState == null && ContextCompat.checkSelfPermission(this,
+                Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[] {Manifest.permission.READ_EXTERNAL_STORAGE}, REQUEST_STORAGE);
+        }
+    }
 
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions,
+            int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_STORAGE && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            if (getMediaController() != null) {
+                requestRescan();
+            } else {
+                mRescanPending = true;
+            }
+        }
+    }
+
+    private void requestRescan() {
+        getMediaController().getTransportControls()
+                .sendCustomAction(LibraryScanner.CUSTOM_ACTION_RESCAN, null);
     }
 
 
     @Override
     public void onStart() {
         super.onStart();
-//        mMediaBrowser.connect();
-        mBrowserAdapter.clear();
-        mBrowserAdapter.addAll(MusicLibrary.getMediaItems());
-        mBrowserAdapter.notifyDataSetChanged();
-
+        // Show what the service last reported while the browser connects
+        if (NowPlaying.getMetadata() != null) {
+            updatePlaybackControlsMetadata(NowPlaying.getMetadata());
+        }
+        if (NowPlaying.getPlaybackState() != null) {
+            updatePlaybackControls(NowPlaying.getPlaybackState());
+        }
+        mMediaBrowser.connect();
     }
 
     @Override
     public void onStop() {
         super.onStop();
-        mPlaybackManager.stop();
-//        if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
-//            mMediaBrowser.unsubscribe(mMediaBrowser.getRoot());
-//            mMediaBrowser.disconnect();
-//        }
-//        if (getMediaController() != null) {
-//            getMediaController().unregisterCallback(mMediaControllerCallback);
-//        }
+        if (getMediaController() != null) {
+            getMediaController().unregisterCallback(mMediaControllerCallback);
+            setMediaController(null);
+        }
+        if (mMediaBrowser.isConnected()) {
+            mMediaBrowser.unsubscribe(mMediaBrowser.getRoot());
+        }
+        mMediaBrowser.disconnect();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // Drop the art while hidden; onStart sets it again.
+            mAlbumArt.setImageDrawable(null);
+            mArtUrl = null;
+        }
     }
 
     private void updatePlaybackControls(PlaybackState state) {
@@ -222,7 +274,9 @@ public class MusicPlayerActivity extends ActionBarActivity {
         mSubtitle.setText(metadata.getDescription().getSubtitle());
         String artUrl = metadata.getDescription().getIconUri().toString();
         if (!TextUtils.equals(artUrl, mArtUrl)) {
+            long start = StallMonitor.begin();
             mAlbumArt.setImageURI(Uri.parse(artUrl));
+            StallMonitor.end("setImageURI", start);
             mArtUrl = artUrl;
         }
         mBrowserAdapter.notifyDataSetChanged();
@@ -263,27 +317,32 @@ public class MusicPlayerActivity extends ActionBarActivity {
     private View.OnClickListener mPlaybackButtonListener = new View.OnClickListener() {
         @Override
         public void onClick(View v) {
-//            PlaybackState stateObj = getMediaController().getPlaybackState();
+            MediaController controller = getMediaController();
+            if (controller == null) {
+                return;
+            }
             final int state = mCurrentState == null ?
                     PlaybackState.STATE_NONE : mCurrentState.getState();
             switch (v.getId()) {
                 case R.id.play_pause:
-                    if (state == PlaybackState.STATE_PAUSED ||
-                            state == PlaybackState.STATE_STOPPED ||
+                    if (state == PlaybackState.STATE_PAUSED) {
+                        controller.getTransportControls().play();
+                    } else if (state == PlaybackState.STATE_STOPPED ||
                             state == PlaybackState.STATE_NONE) {
-
-                        if (mCurrentMetadata == null) {
-                            String mediaId = MusicLibrary.getMediaItems().get(0).getMediaId();
-                            mCurrentMetadata = MusicLibrary.getMetadata(mediaId);
-                            updatePlaybackControlsMetadata(mCurrentMetadata);
+                        // The service no longer holds a track, so start the last one over
+                        String mediaId = null;
+                        if (mCurrentMetadata != null) {
+                            mediaId = mCurrentMetadata.getDescription().getMediaId();
+                        } else if (!mBrowserAdapter.isEmpty()) {
+                            mediaId = mBrowserAdapter.getItem(0).getMediaId();
+                        }
+                        if (mediaId != null) {
+                            controller.getTransportControls().playFromMediaId(mediaId, null);
                         }
-                        mPlaybackManager.play(mCurrentMetadata.getDescription().getMediaId());
-//                        getMediaController().getTransportControls().play();
                     } else if (state == PlaybackState.STATE_PLAYING ||
                             state == PlaybackState.STATE_BUFFERING ||
                             state == PlaybackState.STATE_CONNECTING) {
-                        mPlaybackManager.pause();
-//                        getMediaController().getTransportControls().pause();
+                        controller.getTransportControls().pause();
                     }
                     break;
             }
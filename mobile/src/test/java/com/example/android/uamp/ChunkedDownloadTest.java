@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads from a local HTTP server standing in for the track storage, which can refuse
+ * ranges, fail or stall part way and serve a damaged copy.
+ */
+public class ChunkedDownloadTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_SIZE = 10 * CHUNK_SIZE + 123;
+    private static final int STALL_TIMEOUT_MS = 500;
+
+    private final byte[] mData = new byte[FILE_SIZE];
+    private final AtomicInteger mRangeRequests = new AtomicInteger();
+    // Range requests served before the server starts failing them, or -1 to never fail
+    private volatile int mFailAfter = -1;
+    // Range requests served before the server stops sending part way, or -1 to never stall
+    private volatile int mStallAfter = -1;
+    private volatile boolean mRanges = true;
+    private volatile boolean mCorrupt;
+    private ServerSocket mServer;
+    private ExecutorService mServerExecutor;
+    private ExecutorService mExecutor;
+    private File mDir;
+    private File mTarget;
+    private URL mUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(1).nextBytes(mData);
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        mUrl = new URL("http://127.0.0.1:" + mServer.getLocalPort() + "/track.mp3");
+        mExecutor = Executors.newFixedThreadPool(3);
+        mDir = File.createTempFile("offline", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+        mTarget = new File(mDir, "track.mp3");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        mServerExecutor.shutdownNow();
+        mExecutor.shutdownNow();
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void encodesDigestsLikeTheHeaders() throws Exception {
+        assertEquals("1B2M2Y8AsgTpgAmY7PhCfg==",
+                ChunkedDownload.toBase64(MessageDigest.getInstance("MD5").digest(new byte[0])));
+        assertEquals("YQ==", ChunkedDownload.toBase64(new byte[] {'a'}));
+        assertEquals("YWI=", ChunkedDownload.toBase64(new byte[] {'a', 'b'}));
+    }
+
+    @Test
+    public void downloadsInChunksAndVerifies() throws Exception {
+        ChunkedDownload download = new ChunkedDownload(mUrl, mTarget, CHUNK_SIZE);
+        assertEquals(FILE_SIZE, download.probe());
+        download.run(mExecutor, 3);
+
+        assertTrue(Arrays.equals(mData, readTarget()));
+        // The probe and one request a chunk
+        assertEquals(1 + 11, mRangeRequests.get());
+        assertEquals(1, mDir.list().length);
+    }
+
+    @Test
+    public void resumesWithTheMissingChunks() throws Exception {
+        mFailAfter = 1 + 4;
+        ChunkedDownload download = new ChunkedDownload(mUrl, mTarget, CHUNK_SIZE);
+        download.probe();
+        try {
+            download.run(mExecutor, 1);
+            assertTrue("Expected the download to fail", false);
+        } catch (IOException e) {
+            // The server went away after four chunks.
+        }
+        assertFalse(mTarget.exists());
+
+        mFailAfter = -1;
+        mRangeRequests.set(0);
+        download = new ChunkedDownload(mUrl, mTarget, CHUNK_SIZE);
+        download.probe();
+        download.run(mExecutor, 3);
+        assertTrue(Arrays.equals(mData, readTarget()));
+        assertEquals(1 + 11 - 4, mRangeRequests.get());
+    }
+
+    @Test
+    public void stalledServerTimesOutWithoutInterrupting() throws Exception {
+        mStallAfter = 1 + 2;
+        ChunkedDownload download =
+                new ChunkedDownload(mUrl, mTarget, CHUNK_SIZE, STALL_TIMEOUT_MS);
+        download.probe();
+        try {
+            download.run(mExecutor, 1);
+            assertTrue("Expected the download to time out", false);
+        } catch (SocketTimeoutException e) {
+            // OfflineStore retries these rather than stopping as if the job was cancelled.
+            assertFalse(Thread.currentThread().isInterrupted());
+        }
+        assertFalse(mTarget.exists());
+
+        mStallAfter = -1;
+        mRangeRequests.set(0);
+        download = new ChunkedDownload(mUrl, mTarget, CHUNK_SIZE);
+        download.probe();
+        download.run(mExecutor, 3);
+        assertTrue(Arrays.equals(mData, readTarget()));
+        assertEquals(1 + 11 - 2, mRangeRequests.get());
+    }
+
+    @Test
+    public void damagedCopyIsDeleted() throws Exception {
+        mCorrupt = true;
+        ChunkedDownload download = new ChunkedDownload(mUrl, mTarget, CHUNK_SIZE);
+        download.probe();
+        try {
+            download.run(mExecutor, 3);
+            assertTrue("Expected a checksum mismatch", false);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch"));
+        }
+        assertEquals(0, mDir.list().length);
+    }
+
+    @Test
+    public void serverWithoutRangesIsDownloadedWhole() throws Exception {
+        mRanges = false;
+        ChunkedDownload download = new ChunkedDownload(mUrl, mTarget, CHUNK_SIZE);
+        assertEquals(FILE_SIZE, download.probe());
+        download.run(mExecutor, 3);
+        assertTrue(Arrays.equals(mData, readTarget()));
+        assertEquals(0, mRangeRequests.get());
+    }
+
+    private byte[] readTarget() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mTarget, "r");
+        try {
+            byte[] data = new byte[(int) file.length()];
+            file.readFully(data);
+            return data;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = mServer.accept();
+                mServerExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // The client went away.
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // Closed by tearDown
+        }
+    }
+
+    /**
+     * Answers one request, the way Cloud Storage would, and closes the connection.
+     */
+    private void serve(Socket socket) throws IOException {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            in.readLine();
+            String range = null;
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring("range:".length()).trim();
+                }
+            }
+            byte[] data = mData;
+            if (mCorrupt) {
+                data = data.clone();
+                data[data.length / 2] ^= 1;
+            }
+            StringBuilder headers = new StringBuilder();
+            headers.append("ETag: \"1\"\r\n");
+            headers.append("x-goog-hash: crc32c=AAAAAA==, md5=").append(ChunkedDownload.toBase64(
+                    MessageDigest.getInstance("MD5").digest(mData))).append("\r\n");
+            headers.append("Connection: close\r\n");
+            int start = 0;
+            int end = data.length - 1;
+            String status = "200 OK";
+            boolean stall = false;
+            if (range != null && mRanges) {
+                if (mFailAfter >= 0 && mRangeRequests.get() >= mFailAfter) {
+                    write(socket, "503 Service Unavailable", "Content-Length: 0\r\n", data, 0, 0);
+                    return;
+                }
+                stall = mStallAfter >= 0 && mRangeRequests.get() >= mStallAfter;
+                mRangeRequests.incrementAndGet();
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(bounds[0]);
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+                status = "206 Partial Content";
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(data.length).append("\r\n");
+            }
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            if (stall) {
+                // Send half and hold the connection until the client gives up on it.
+                write(socket, status, headers.toString(), data, start, (end - start + 1) / 2);
+                socket.getInputStream().read();
+                return;
+            }
+            write(socket, status, headers.toString(), data, start, end - start + 1);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void write(Socket socket, String status, String headers, byte[] data,
+            int offset, int length) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 " + status + "\r\n" + headers + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.write(data, offset, length);
+        out.flush();
+    }
+}
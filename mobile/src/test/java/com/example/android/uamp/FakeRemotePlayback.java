@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-process receiver that records the commands it gets. Tests play the receiver's part by
+ * reporting its status changes through the {@code report} methods.
+ */
+class FakeRemotePlayback implements RemotePlayback {
+
+    final List<List<String>> loads = new ArrayList<>();
+    final List<Integer> jumps = new ArrayList<>();
+    long loadPosition = -1;
+    boolean autoplay;
+    boolean playing;
+    boolean stopped;
+    long seekPosition = -1;
+    private Listener mListener;
+    private int mIndex;
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void load(List<String> mediaIds, long position, boolean autoplay) {
+        loads.add(new ArrayList<>(mediaIds));
+        loadPosition = position;
+        this.autoplay = autoplay;
+        playing = autoplay;
+        mIndex = 0;
+    }
+
+    @Override
+    public void jumpTo(int index) {
+        jumps.add(index);
+        mIndex = index;
+        playing = true;
+    }
+
+    @Override
+    public void play() {
+        playing = true;
+    }
+
+    @Override
+    public void pause() {
+        playing = false;
+    }
+
+    @Override
+    public void seekTo(long position) {
+        seekPosition = position;
+    }
+
+    @Override
+    public void stop() {
+        playing = false;
+        stopped = true;
+    }
+
+    void reportStatus(int state, long position) {
+        mListener.onStatusChanged(state, position);
+    }
+
+    /**
+     * Plays the current item to the end and moves on, as the receiver does within its queue.
+     */
+    void reportItemFinished() {
+        if (mIndex + 1 < loads.get(loads.size() - 1).size()) {
+            mListener.onItemChanged(++mIndex);
+        } else {
+            playing = false;
+            mListener.onQueueFinished();
+        }
+    }
+
+    void reportDisconnected() {
+        mListener.onDisconnected();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that registered caches get their share of the budget and shrink in tiers.
+ */
+public class MemoryBudgetTest {
+
+    private static final long BUDGET = 1000000;
+
+    @Test
+    public void cachesShrinkWithTheTrimLevel() {
+        MemoryBudget budget = new MemoryBudget(BUDGET);
+        FakeCache cache = new FakeCache();
+        cache.size = budget.register("fake", 40, cache);
+        assertEquals(400000, cache.size);
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(400000, cache.size);
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(200000, cache.size);
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        assertEquals(100000, cache.size);
+
+        budget.onLowMemory();
+        assertEquals(0, cache.size);
+    }
+
+    @Test
+    public void unregisteredCachesAreNotTrimmed() {
+        MemoryBudget budget = new MemoryBudget(BUDGET);
+        FakeCache cache = new FakeCache();
+        cache.size = budget.register("fake", 10, cache);
+        budget.unregister(cache);
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(100000, cache.size);
+    }
+
+    private static final class FakeCache implements MemoryBudget.Cache {
+        long size;
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void trimToSize(long maxSize) {
+            size = Math.min(size, maxSize);
+        }
+    }
+}
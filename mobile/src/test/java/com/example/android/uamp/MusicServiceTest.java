@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.media.AudioManager;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.media.session.PlaybackState;
+import android.os.Build;
+
+import com.example.android.uamp.shadows.CountingShadowBitmapFactory;
+import com.example.android.uamp.shadows.CountingShadowNotificationManager;
+import com.example.android.uamp.shadows.ShadowMediaSession;
+import com.example.android.uamp.ui.MusicPlayerActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAudioManager;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ServiceController;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.uamp.PlaybackTestHelper.MAX_SERVICE_BYTES_PER_TRANSITION;
+import static com.example.android.uamp.PlaybackTestHelper.MAX_STATES_PER_TRANSITION;
+import static com.example.android.uamp.PlaybackTestHelper.OTHER_TRACK;
+import static com.example.android.uamp.PlaybackTestHelper.TRACK;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives {@link MusicService} through a scripted session from the media session callback down
+ * to the notification, and bounds the session updates, notify() calls and album art decodes
+ * each transition causes.
+ * <p/>
+ * The service starts up and loads queues on background threads, which post back to the main
+ * thread. The main looper is paused, so those posts wait for the test thread to idle it instead
+ * of running on the background thread right away, and every test starts once startup is done.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.LOLLIPOP)
+public class MusicServiceTest {
+
+    // Generous, the first test also loads the framework resources on a startup thread
+    private static final long TIMEOUT_MS = 30000;
+    private static final long IDLE_INTERVAL_MS = 10;
+
+    private ServiceController<MusicService> mController;
+    private MusicService mService;
+    private ShadowMediaSession mSession;
+    private MediaSession.Callback mCallback;
+    private CountingShadowNotificationManager mNotificationManager;
+
+    // Counters at the start of the current transition
+    private int mStateMark;
+    private int mMetadataMark;
+    private int mNotifyMark;
+
+    @Before
+    public void setUp() throws Exception {
+        PlaybackTestHelper.resetSingletons();
+        PlaybackTestHelper.addBundledMedia();
+        addLauncherActivity();
+        ShadowLooper.pauseMainLooper();
+        mController = Robolectric.buildService(MusicService.class).create();
+        mService = mController.get();
+        awaitStartup();
+        mSession = ShadowMediaSession.getLatest();
+        mCallback = mSession.getCallback();
+        mNotificationManager = (CountingShadowNotificationManager) shadowOf(
+                (NotificationManager) RuntimeEnvironment.application
+                        .getSystemService(Context.NOTIFICATION_SERVICE));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mController.destroy();
+        // Robolectric closes the databases after each test, so nothing may still be using them.
+        assertTrue("Background work didn't stop",
+                mService.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    @Test
+    public void scriptedSessionStaysWithinBounds() throws Exception {
+        mCallback.onPlayFromMediaId(TRACK, null);
+        awaitQueue();
+        assertTransition(PlaybackState.STATE_PLAYING);
+
+        mCallback.onPause();
+        assertTransition(PlaybackState.STATE_PAUSED);
+
+        mCallback.onPlay();
+        assertTransition(PlaybackState.STATE_PLAYING);
+
+        mCallback.onSeekTo(45000);
+        assertTransition(PlaybackState.STATE_PLAYING);
+
+        changeFocus(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT);
+        assertTransition(PlaybackState.STATE_PAUSED);
+
+        changeFocus(AudioManager.AUDIOFOCUS_GAIN);
+        assertTransition(PlaybackState.STATE_PLAYING);
+
+        mCallback.onPlayFromMediaId(OTHER_TRACK, null);
+        awaitQueue();
+        assertTransition(PlaybackState.STATE_PLAYING);
+
+        mCallback.onStop();
+        assertTransition(PlaybackState.STATE_STOPPED);
+
+        // State changes reuse the decoded art; only the two tracks were ever decoded.
+        assertEquals(2, CountingShadowBitmapFactory.getDecodeCount());
+    }
+
+    @Test
+    public void stateChangesDontDecodeArtAgain() throws Exception {
+        mCallback.onPlayFromMediaId(TRACK, null);
+        awaitQueue();
+        int decodes = CountingShadowBitmapFactory.getDecodeCount();
+
+        for (int i = 0; i < 5; i++) {
+            mCallback.onPause();
+            mCallback.onPlay();
+        }
+        ShadowLooper.idleMainLooper();
+        assertEquals(decodes, CountingShadowBitmapFactory.getDecodeCount());
+    }
+
+    @Test
+    public void transitionsStayWithinAllocationBudget() throws Exception {
+        // Warm up class loading, the notification and the shadows first.
+        mCallback.onPlayFromMediaId(TRACK, null);
+        awaitQueue();
+        mCallback.onPause();
+        ShadowLooper.idleMainLooper();
+        int decodes = CountingShadowBitmapFactory.getDecodeCount();
+
+        long before = PlaybackTestHelper.allocatedBytes();
+        int transitions = 0;
+        for (int i = 0; i < 10; i++) {
+            mCallback.onPlay();
+            mCallback.onSeekTo(i * 1000);
+            mCallback.onPause();
+            transitions += 3;
+        }
+        ShadowLooper.idleMainLooper();
+        long perTransition = (PlaybackTestHelper.allocatedBytes() - before) / transitions;
+        assertTrue("Allocated " + perTransition + " bytes per transition",
+                perTransition <= MAX_SERVICE_BYTES_PER_TRANSITION);
+        assertEquals(decodes, CountingShadowBitmapFactory.getDecodeCount());
+    }
+
+    @Test
+    public void playerIsOnlyCreatedOnFirstPlay() {
+        assertFalse(mService.hasPlayback());
+
+        mCallback.onPlayFromMediaId(TRACK, null);
+        assertTrue(mService.hasPlayback());
+    }
+
+    @Test
+    public void playFromMediaIdQueuesTheCatalog() throws Exception {
+        mCallback.onPlayFromMediaId(TRACK, null);
+        awaitQueue();
+
+        mCallback.onSkipToNext();
+        awaitQueue();
+        assertEquals(OTHER_TRACK,
+                mSession.getMetadata().getString(MediaMetadata.METADATA_KEY_MEDIA_ID));
+        assertEquals(PlaybackState.STATE_PLAYING, mSession.getPlaybackState().getState());
+    }
+
+    @Test
+    public void playsAndSkipsAreLogged() throws Exception {
+        mCallback.onPlayFromMediaId(TRACK, null);
+        awaitQueue();
+        mCallback.onSkipToNext();
+        awaitQueue();
+
+        PlaybackEventLog eventLog = PlaybackEventLog.getInstance(mService);
+        eventLog.flush();
+        // The log thread drains through the paused main scheduler too.
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, eventLog.getPlayCount(TRACK));
+        assertEquals(1, eventLog.getPlayCount(OTHER_TRACK));
+        assertEquals(1.0f, eventLog.getSkipRate(TRACK), 0.0f);
+    }
+
+    @Test
+    public void destroyDuringStartupRegistersNothing() throws Exception {
+        MemoryBudget budget = MemoryBudget.getInstance(mService);
+        PlaybackEventLog eventLog = PlaybackEventLog.getInstance(mService);
+        int caches = budget.getCacheCount();
+
+        ServiceController<MusicService> controller =
+                Robolectric.buildService(MusicService.class).create();
+        controller.destroy();
+        assertTrue("Startup didn't stop",
+                controller.get().awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // What the steps posted runs after onDestroy.
+        ShadowLooper.idleMainLooper();
+        assertEquals(caches, budget.getCacheCount());
+        assertNull(eventLog.getHistoryListener());
+    }
+
+    /**
+     * Waits for the startup steps, then runs what they posted to the main thread, which starts
+     * the scanners. The event log opens on its own thread, whose messages go through the paused
+     * main scheduler as well, so the wait keeps running it.
+     */
+    private void awaitStartup() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!mService.awaitStartupSteps(IDLE_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            assertTrue("Startup didn't finish", System.currentTimeMillis() < deadline);
+            ShadowLooper.idleMainLooper();
+        }
+        ShadowLooper.idleMainLooper();
+    }
+
+    /**
+     * Waits for the queues and queue positions requested so far to load, and applies them on
+     * the main thread.
+     */
+    private void awaitQueue() throws Exception {
+        // The executor has a single thread, so this runs after the loads already submitted.
+        mService.getQueueExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        ShadowLooper.idleMainLooper();
+    }
+
+    /**
+     * Lets the notification resolve the launcher activity for its content intent, which
+     * Robolectric doesn't do from the manifest.
+     */
+    private void addLauncherActivity() {
+        String packageName = RuntimeEnvironment.application.getPackageName();
+        ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.packageName = packageName;
+        info.activityInfo.name = MusicPlayerActivity.class.getName();
+        RuntimeEnvironment.getRobolectricPackageManager().addResolveInfoForIntent(
+                new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER)
+                        .setPackage(packageName), info);
+    }
+
+    private void changeFocus(int focusChange) {
+        ShadowAudioManager audioManager = shadowOf((AudioManager) RuntimeEnvironment.application
+                .getSystemService(Context.AUDIO_SERVICE));
+        audioManager.getLastAudioFocusRequest().listener.onAudioFocusChange(focusChange);
+    }
+
+    /**
+     * Checks the session updates and notify() calls since the last check and that the session
+     * ended up in {@code expectedState}. Every notification update has to be caused by a
+     * session update; starting or stopping the foreground notification doesn't use notify().
+     */
+    private void assertTransition(int expectedState) {
+        ShadowLooper.idleMainLooper();
+        int states = mSession.getPlaybackStateCount() - mStateMark;
+        int updates = states + mSession.getMetadataCount() - mMetadataMark;
+        int notifies = mNotificationManager.getNotifyCount() - mNotifyMark;
+        assertTrue("Set " + states + " playback states", states <= MAX_STATES_PER_TRANSITION);
+        assertTrue("Posted " + notifies + " notifications for " + updates + " session updates",
+                notifies <= updates);
+        assertEquals(expectedState, mSession.getPlaybackState().getState());
+        mStateMark = mSession.getPlaybackStateCount();
+        mMetadataMark = mSession.getMetadataCount();
+        mNotifyMark = mNotificationManager.getNotifyCount();
+    }
+}
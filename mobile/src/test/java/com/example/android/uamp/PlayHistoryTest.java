@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the recently played deque and the most played heap against a straightforward count
+ * of the same plays.
+ */
+public class PlayHistoryTest {
+
+    @Test
+    public void recentlyPlayedIsDistinctBoundedAndNewestFirst() {
+        PlayHistory history = new PlayHistory(3);
+        for (String mediaId : new String[] {"a", "b", "c", "a", "d"}) {
+            history.onPlayed(mediaId, 1);
+        }
+        assertEquals(Arrays.asList("d", "a", "c"), history.getRecentlyPlayed(10));
+        assertEquals(Arrays.asList("d", "a"), history.getRecentlyPlayed(2));
+    }
+
+    @Test
+    public void mostPlayedMatchesCountingEveryPlay() {
+        Random random = new Random(7);
+        PlayHistory history = new PlayHistory(10);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            // Skewed, so some tracks are clearly ahead and the rest keep competing.
+            String mediaId = "track" + (int) (200 * Math.pow(random.nextDouble(), 3));
+            Integer count = counts.get(mediaId);
+            count = count == null ? 1 : count + 1;
+            counts.put(mediaId, count);
+            history.onPlayed(mediaId, count);
+        }
+
+        List<Integer> expected = new ArrayList<>(counts.values());
+        Collections.sort(expected, Collections.<Integer>reverseOrder());
+        List<String> mostPlayed = history.getMostPlayed(10);
+        assertEquals(10, mostPlayed.size());
+        for (int i = 0; i < mostPlayed.size(); i++) {
+            assertEquals(expected.get(i), counts.get(mostPlayed.get(i)));
+        }
+    }
+
+    @Test
+    public void trackOvertakingTheHeapReplacesTheLeastPlayed() {
+        PlayHistory history = new PlayHistory(2);
+        history.onPlayed("a", 1);
+        history.onPlayed("a", 2);
+        history.onPlayed("b", 1);
+        history.onPlayed("c", 1);
+        assertEquals(Arrays.asList("a", "b"), history.getMostPlayed(2));
+
+        history.onPlayed("c", 2);
+        assertEquals(2, history.getMostPlayed(2).size());
+        assertTrue(history.getMostPlayed(2).contains("c"));
+        assertTrue(history.getMostPlayed(2).contains("a"));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import org.junit.Test;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that shuffled queues play every track exactly once and that the repeat modes wrap
+ * and repeat as the session actions promise.
+ */
+public class PlayQueueTest {
+
+    @Test
+    public void shufflePlaysEveryTrackOnceStartingWithTheCurrentOne() {
+        for (int size : new int[] {1, 2, 3, 17, 1000, 100000}) {
+            PlayQueue queue = new PlayQueue(new Random(size));
+            queue.setQueue(mediaIds(size), size / 2);
+            queue.setShuffled(true);
+            assertEquals(String.valueOf(size / 2), queue.getCurrentMediaId());
+
+            Set<String> played = new HashSet<>();
+            played.add(queue.getCurrentMediaId());
+            String mediaId;
+            while ((mediaId = queue.skipToNext()) != null) {
+                assertTrue("Played " + mediaId + " twice", played.add(mediaId));
+            }
+            assertEquals(size, played.size());
+        }
+    }
+
+    @Test
+    public void unshuffleContinuesInOrderFromTheCurrentTrack() {
+        PlayQueue queue = new PlayQueue(new Random(1));
+        queue.setQueue(mediaIds(100), 0);
+        queue.setShuffled(true);
+        String current = queue.skipToNext();
+
+        queue.setShuffled(false);
+        assertEquals(current, queue.getCurrentMediaId());
+        assertEquals(String.valueOf(Integer.parseInt(current) + 1), queue.skipToNext());
+    }
+
+    @Test
+    public void repeatAllWrapsAndShufflesEveryPass() {
+        PlayQueue queue = new PlayQueue(new Random(2));
+        queue.setQueue(mediaIds(50), 0);
+        queue.setRepeatMode(PlayQueue.REPEAT_MODE_ALL);
+        queue.setShuffled(true);
+        for (int pass = 0; pass < 3; pass++) {
+            Set<String> played = new HashSet<>();
+            for (int i = 0; i < 50; i++) {
+                played.add(queue.getCurrentMediaId());
+                queue.onCompletion();
+            }
+            assertEquals(50, played.size());
+        }
+    }
+
+    @Test
+    public void repeatOneReplaysOnCompletionButSkips() {
+        PlayQueue queue = new PlayQueue(new Random(3));
+        queue.setQueue(mediaIds(3), 2);
+        queue.setRepeatMode(PlayQueue.REPEAT_MODE_ONE);
+        assertEquals("2", queue.onCompletion());
+        assertEquals("0", queue.skipToNext());
+        assertEquals("2", queue.skipToPrevious());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownRepeatMode() {
+        new PlayQueue(new Random(5)).setRepeatMode(3);
+    }
+
+    @Test
+    public void endOfQueueWithoutRepeatStops() {
+        PlayQueue queue = new PlayQueue(new Random(4));
+        queue.setQueue(mediaIds(2), 1);
+        assertNull(queue.onCompletion());
+        assertEquals("0", queue.skipToPrevious());
+        assertEquals("0", queue.skipToPrevious());
+    }
+
+    @Test
+    public void repeatModeCyclesThroughOffAllAndOne() {
+        assertEquals(PlayQueue.REPEAT_MODE_ALL,
+                PlayQueue.nextRepeatMode(PlayQueue.REPEAT_MODE_NONE));
+        assertEquals(PlayQueue.REPEAT_MODE_ONE,
+                PlayQueue.nextRepeatMode(PlayQueue.REPEAT_MODE_ALL));
+        assertEquals(PlayQueue.REPEAT_MODE_NONE,
+                PlayQueue.nextRepeatMode(PlayQueue.REPEAT_MODE_ONE));
+    }
+
+    @Test
+    public void movesDontLookUpMediaIds() {
+        // Looking up an id may query the database, which the service does on another thread.
+        List<String> unreadable = new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                throw new AssertionError("Looked up index " + index);
+            }
+
+            @Override
+            public int size() {
+                return 10;
+            }
+        };
+        PlayQueue queue = new PlayQueue(new Random(6));
+        queue.setQueue(unreadable, 8);
+        queue.setRepeatMode(PlayQueue.REPEAT_MODE_ALL);
+        assertTrue(queue.moveToNext());
+        assertTrue(queue.moveToNext());
+        assertEquals(0, queue.getCurrentIndex());
+        assertTrue(queue.moveToPrevious());
+        assertTrue(queue.moveOnCompletion());
+        queue.setShuffled(true);
+        assertEquals(10, queue.getUpcomingIndexes(20).length);
+        assertEquals(queue.getCurrentIndex(), queue.getUpcomingIndexes(20)[0]);
+        queue.moveForward(3);
+        assertEquals(7, queue.getUpcomingIndexes(20).length);
+    }
+
+    private static List<String> mediaIds(int size) {
+        List<String> mediaIds = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            mediaIds.add(String.valueOf(i));
+        }
+        return mediaIds;
+    }
+}
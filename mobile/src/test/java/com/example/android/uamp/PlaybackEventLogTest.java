@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the pieces of {@link PlaybackEventLog}: that the ring hands over every event from
+ * concurrent producers, that the files read back what was written across rotations and
+ * crashes, and that the aggregates count plays and skips.
+ */
+public class PlaybackEventLogTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("events", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void ringDrainsEveryEventFromConcurrentProducers() throws InterruptedException {
+        final EventRing ring = new EventRing(1024);
+        final int producers = 4;
+        final int perProducer = 100000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final String mediaId = "track" + p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!ring.offer(PlaybackEventLog.EVENT_SEEK, mediaId, i, i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        final int[] next = new int[producers];
+        EventRing.Consumer consumer = new EventRing.Consumer() {
+            @Override
+            public void onEvent(int type, String mediaId, int position, long time) {
+                int producer = mediaId.charAt(mediaId.length() - 1) - '0';
+                // Each producer's events come out in the order it put them in.
+                assertEquals(next[producer]++, position);
+                assertEquals(position, time);
+            }
+        };
+        int drained = 0;
+        while (done.getCount() > 0 || drained < producers * perProducer) {
+            drained += ring.drain(consumer);
+        }
+        assertEquals(producers * perProducer, drained);
+    }
+
+    @Test
+    public void fullRingDropsInsteadOfBlocking() {
+        EventRing ring = new EventRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(PlaybackEventLog.EVENT_PLAY, "a", i, i));
+        }
+        assertFalse(ring.offer(PlaybackEventLog.EVENT_PLAY, "a", 4, 4));
+        assertEquals(1, ring.getDroppedCount());
+
+        assertEquals(4, ring.drain(new Recorder()));
+        assertTrue(ring.offer(PlaybackEventLog.EVENT_PLAY, "a", 5, 5));
+    }
+
+    @Test
+    public void filesReadBackAcrossRotations() throws IOException {
+        EventLogFile file = new EventLogFile(mDir, 1024, 3);
+        file.open(new Recorder());
+        for (int i = 0; i < 500; i++) {
+            file.onEvent(PlaybackEventLog.EVENT_PLAY, "track" + (i % 7), i, 1000L + i);
+            file.flush();
+        }
+        file.close();
+
+        // Only the newest files are kept, and they read back as a contiguous tail.
+        assertEquals(3, mDir.list().length);
+        Recorder recorder = new Recorder();
+        new EventLogFile(mDir, 1024, 3).open(recorder);
+        int first = recorder.positions.get(0);
+        assertTrue(first > 0);
+        for (int i = 0; i < recorder.positions.size(); i++) {
+            assertEquals(first + i, (int) recorder.positions.get(i));
+            assertEquals("track" + ((first + i) % 7), recorder.mediaIds.get(i));
+        }
+        assertEquals(499, first + recorder.positions.size() - 1);
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndAppendingContinues() throws IOException {
+        EventLogFile file = new EventLogFile(mDir, 1 << 20, 3);
+        file.open(new Recorder());
+        file.onEvent(PlaybackEventLog.EVENT_PLAY, "a", 1, 1);
+        file.onEvent(PlaybackEventLog.EVENT_PAUSE, "a", 2, 2);
+        file.flush();
+        file.close();
+        // Cut the last event in half, as a crash in the middle of a write would.
+        File written = new File(mDir, mDir.list()[0]);
+        RandomAccessFile raf = new RandomAccessFile(written, "rw");
+        raf.setLength(raf.length() - 8);
+        raf.close();
+
+        file = new EventLogFile(mDir, 1 << 20, 3);
+        Recorder recorder = new Recorder();
+        file.open(recorder);
+        assertEquals(1, recorder.positions.size());
+        file.onEvent(PlaybackEventLog.EVENT_SKIP, "a", 3, 3);
+        file.onEvent(PlaybackEventLog.EVENT_PLAY, "b", 0, 4);
+        file.flush();
+        file.close();
+
+        recorder = new Recorder();
+        new EventLogFile(mDir, 1 << 20, 3).open(recorder);
+        assertEquals(3, recorder.positions.size());
+        assertEquals("a", recorder.mediaIds.get(1));
+        assertEquals("b", recorder.mediaIds.get(2));
+    }
+
+    @Test
+    public void statsCountStartsAndSkips() {
+        PlaybackStats stats = new PlaybackStats(new PlayHistory(10));
+        stats.onEvent(PlaybackEventLog.EVENT_PLAY, "a", 0, 0);
+        stats.onEvent(PlaybackEventLog.EVENT_PAUSE, "a", 10, 1);
+        // Resuming isn't another play.
+        stats.onEvent(PlaybackEventLog.EVENT_PLAY, "a", 10, 2);
+        stats.onEvent(PlaybackEventLog.EVENT_COMPLETE, "a", 100, 3);
+        // Repeating is.
+        stats.onEvent(PlaybackEventLog.EVENT_PLAY, "a", 0, 4);
+        stats.onEvent(PlaybackEventLog.EVENT_SKIP, "a", 5, 5);
+        stats.onEvent(PlaybackEventLog.EVENT_PLAY, "b", 0, 6);
+
+        assertEquals(2, stats.getPlayCount("a"));
+        assertEquals(1, stats.getCompletionCount("a"));
+        assertEquals(0.5f, stats.getSkipRate("a"), 0f);
+        assertEquals(1, stats.getPlayCount("b"));
+        assertEquals(0f, stats.getSkipRate("b"), 0f);
+        assertEquals(0, stats.getPlayCount("c"));
+    }
+
+    private static class Recorder implements EventRing.Consumer {
+        final List<String> mediaIds = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+
+        @Override
+        public void onEvent(int type, String mediaId, int position, long time) {
+            mediaIds.add(mediaId);
+            positions.add(position);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.session.PlaybackState;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAudioManager;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowMediaPlayer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.example.android.uamp.PlaybackTestHelper.MAX_BYTES_PER_TRANSITION;
+import static com.example.android.uamp.PlaybackTestHelper.MAX_STATES_PER_TRANSITION;
+import static com.example.android.uamp.PlaybackTestHelper.OTHER_TRACK;
+import static com.example.android.uamp.PlaybackTestHelper.TRACK;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives {@link PlaybackManager} through scripted sessions and bounds the PlaybackState
+ * emissions and allocations of each transition.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.LOLLIPOP)
+public class PlaybackManagerTest {
+
+    private static final int SEEK_DELAY_MS = 1000;
+
+    private final List<PlaybackState> mStates = new ArrayList<>();
+    private PlaybackManager mPlayback;
+    // The player created last, once seeks are held
+    private MediaPlayer mPlayer;
+    // Number of states seen at the start of the current transition
+    private int mMark;
+
+    @Before
+    public void setUp() {
+        PlaybackTestHelper.addBundledMedia();
+        mPlayback = new PlaybackManager(RuntimeEnvironment.application);
+        mPlayback.setCallback(new PlaybackManager.Callback() {
+            @Override
+            public void onPlaybackStatusChanged(PlaybackState state) {
+                mStates.add(state);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mPlayback.setCallback(null);
+        mPlayback.release();
+        ShadowMediaPlayer.setCreateListener(null);
+    }
+
+    @Test
+    public void playPauseResumeEmitOneStateEach() {
+        mPlayback.play(TRACK);
+        assertTransition(1, PlaybackState.STATE_PLAYING);
+
+        mPlayback.pause();
+        assertTransition(1, PlaybackState.STATE_PAUSED);
+
+        mPlayback.play(TRACK);
+        assertTransition(1, PlaybackState.STATE_PLAYING);
+    }
+
+    @Test
+    public void seekWhilePlayingResumesAtTarget() {
+        mPlayback.play(TRACK);
+        mark();
+
+        mPlayback.seekTo(30000);
+        assertTransition(MAX_STATES_PER_TRANSITION, PlaybackState.STATE_PLAYING);
+        assertEquals(30000, lastState().getPosition());
+        assertTrue(mPlayback.isPlaying());
+    }
+
+    @Test
+    public void pauseDuringSeekStopsThePlayer() {
+        holdSeeks();
+        mPlayback.play(TRACK);
+        mark();
+
+        mPlayback.seekTo(30000);
+        assertTransition(1, PlaybackState.STATE_BUFFERING);
+
+        mPlayback.pause();
+        assertTransition(1, PlaybackState.STATE_PAUSED);
+        assertFalse(mPlayer.isPlaying());
+        assertEquals(30000, lastState().getPosition());
+        assertSame(mPlayback, getAudioManager().getLastAbandonedAudioFocusListener());
+
+        // Completing the seek must not start the player again.
+        ShadowLooper.idleMainLooper(SEEK_DELAY_MS);
+        assertFalse(mPlayer.isPlaying());
+        mark();
+
+        mPlayback.play(TRACK);
+        assertTransition(1, PlaybackState.STATE_PLAYING);
+        assertEquals(30000, lastState().getPosition());
+    }
+
+    @Test
+    public void focusLossDuringSeekPausesAndGainResumes() {
+        holdSeeks();
+        mPlayback.play(TRACK);
+        mPlayback.seekTo(30000);
+        mark();
+
+        mPlayback.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT);
+        assertTransition(1, PlaybackState.STATE_PAUSED);
+        assertFalse(mPlayer.isPlaying());
+
+        ShadowLooper.idleMainLooper(SEEK_DELAY_MS);
+        assertFalse(mPlayer.isPlaying());
+        mark();
+
+        mPlayback.onAudioFocusChange(AudioManager.AUDIOFOCUS_GAIN);
+        assertTransition(1, PlaybackState.STATE_PLAYING);
+        assertTrue(mPlayer.isPlaying());
+        assertEquals(30000, lastState().getPosition());
+    }
+
+    @Test
+    public void scrubKeepsPlayingAndEndsOnLastStep() {
+        mPlayback.play(TRACK);
+        mPlayback.setScrubbing(true);
+        mark();
+
+        for (int i = 1; i <= 20; i++) {
+            mPlayback.seekTo(i * 1000);
+            assertTransition(1, PlaybackState.STATE_PLAYING);
+            assertEquals(i * 1000, lastState().getPosition());
+        }
+
+        mPlayback.setScrubbing(false);
+        assertTransition(MAX_STATES_PER_TRANSITION, PlaybackState.STATE_PLAYING);
+        assertEquals(20000, lastState().getPosition());
+    }
+
+    @Test
+    public void transientFocusLossPausesAndGainResumes() {
+        mPlayback.play(TRACK);
+        mark();
+
+        mPlayback.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT);
+        assertTransition(1, PlaybackState.STATE_PAUSED);
+
+        mPlayback.onAudioFocusChange(AudioManager.AUDIOFOCUS_GAIN);
+        assertTransition(1, PlaybackState.STATE_PLAYING);
+    }
+
+    @Test
+    public void focusGainResumesAfterIdleRelease() {
+        mPlayback.play(TRACK);
+        mPlayback.seekTo(30000);
+        mPlayback.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT);
+        mark();
+
+        // A call outlasting the idle timeout releases the paused player.
+        ShadowLooper.idleMainLooper(PlaybackResources.DEFAULT_IDLE_RELEASE_TIMEOUT_MS);
+        assertTransition(0, PlaybackState.STATE_PAUSED);
+
+        mPlayback.onAudioFocusChange(AudioManager.AUDIOFOCUS_GAIN);
+        assertTransition(MAX_STATES_PER_TRANSITION, PlaybackState.STATE_PLAYING);
+        assertEquals(30000, lastState().getPosition());
+        assertTrue(mPlayback.isPlaying());
+    }
+
+    @Test
+    public void duckingKeepsPlayingWithoutExtraStates() {
+        mPlayback.play(TRACK);
+        mark();
+
+        mPlayback.onAudioFocusChange(AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK);
+        assertTransition(1, PlaybackState.STATE_PLAYING);
+    }
+
+    @Test
+    public void skipSwitchesItemWithOneState() {
+        mPlayback.play(TRACK);
+        mark();
+
+        mPlayback.play(OTHER_TRACK);
+        assertTransition(1, PlaybackState.STATE_PLAYING);
+        assertEquals(OTHER_TRACK, mPlayback.getCurrentMediaId());
+        assertEquals(0, lastState().getPosition());
+    }
+
+    @Test
+    public void repeatedStopIsSilent() {
+        mPlayback.play(TRACK);
+        mPlayback.stop();
+        assertTransition(MAX_STATES_PER_TRANSITION, PlaybackState.STATE_STOPPED);
+
+        mPlayback.stop();
+        assertTransition(0, PlaybackState.STATE_STOPPED);
+    }
+
+    @Test
+    public void speedChangeWhilePausedKeepsPosition() {
+        mPlayback.play(TRACK);
+        mPlayback.seekTo(30000);
+        mPlayback.pause();
+        mark();
+
+        // Before API 23 this releases the player for one that can time-stretch.
+        mPlayback.setPlaybackSpeed(1.5f);
+        assertTransition(1, PlaybackState.STATE_PAUSED);
+        assertEquals(1.5f, lastState().getPlaybackSpeed(), 0f);
+        assertEquals(30000, lastState().getPosition());
+
+        mPlayback.setPlaybackSpeed(1.0f);
+        mark();
+        mPlayback.play(TRACK);
+        assertTransition(MAX_STATES_PER_TRANSITION, PlaybackState.STATE_PLAYING);
+        assertEquals(30000, lastState().getPosition());
+        assertTrue(mPlayback.isPlaying());
+    }
+
+    @Test
+    public void transitionsStayWithinAllocationBudget() {
+        // Warm up class loading and the shadows first.
+        mPlayback.play(TRACK);
+        mPlayback.pause();
+        mark();
+
+        long before = PlaybackTestHelper.allocatedBytes();
+        int transitions = 0;
+        for (int i = 0; i < 10; i++) {
+            mPlayback.play(TRACK);
+            mPlayback.seekTo(i * 1000);
+            mPlayback.pause();
+            transitions += 3;
+        }
+        ShadowLooper.idleMainLooper();
+        long perTransition = (PlaybackTestHelper.allocatedBytes() - before) / transitions;
+        assertTrue("Allocated " + perTransition + " bytes per transition",
+                perTransition <= MAX_BYTES_PER_TRANSITION);
+        assertTrue(mStates.size() - mMark <= transitions * MAX_STATES_PER_TRANSITION);
+    }
+
+    /**
+     * Makes the players created from now on take {@link #SEEK_DELAY_MS} to complete a seek, so
+     * that a test can act while one is in flight.
+     */
+    private void holdSeeks() {
+        ShadowMediaPlayer.setCreateListener(new ShadowMediaPlayer.CreateListener() {
+            @Override
+            public void onCreate(MediaPlayer player, ShadowMediaPlayer shadow) {
+                shadow.setSeekDelay(SEEK_DELAY_MS);
+                mPlayer = player;
+            }
+        });
+    }
+
+    private ShadowAudioManager getAudioManager() {
+        return shadowOf((AudioManager) RuntimeEnvironment.application
+                .getSystemService(Context.AUDIO_SERVICE));
+    }
+
+    private void mark() {
+        ShadowLooper.idleMainLooper();
+        mMark = mStates.size();
+    }
+
+    /**
+     * Checks that at most {@code maxStates} states were emitted since the last check and that
+     * the session ended up in {@code expectedState}.
+     */
+    private void assertTransition(int maxStates, int expectedState) {
+        ShadowLooper.idleMainLooper();
+        int emitted = mStates.size() - mMark;
+        assertTrue("Emitted " + emitted + " states, expected at most " + maxStates,
+                emitted <= maxStates);
+        if (maxStates > 0) {
+            assertTrue("No state emitted", emitted > 0);
+            assertEquals(expectedState, lastState().getState());
+        }
+        mMark = mStates.size();
+    }
+
+    private PlaybackState lastState() {
+        return mStates.get(mStates.size() - 1);
+    }
+}
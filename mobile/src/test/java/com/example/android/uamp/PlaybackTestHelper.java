@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.net.Uri;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Shared setup and measurements of the playback regression tests.
+ * <p/>
+ * The tests run every looper on Robolectric's global scheduler, see build.gradle, so messages
+ * posted to the playback thread and to the main thread run right away on the calling thread.
+ * Every transition has completed, and allocated everything it needs, by the time the call that
+ * triggered it returns.
+ */
+final class PlaybackTestHelper {
+
+    static final String TRACK = "Jazz_In_Paris";
+    static final String OTHER_TRACK = "The_Coldest_Shoulder";
+
+    // Most PlaybackState emissions a single transition may cause
+    static final int MAX_STATES_PER_TRANSITION = 2;
+    // Allocation ceiling per player transition, measured at about 11 KB. Copying a track's
+    // metadata or art on a state change would exceed it.
+    static final long MAX_BYTES_PER_TRANSITION = 32 * 1024;
+    // Allocation ceiling per service transition, measured at about 480 KB. Nearly all of that
+    // is Robolectric instrumenting each Notification.Builder, so art decodes, which don't
+    // allocate pixels under Robolectric, are counted by CountingShadowBitmapFactory instead.
+    static final long MAX_SERVICE_BYTES_PER_TRANSITION = 640 * 1024;
+
+    private static final int TRACK_DURATION_MS = 160000;
+
+    private PlaybackTestHelper() {
+    }
+
+    /**
+     * Lets the shadow MediaPlayer open the bundled tracks.
+     */
+    static void addBundledMedia() {
+        for (String mediaId : new String[] {TRACK, OTHER_TRACK}) {
+            ShadowMediaPlayer.addMediaInfo(
+                    DataSource.toDataSource(RuntimeEnvironment.application,
+                            Uri.parse(MusicLibrary.getSongUri(mediaId))),
+                    new ShadowMediaPlayer.MediaInfo(TRACK_DURATION_MS, 0));
+        }
+    }
+
+    /**
+     * Drops the process wide instances the service creates. Robolectric keeps static state
+     * from one test to the next, but gives each test a new application and files directory.
+     */
+    static void resetSingletons() {
+        MusicLibrary.setDatabase(null);
+        MusicLibrary.setOfflineStore(null);
+        MusicDatabase.resetInstance();
+        OfflineStore.resetInstance();
+        PlaybackEventLog.resetInstance();
+        MemoryBudget.resetInstance();
+    }
+
+    /**
+     * Returns the number of bytes the current thread has allocated so far.
+     */
+    static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import android.media.session.PlaybackState;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.android.uamp.PlaybackTestHelper.OTHER_TRACK;
+import static com.example.android.uamp.PlaybackTestHelper.TRACK;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hands {@link PlaybackManager} over to a {@link FakeRemotePlayback} and back, and checks that
+ * the queue goes over in one load and the position survives both ways.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.LOLLIPOP)
+public class RemotePlaybackTest {
+
+    private final List<PlaybackState> mStates = new ArrayList<>();
+    private final FakeRemotePlayback mRemote = new FakeRemotePlayback();
+    private PlaybackManager mPlayback;
+
+    @Before
+    public void setUp() {
+        PlaybackTestHelper.addBundledMedia();
+        mPlayback = new PlaybackManager(RuntimeEnvironment.application);
+        mPlayback.setCallback(new PlaybackManager.Callback() {
+            @Override
+            public void onPlaybackStatusChanged(PlaybackState state) {
+                mStates.add(state);
+            }
+        });
+        mPlayback.setQueueWindow(Arrays.asList(TRACK, OTHER_TRACK));
+    }
+
+    @After
+    public void tearDown() {
+        mPlayback.setCallback(null);
+        mPlayback.release();
+    }
+
+    @Test
+    public void handoffLoadsQueueOnceAtPosition() {
+        mPlayback.play(TRACK);
+        mPlayback.seekTo(30000);
+        mPlayback.switchToRemote(mRemote);
+
+        assertEquals(1, mRemote.loads.size());
+        assertEquals(Arrays.asList(TRACK, OTHER_TRACK), mRemote.loads.get(0));
+        assertEquals(30000, mRemote.loadPosition);
+        assertTrue(mRemote.autoplay);
+
+        mRemote.reportStatus(PlaybackState.STATE_PLAYING, 30000);
+        assertEquals(PlaybackState.STATE_PLAYING, lastState().getState());
+        assertEquals(30000, lastState().getPosition());
+        assertTrue(mPlayback.isPlaying());
+    }
+
+    @Test
+    public void pausedHandoffStaysPaused() {
+        mPlayback.play(TRACK);
+        mPlayback.pause();
+        mPlayback.switchToRemote(mRemote);
+
+        assertEquals(1, mRemote.loads.size());
+        assertFalse(mRemote.autoplay);
+        assertEquals(PlaybackState.STATE_PAUSED, lastState().getState());
+    }
+
+    @Test
+    public void skipWithinBatchJumpsWithoutLoading() {
+        mPlayback.play(TRACK);
+        mPlayback.switchToRemote(mRemote);
+
+        mPlayback.play(OTHER_TRACK);
+        assertEquals(1, mRemote.loads.size());
+        assertEquals(Collections.singletonList(1), mRemote.jumps);
+        assertEquals(OTHER_TRACK, mPlayback.getCurrentMediaId());
+    }
+
+    @Test
+    public void receiverPlaysThroughBatchOnItsOwn() {
+        mPlayback.play(TRACK);
+        mPlayback.switchToRemote(mRemote);
+        mRemote.reportStatus(PlaybackState.STATE_PLAYING, 0);
+
+        mRemote.reportItemFinished();
+        assertEquals(OTHER_TRACK, mPlayback.getCurrentMediaId());
+        assertEquals(1, mRemote.loads.size());
+
+        mRemote.reportItemFinished();
+        assertEquals(PlaybackState.STATE_SKIPPING_TO_NEXT, lastState().getState());
+    }
+
+    @Test
+    public void switchBackResumesAtReceiverPosition() {
+        mPlayback.play(TRACK);
+        mPlayback.switchToRemote(mRemote);
+        mRemote.reportStatus(PlaybackState.STATE_PAUSED, 42000);
+
+        mPlayback.switchToLocal();
+        assertTrue(mRemote.stopped);
+        assertEquals(PlaybackState.STATE_PAUSED, lastState().getState());
+        assertEquals(42000, lastState().getPosition());
+
+        mPlayback.play(TRACK);
+        assertEquals(PlaybackState.STATE_PLAYING, lastState().getState());
+        assertTrue(mPlayback.getCurrentStreamPosition() >= 42000);
+    }
+
+    @Test
+    public void disconnectPausesAtPosition() {
+        mPlayback.play(TRACK);
+        mPlayback.switchToRemote(mRemote);
+        mRemote.reportStatus(PlaybackState.STATE_PAUSED, 15000);
+
+        mRemote.reportDisconnected();
+        assertEquals(PlaybackState.STATE_PAUSED, lastState().getState());
+        assertEquals(15000, lastState().getPosition());
+        assertFalse(mPlayback.isPlaying());
+    }
+
+    private PlaybackState lastState() {
+        ShadowLooper.idleMainLooper();
+        return mStates.get(mStates.size() - 1);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stretches a stereo sine and checks the length, the pitch and that the steady state doesn't
+ * allocate.
+ */
+public class TimeStretcherTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int FREQUENCY = 440;
+    private static final int INPUT_SECONDS = 4;
+    // Frames per decoder buffer and per write to the track
+    private static final int BUFFER_FRAMES = 1152;
+
+    private final ByteBuffer mInput = createSine(SAMPLE_RATE * INPUT_SECONDS);
+    private final short[] mOutput = new short[SAMPLE_RATE * INPUT_SECONDS * 2 * CHANNELS];
+    private final short[] mChunk = new short[BUFFER_FRAMES * CHANNELS];
+
+    @Test
+    public void outputLengthFollowsTheSpeed() {
+        for (float speed : new float[] {0.5f, 1.0f, 1.5f, 3.0f}) {
+            int frames = stretch(new TimeStretcher(SAMPLE_RATE, CHANNELS), speed);
+            int expected = (int) (SAMPLE_RATE * INPUT_SECONDS / speed);
+            // The end, shorter than a sequence and its seek window, is read out unstretched.
+            assertEquals("At " + speed + "x", expected, frames, SAMPLE_RATE * 0.1);
+        }
+    }
+
+    @Test
+    public void pitchIsKept() {
+        for (float speed : new float[] {0.5f, 2.0f}) {
+            int frames = stretch(new TimeStretcher(SAMPLE_RATE, CHANNELS), speed);
+            int crossings = 0;
+            for (int i = 1; i < frames; i++) {
+                if ((mOutput[(i - 1) * CHANNELS] < 0) != (mOutput[i * CHANNELS] < 0)) {
+                    crossings++;
+                }
+            }
+            double frequency = crossings / 2.0 / frames * SAMPLE_RATE;
+            assertEquals("At " + speed + "x", FREQUENCY, frequency, FREQUENCY * 0.03);
+        }
+    }
+
+    @Test
+    public void stretchingDoesNotAllocate() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+        // Warm up the code paths first.
+        stretch(stretcher, 1.5f);
+        stretcher.clear();
+
+        long before = PlaybackTestHelper.allocatedBytes();
+        int frames = stretch(stretcher, 2.0f);
+        long allocated = PlaybackTestHelper.allocatedBytes() - before;
+        assertTrue(frames > 0);
+        assertEquals(0, allocated);
+    }
+
+    /**
+     * Feeds the whole sine through {@code stretcher} in decoder sized buffers at
+     * {@code speed}, collecting the output in mOutput. Returns the number of output frames.
+     */
+    private int stretch(TimeStretcher stretcher, float speed) {
+        stretcher.setSpeed(speed);
+        int frames = 0;
+        int end = mInput.capacity();
+        for (int position = 0; position < end; position += BUFFER_FRAMES * CHANNELS * 2) {
+            mInput.limit(Math.min(end, position + BUFFER_FRAMES * CHANNELS * 2));
+            mInput.position(position);
+            while (!stretcher.queueInput(mInput)) {
+                frames = drain(stretcher, frames);
+            }
+            frames = drain(stretcher, frames);
+        }
+        stretcher.endOfStream();
+        return drain(stretcher, frames);
+    }
+
+    private int drain(TimeStretcher stretcher, int frames) {
+        int read;
+        while ((read = stretcher.read(mChunk, BUFFER_FRAMES)) > 0) {
+            System.arraycopy(mChunk, 0, mOutput, frames * CHANNELS, read * CHANNELS);
+            frames += read;
+        }
+        return frames;
+    }
+
+    private static ByteBuffer createSine(int frames) {
+        ByteBuffer buffer = ByteBuffer.allocate(frames * CHANNELS * 2)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (10000 * Math.sin(2 * Math.PI * FREQUENCY * i / SAMPLE_RATE));
+            for (int c = 0; c < CHANNELS; c++) {
+                buffer.putShort(sample);
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp.shadows;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.Resetter;
+import org.robolectric.shadows.ShadowBitmapFactory;
+
+/**
+ * Counts resource decodes that produce pixels; bounds-only decodes are free.
+ */
+@Implements(BitmapFactory.class)
+public class CountingShadowBitmapFactory extends ShadowBitmapFactory {
+
+    private static int sDecodeCount;
+
+    @Implementation
+    public static Bitmap decodeResource(Resources res, int id) {
+        return decodeResource(res, id, null);
+    }
+
+    @Implementation
+    public static Bitmap decodeResource(Resources res, int id, BitmapFactory.Options options) {
+        if (options == null || !options.inJustDecodeBounds) {
+            sDecodeCount++;
+        }
+        return ShadowBitmapFactory.decodeResource(res, id, options);
+    }
+
+    public static int getDecodeCount() {
+        return sDecodeCount;
+    }
+
+    @Resetter
+    public static void reset() {
+        sDecodeCount = 0;
+        ShadowBitmapFactory.reset();
+    }
+}
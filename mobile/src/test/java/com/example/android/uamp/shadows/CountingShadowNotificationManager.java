@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp.shadows;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowNotificationManager;
+
+/**
+ * Counts the calls to {@link NotificationManager#notify}. Robolectric only keeps the latest
+ * notification per id, which hides redundant updates.
+ */
+@Implements(NotificationManager.class)
+public class CountingShadowNotificationManager extends ShadowNotificationManager {
+
+    private int mNotifyCount;
+
+    @Override
+    @Implementation
+    public void notify(String tag, int id, Notification notification) {
+        mNotifyCount++;
+        super.notify(tag, id, notification);
+    }
+
+    public int getNotifyCount() {
+        return mNotifyCount;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp.shadows;
+
+import android.media.MediaMetadata;
+import android.media.session.MediaController;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+/**
+ * Controller side of {@link ShadowMediaSession}. Every controller talks to the session created
+ * last.
+ */
+@Implements(value = MediaController.class, looseSignatures = true)
+public class ShadowMediaController {
+
+    // The public constructor delegates to this hidden one, which takes the session binder.
+    public void __constructor__(Object context, Object sessionBinder) {
+    }
+
+    @Implementation
+    public MediaMetadata getMetadata() {
+        return ShadowMediaSession.getLatest().getMetadata();
+    }
+
+    @Implementation
+    public PlaybackState getPlaybackState() {
+        return ShadowMediaSession.getLatest().getPlaybackState();
+    }
+
+    @Implementation
+    public MediaController.TransportControls getTransportControls() {
+        // Tests drive the session callback directly.
+        return null;
+    }
+
+    @Implementation
+    public void registerCallback(MediaController.Callback callback) {
+        ShadowMediaSession.getLatest().addControllerCallback(callback);
+    }
+
+    @Implementation
+    public void registerCallback(MediaController.Callback callback, Handler handler) {
+        registerCallback(callback);
+    }
+
+    @Implementation
+    public void unregisterCallback(MediaController.Callback callback) {
+        ShadowMediaSession.getLatest().removeControllerCallback(callback);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp.shadows;
+
+import android.content.Context;
+import android.media.MediaMetadata;
+import android.media.session.MediaController;
+import android.media.session.MediaSession;
+import android.media.session.PlaybackState;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.Resetter;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process stand-in for {@link MediaSession}, which needs the system session service. State
+ * set on the session is delivered synchronously to the callbacks registered through
+ * {@link ShadowMediaController}, and every update is counted.
+ */
+@Implements(MediaSession.class)
+public class ShadowMediaSession {
+
+    private static ShadowMediaSession sLatest;
+
+    private final List<MediaController.Callback> mControllerCallbacks = new ArrayList<>();
+    private MediaSession.Token mToken;
+    private MediaSession.Callback mCallback;
+    private MediaMetadata mMetadata;
+    private PlaybackState mPlaybackState;
+    private int mPlaybackStateCount;
+    private int mMetadataCount;
+
+    // The public constructor delegates to this hidden one, which does the system service calls.
+    public void __constructor__(Context context, String tag, int userId) {
+        try {
+            Class<?> binderClass = Class.forName("android.media.session.ISessionController");
+            mToken = ReflectionHelpers.callConstructor(MediaSession.Token.class,
+                    ReflectionHelpers.ClassParameter.from(binderClass, null));
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+        sLatest = this;
+    }
+
+    /**
+     * Returns the session created last.
+     */
+    public static ShadowMediaSession getLatest() {
+        return sLatest;
+    }
+
+    @Resetter
+    public static void reset() {
+        sLatest = null;
+    }
+
+    @Implementation
+    public MediaSession.Token getSessionToken() {
+        return mToken;
+    }
+
+    @Implementation
+    public void setCallback(MediaSession.Callback callback) {
+        mCallback = callback;
+    }
+
+    @Implementation
+    public void setFlags(int flags) {
+    }
+
+    @Implementation
+    public void setActive(boolean active) {
+    }
+
+    @Implementation
+    public void setMetadata(MediaMetadata metadata) {
+        mMetadata = metadata;
+        mMetadataCount++;
+        for (MediaController.Callback callback : new ArrayList<>(mControllerCallbacks)) {
+            callback.onMetadataChanged(metadata);
+        }
+    }
+
+    @Implementation
+    public void setPlaybackState(PlaybackState state) {
+        mPlaybackState = state;
+        mPlaybackStateCount++;
+        for (MediaController.Callback callback : new ArrayList<>(mControllerCallbacks)) {
+            callback.onPlaybackStateChanged(state);
+        }
+    }
+
+    @Implementation
+    public void release() {
+        for (MediaController.Callback callback : new ArrayList<>(mControllerCallbacks)) {
+            callback.onSessionDestroyed();
+        }
+        mControllerCallbacks.clear();
+    }
+
+    public MediaSession.Callback getCallback() {
+        return mCallback;
+    }
+
+    public MediaMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    public PlaybackState getPlaybackState() {
+        return mPlaybackState;
+    }
+
+    /**
+     * Returns how many playback states have been set on the session.
+     */
+    public int getPlaybackStateCount() {
+        return mPlaybackStateCount;
+    }
+
+    public int getMetadataCount() {
+        return mMetadataCount;
+    }
+
+    void addControllerCallback(MediaController.Callback callback) {
+        mControllerCallbacks.add(callback);
+    }
+
+    void removeControllerCallback(MediaController.Callback callback) {
+        mControllerCallbacks.remove(callback);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.uamp.shadows;
+
+import android.os.HandlerThread;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.RealObject;
+
+/**
+ * Robolectric's looper can quit but not quit safely. The tests run on the global scheduler, so
+ * nothing is left pending by the time a thread quits and a plain quit is equivalent.
+ */
+@Implements(HandlerThread.class)
+public class ShadowPlaybackThread {
+
+    @RealObject
+    private HandlerThread mRealThread;
+
+    @Implementation
+    public boolean quitSafely() {
+        return mRealThread.quit();
+    }
+}